@@ -5,10 +5,17 @@ import android.content.Context;
 import com.feedhenry.securenativeandroidtemplate.AesCryptoTest;
 import com.feedhenry.securenativeandroidtemplate.RsaCryptoTest;
 import com.feedhenry.securenativeandroidtemplate.StorageFeatureTest;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.CipherPoolBenchmarkTest;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyCacheBenchmarkTest;
 import com.feedhenry.securenativeandroidtemplate.domain.repositories.NoteRepository;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStoreFactory;
+import com.feedhenry.securenativeandroidtemplate.domain.store.ReadPathBenchmarkTest;
+import com.feedhenry.securenativeandroidtemplate.domain.store.SecureFileNoteStoreScaleTest;
 import com.feedhenry.securenativeandroidtemplate.domain.store.SecureFileNoteStoreTest;
 import com.feedhenry.securenativeandroidtemplate.domain.store.sqlite.SqliteNoteStoreTest;
+import com.feedhenry.securenativeandroidtemplate.domain.store.sqlite.SqliteKeyBenchmarkTest;
+import com.feedhenry.securenativeandroidtemplate.domain.store.sqlite.SqliteConfigurationBenchmarkTest;
+import com.feedhenry.securenativeandroidtemplate.domain.store.sqlite.SqliteStatementBenchmarkTest;
 import com.feedhenry.securenativeandroidtemplate.features.authentication.providers.OpenIDAuthenticationProvider;
 
 import javax.inject.Singleton;
@@ -40,6 +47,13 @@ public interface SecureApplicationTestComponent {
     void inject(RsaCryptoTest rsaTest);
     void inject(SqliteNoteStoreTest noteStoreTest);
     void inject(SecureFileNoteStoreTest fileNoteStoreTest);
+    void inject(ReadPathBenchmarkTest readPathBenchmarkTest);
+    void inject(SecureFileNoteStoreScaleTest scaleTest);
+    void inject(SqliteStatementBenchmarkTest statementBenchmarkTest);
+    void inject(SqliteKeyBenchmarkTest keyBenchmarkTest);
+    void inject(SqliteConfigurationBenchmarkTest configurationBenchmarkTest);
+    void inject(KeyCacheBenchmarkTest keyCacheBenchmarkTest);
+    void inject(CipherPoolBenchmarkTest cipherPoolBenchmarkTest);
 
     Context context();
     NoteDataStoreFactory provideNoteDataStoreFactory();
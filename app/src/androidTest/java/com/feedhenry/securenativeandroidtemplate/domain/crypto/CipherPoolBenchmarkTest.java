@@ -0,0 +1,121 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Compare the cost of the single-shot operations of {@link AesCrypto} on small payloads (titles, metadata, wrapped keys)
+ * with a new cipher for each operation (how it used to be) and with the ciphers of {@link CipherPool}.
+ * The RSA unwrap of the AES keys, that {@link RsaHelper} does with the same pool, is measured too.
+ * The results are written to logcat with the "CipherPoolBenchmark" tag.
+ */
+@LargeTest
+public class CipherPoolBenchmarkTest {
+
+    private static final String TAG = "CipherPoolBenchmark";
+    private static final int[] PAYLOAD_SIZES = {16, 64, 256, 1024};
+    private static final int AES_ITERATIONS = 2000;
+    private static final int RSA_ITERATIONS = 50;
+    private static final String RSA_MODE = SecureKeyStoreImpl.ALG_RSA_ECB_PCKS1Padding;
+
+    @Inject
+    SecureKeyStore secureKeyStore;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+    }
+
+    @Test
+    public void benchmarkAes() throws Exception {
+        byte[] keyBytes = new byte[16];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        AesCrypto newCiphers = new AesCrypto(this.secureKeyStore);
+        newCiphers.setCipherPooling(false);
+        AesCrypto pooledCiphers = new AesCrypto(this.secureKeyStore);
+
+        for (int size : PAYLOAD_SIZES) {
+            byte[] payload = new byte[size];
+            new SecureRandom().nextBytes(payload);
+            //warm up
+            measureAes(newCiphers, key, payload, AES_ITERATIONS / 10);
+            measureAes(pooledCiphers, key, payload, AES_ITERATIONS / 10);
+
+            long newCipherTime = measureAes(newCiphers, key, payload, AES_ITERATIONS);
+            long pooledCipherTime = measureAes(pooledCiphers, key, payload, AES_ITERATIONS);
+            Log.i(TAG, String.format("AES %d bytes, encrypt and decrypt: new cipher %d ns, pooled cipher %d ns (%.0f%%)",
+                    size, newCipherTime, pooledCipherTime, 100.0 * pooledCipherTime / newCipherTime));
+        }
+    }
+
+    @Test
+    public void benchmarkRsaUnwrap() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        Cipher cipher = Cipher.getInstance(RSA_MODE);
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+        byte[] aesKey = new byte[16];
+        new SecureRandom().nextBytes(aesKey);
+        byte[] wrapped = cipher.doFinal(aesKey);
+        CipherPool pool = new CipherPool(true);
+        CipherPool noPool = new CipherPool(false);
+
+        //warm up
+        measureRsa(noPool, keyPair, wrapped, aesKey, RSA_ITERATIONS / 10);
+        measureRsa(pool, keyPair, wrapped, aesKey, RSA_ITERATIONS / 10);
+
+        long newCipherTime = measureRsa(noPool, keyPair, wrapped, aesKey, RSA_ITERATIONS);
+        long pooledCipherTime = measureRsa(pool, keyPair, wrapped, aesKey, RSA_ITERATIONS);
+        Log.i(TAG, String.format("RSA unwrap of a 16 bytes key: new cipher %d us, pooled cipher %d us (%.0f%%)",
+                newCipherTime / 1000, pooledCipherTime / 1000, 100.0 * pooledCipherTime / newCipherTime));
+    }
+
+    /**
+     * @return the average time in nanoseconds
+     */
+    private static long measureAes(AesCrypto aesCrypto, SecretKey key, byte[] payload, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            byte[] decrypted = aesCrypto.decrypt(key, aesCrypto.encrypt(key, payload, null), null);
+            if (i == 0) {
+                assertTrue(Arrays.equals(payload, decrypted));
+            }
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * @return the average time in nanoseconds
+     */
+    private static long measureRsa(CipherPool pool, KeyPair keyPair, byte[] wrapped, byte[] expected, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            byte[] unwrapped = pool.init(RSA_MODE, Cipher.DECRYPT_MODE, keyPair.getPrivate(), null).doFinal(wrapped);
+            if (i == 0) {
+                assertTrue(Arrays.equals(expected, unwrapped));
+            }
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+}
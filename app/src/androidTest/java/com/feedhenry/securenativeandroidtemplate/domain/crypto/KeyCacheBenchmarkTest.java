@@ -0,0 +1,79 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Compare an encrypt/decrypt loop with the keys loaded from the keystore on each call (the key cache disabled, how it used to be)
+ * and with the key cache of {@link AesCrypto}.
+ * Before Android M the unwrapped keys are cached by {@link PreAndroidMSecureKeyStore} instead, so both loops use that cache there.
+ * The results are written to logcat with the "KeyCacheBenchmark" tag.
+ */
+@LargeTest
+public class KeyCacheBenchmarkTest {
+
+    private static final String TAG = "KeyCacheBenchmark";
+    private static final String KEY_ALIAS = "KeyCacheBenchmarkKey";
+    private static final int ITERATIONS = 500;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    @Inject
+    SecureKeyStore secureKeyStore;
+
+    private AesCrypto aesCrypto;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+        this.aesCrypto = new AesCrypto(this.secureKeyStore);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        this.aesCrypto.deleteSecretKey(KEY_ALIAS);
+    }
+
+    @Test
+    public void benchmarkEncryptDecrypt() throws Exception {
+        byte[] plainText = "the content of a short note".getBytes(UTF8);
+        //generate the key, and warm up
+        runLoop(plainText, 10);
+
+        this.aesCrypto.setKeyCacheSize(0);
+        long start = System.nanoTime();
+        runLoop(plainText, ITERATIONS);
+        logOpsPerSecond("without key cache", start);
+
+        this.aesCrypto.setKeyCacheSize(1);
+        start = System.nanoTime();
+        runLoop(plainText, ITERATIONS);
+        logOpsPerSecond("with key cache", start);
+    }
+
+    private void runLoop(byte[] plainText, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            byte[] encrypted = this.aesCrypto.encrypt(KEY_ALIAS, plainText);
+            assertTrue(Arrays.equals(plainText, this.aesCrypto.decrypt(KEY_ALIAS, encrypted)));
+        }
+    }
+
+    private void logOpsPerSecond(String mode, long start) {
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format("%s: %d encrypt/decrypt pairs per sec (%d pairs in %d ms)", mode, ITERATIONS * 1000000000L / elapsed, ITERATIONS, elapsed / 1000000));
+    }
+}
@@ -1,11 +1,17 @@
 package com.feedhenry.securenativeandroidtemplate.domain.store;
 
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * Created by weili on 25/09/2017.
@@ -51,4 +57,55 @@ public class NoteStoreTestBase {
         notes = noteStore.listNotes();
         assertEquals(0, notes.size());
     }
+
+    protected void noteBatchCRUD(NoteDataStore noteStore, int noteCount) throws Exception {
+        List<Note> batch = new ArrayList<Note>();
+        for (int i = 0; i < noteCount; i++) {
+            batch.add(new Note("batch note " + i, "content of batch note " + i));
+        }
+
+        //create the notes
+        assertEquals(noteCount, noteStore.createNotes(batch).size());
+        assertEquals(noteCount, noteStore.count());
+        Note readNote = noteStore.readNote(batch.get(noteCount - 1).getId());
+        assertEquals("content of batch note " + (noteCount - 1), readNote.getContent());
+
+        //update the notes
+        for (Note note : batch) {
+            note.setTitle(note.getTitle() + " updated");
+        }
+        noteStore.updateNotes(batch);
+        for (Note note : noteStore.listNotes()) {
+            assertTrue(note.getTitle().endsWith(" updated"));
+        }
+
+        //delete all but the first note
+        noteStore.deleteNotes(batch.subList(1, noteCount));
+        List<Note> notes = noteStore.listNotes();
+        assertEquals(1, notes.size());
+        assertEquals(batch.get(0).getId(), notes.get(0).getId());
+        assertNull(noteStore.readNote(batch.get(1).getId()));
+    }
+
+    protected void notePages(NoteDataStore noteStore) throws Exception {
+        List<Note> created = new ArrayList<Note>();
+        for (int i = 0; i < 10; i++) {
+            //pairs of notes are created at the same time
+            created.add(new Note(UUID.randomUUID().toString(), "note " + i, "content", 1000 + i / 2));
+        }
+        noteStore.createNotes(created);
+        Collections.sort(created, PageCursor.NEWEST_FIRST);
+
+        List<Note> paged = new ArrayList<Note>();
+        List<Note> page = noteStore.listNotes(null, 3);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 3);
+            paged.addAll(page);
+            page = noteStore.listNotes(PageCursor.after(page.get(page.size() - 1)), 3);
+        }
+        assertEquals(created.size(), paged.size());
+        for (int i = 0; i < created.size(); i++) {
+            assertEquals(created.get(i).getId(), paged.get(i).getId());
+        }
+    }
 }
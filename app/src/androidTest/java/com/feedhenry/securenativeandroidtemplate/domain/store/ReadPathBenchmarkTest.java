@@ -0,0 +1,117 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.AesCrypto;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyHierarchy;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.StreamUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compare the stream based read path with the buffer based one, for notes of different sizes.
+ * The results are written to logcat with the "ReadPathBenchmark" tag.
+ */
+public class ReadPathBenchmarkTest {
+
+    private static final String TAG = "ReadPathBenchmark";
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final int[] NOTE_SIZES = {1024, 100 * 1024, 10 * 1024 * 1024};
+    private static final String FILE_NAME = "benchmark_note";
+
+    @Inject
+    Context context;
+
+    @Inject
+    AesCrypto aesCrypto;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+        SecureFileNoteStoreTest.removeFiles(this.context);
+    }
+
+    @After
+    public void teardown() {
+        SecureFileNoteStoreTest.removeFiles(this.context);
+    }
+
+    @Test
+    public void benchmarkKeystoreKeyReads() throws Exception {
+        runBenchmark("keystore key", new EncryptedFileCodec(aesCrypto));
+    }
+
+    @Test
+    public void benchmarkDerivedKeyReads() throws Exception {
+        EncryptedFileCodec codec = new EncryptedFileCodec(aesCrypto);
+        codec.setKeyHierarchy(new KeyHierarchy(context, aesCrypto, "benchmark"));
+        runBenchmark("derived key", codec);
+    }
+
+    private void runBenchmark(String name, EncryptedFileCodec codec) throws Exception {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        for (int size : NOTE_SIZES) {
+            String content = createContent(size);
+            OutputStream out = codec.encryptStream(FILE_NAME, new AtomicFileWriter(AtomicFileWriter.DurabilityMode.SYNC).openForWrite(file));
+            out.write(content.getBytes(UTF8));
+            out.close();
+
+            int iterations = Math.max(3, (int) (10 * 1024 * 1024L / size));
+            iterations = Math.min(iterations, 200);
+
+            //warm up both paths, and make sure they return the same content
+            assertEquals(content, readWithStream(codec, file));
+            assertEquals(content, readWithBuffer(codec, file));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                readWithStream(codec, file);
+            }
+            long streamTime = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                readWithBuffer(codec, file);
+            }
+            long bufferTime = (System.nanoTime() - start) / iterations;
+
+            Log.i(TAG, String.format("%s, %d bytes: stream %d us/read, buffer %d us/read", name, size, streamTime / 1000, bufferTime / 1000));
+        }
+    }
+
+    private String readWithStream(EncryptedFileCodec codec, File file) throws Exception {
+        InputStream in = codec.decryptStream(FILE_NAME, new FileInputStream(file));
+        try {
+            return StreamUtils.readStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String readWithBuffer(EncryptedFileCodec codec, File file) throws Exception {
+        return UTF8.decode(codec.decryptFile(FILE_NAME, file)).toString();
+    }
+
+    private String createContent(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+}
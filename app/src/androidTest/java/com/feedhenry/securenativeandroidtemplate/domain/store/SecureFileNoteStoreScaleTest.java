@@ -0,0 +1,113 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.AesCrypto;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyHierarchy;
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Create, list and delete a large number of notes, and write the latency of each operation to logcat with the "NoteStoreScale" tag.
+ * The number of notes is 100000 by default, and can be changed with the "noteCount" instrumentation argument, e.g.
+ * -e noteCount 10000
+ */
+@LargeTest
+public class SecureFileNoteStoreScaleTest {
+
+    private static final String TAG = "NoteStoreScale";
+    private static final int DEFAULT_NOTE_COUNT = 100000;
+
+    @Inject
+    Context context;
+
+    @Inject
+    AesCrypto aesCrypto;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+        SecureFileNoteStoreTest.removeFiles(this.context);
+    }
+
+    @After
+    public void teardown() {
+        SecureFileNoteStoreTest.removeFiles(this.context);
+    }
+
+    @Test
+    public void testManyNotes() throws Exception {
+        int noteCount = getNoteCount();
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto, AtomicFileWriter.DurabilityMode.GROUP_COMMIT);
+        //a keystore key per note would make the key store the bottleneck
+        store.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "scale"));
+
+        Note[] notes = new Note[noteCount];
+        long[] createTimes = new long[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            long start = System.nanoTime();
+            notes[i] = store.createNote(new Note("note " + i, "content of note " + i));
+            createTimes[i] = System.nanoTime() - start;
+        }
+        logLatency("create", createTimes);
+
+        long start = System.nanoTime();
+        List<Note> listed = store.listNotes();
+        long listTime = System.nanoTime() - start;
+        assertEquals(noteCount, listed.size());
+        Log.i(TAG, String.format("list %d notes: %d ms", noteCount, listTime / 1000000));
+
+        //the writes of the last batch only replace their files once they are synced
+        store.sync();
+        //the metadata has to be rebuilt from the snapshot and the journal
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto, AtomicFileWriter.DurabilityMode.GROUP_COMMIT);
+        reopened.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "scale"));
+        start = System.nanoTime();
+        assertEquals(noteCount, reopened.listNotes().size());
+        Log.i(TAG, String.format("reopen and list %d notes: %d ms", noteCount, (System.nanoTime() - start) / 1000000));
+
+        long[] deleteTimes = new long[noteCount];
+        for (int i = 0; i < noteCount; i++) {
+            start = System.nanoTime();
+            reopened.deleteNote(notes[i]);
+            deleteTimes[i] = System.nanoTime() - start;
+        }
+        reopened.sync();
+        logLatency("delete", deleteTimes);
+        assertEquals(0, reopened.listNotes().size());
+    }
+
+    private int getNoteCount() {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String noteCount = arguments == null ? null : arguments.getString("noteCount");
+        return noteCount == null ? DEFAULT_NOTE_COUNT : Integer.parseInt(noteCount);
+    }
+
+    private void logLatency(String operation, long[] times) {
+        long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+        Log.i(TAG, String.format("%s %d notes: avg %d us, p50 %d us, p99 %d us, max %d us", operation, sorted.length,
+                total / sorted.length / 1000, sorted[sorted.length / 2] / 1000,
+                sorted[(int) (sorted.length * 0.99)] / 1000, sorted[sorted.length - 1] / 1000));
+    }
+}
@@ -4,15 +4,41 @@ import android.content.Context;
 import android.support.test.InstrumentationRegistry;
 
 import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.AesCrypto;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyHierarchy;
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 
 import javax.inject.Inject;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
 /**
  * Created by weili on 25/09/2017.
  */
@@ -21,6 +47,9 @@ public class SecureFileNoteStoreTest extends NoteStoreTestBase {
     @Inject
     Context context;
 
+    @Inject
+    AesCrypto aesCrypto;
+
     @Inject
     SecureFileNoteStore secureFileNoteStore;
 
@@ -41,14 +70,438 @@ public class SecureFileNoteStoreTest extends NoteStoreTestBase {
         noteCRUDL(this.secureFileNoteStore);
     }
 
+    @Test
+    public void testMetadataJournalReplay() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note kept = store.createNote(new Note("kept", "this note is kept"));
+        Note removed = store.createNote(new Note("removed", "this note is removed"));
+        kept.setTitle("keptUpdated");
+        store.updateNote(kept);
+        store.deleteNote(removed);
+
+        //a new instance has to rebuild the metadata from the journal
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        List<Note> notes = reopened.listNotes();
+        assertEquals(1, notes.size());
+        assertEquals("keptUpdated", notes.get(0).getTitle());
+        assertNotNull(reopened.readNote(kept.getId()));
+        assertNull(reopened.readNote(removed.getId()));
+    }
+
+    @Test
+    public void testMetadataJournalDropsTornRecord() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note kept = store.createNote(new Note("kept", "this note is kept"));
+        File journal = new File(this.context.getFilesDir(), "notes_meta.journal");
+        long validLength = journal.length();
+        //the last record is only partly written
+        appendRecord(journal, 64, new byte[32]);
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        assertEquals(1, reopened.listNotes().size());
+        assertEquals(validLength, journal.length());
+
+        //the file was extended, but the content of the last record never reached the storage
+        appendRecord(journal, 64, new byte[64]);
+        reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        List<Note> notes = reopened.listNotes();
+        assertEquals(1, notes.size());
+        assertEquals(kept.getId(), notes.get(0).getId());
+        assertEquals(validLength, journal.length());
+    }
+
+    @Test
+    public void testMetadataJournalKeepsCorruptedRecords() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        store.createNote(new Note("first", "the first note"));
+        File journal = new File(this.context.getFilesDir(), "notes_meta.journal");
+        long firstRecordEnd = journal.length();
+        store.createNote(new Note("second", "the second note"));
+        //corrupt the first record, which is followed by a valid one, so it can't be a torn write
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.seek(firstRecordEnd - 1);
+            int last = raf.read();
+            raf.seek(firstRecordEnd - 1);
+            raf.write(last ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        long journalLength = journal.length();
+
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        try {
+            reopened.listNotes();
+            fail("the corrupted record should not be dropped");
+        } catch (GeneralSecurityException expected) {
+            //expected
+        }
+        assertEquals(journalLength, journal.length());
+    }
+
+    @Test
+    public void testFailedJournalAppendIsRolledBack() throws Exception {
+        File journalFile = new File(this.context.getFilesDir(), "notes_meta.journal");
+        final boolean[] failNextAppend = {false};
+        AtomicFileWriter failingWriter = new AtomicFileWriter(AtomicFileWriter.DurabilityMode.SYNC) {
+            @Override
+            public void commitAppend(File file, FileOutputStream out) throws IOException {
+                if (failNextAppend[0]) {
+                    failNextAppend[0] = false;
+                    //part of the next write reached the file before the failure
+                    out.write(new byte[16]);
+                    throw new IOException("no space left on device");
+                }
+                super.commitAppend(file, out);
+            }
+        };
+        MetadataJournal journal = new MetadataJournal(new EncryptedFileCodec(this.aesCrypto), "notes_meta.json",
+                journalFile, Long.MAX_VALUE, failingWriter);
+        journal.replay(new NoteMetadataIndex());
+        Note first = new Note("first", "saved before the failure");
+        Note failed = new Note("failed", "its record fails");
+        Note second = new Note("second", "saved after the failure");
+        journal.appendPuts(Collections.singletonList(first));
+        long validLength = journalFile.length();
+        failNextAppend[0] = true;
+        try {
+            journal.appendPuts(Collections.singletonList(failed));
+            fail("the append should fail");
+        } catch (IOException expected) {
+            //expected
+        }
+        assertEquals(validLength, journalFile.length());
+        journal.appendPuts(Collections.singletonList(second));
+
+        NoteMetadataIndex replayed = new NoteMetadataIndex();
+        new MetadataJournal(new EncryptedFileCodec(this.aesCrypto), "notes_meta.json",
+                journalFile, Long.MAX_VALUE, new AtomicFileWriter(AtomicFileWriter.DurabilityMode.SYNC)).replay(replayed);
+        assertTrue(replayed.contains(first.getId()));
+        assertFalse(replayed.contains(failed.getId()));
+        assertTrue(replayed.contains(second.getId()));
+    }
+
+    private static void appendRecord(File journal, int recordLength, byte[] content) throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true));
+        try {
+            out.writeInt(recordLength);
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        notePages(this.secureFileNoteStore);
+    }
+
+    @Test
+    public void testPagesIncludeQueuedWrites() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note saved = store.createNote(new Note(UUID.randomUUID().toString(), "saved", "content", 2000));
+        Note deleted = store.createNote(new Note(UUID.randomUUID().toString(), "deleted", "content", 3000));
+        store.setWriteBehindQueueSize(16);
+        Note queued = store.createNote(new Note(UUID.randomUUID().toString(), "queued", "content", 2500));
+        store.deleteNote(deleted);
+
+        List<Note> page = store.listNotes(null, 2);
+        assertEquals(2, page.size());
+        assertEquals(queued.getId(), page.get(0).getId());
+        assertEquals(saved.getId(), page.get(1).getId());
+        store.flush();
+        assertEquals(0, store.listNotes(PageCursor.after(page.get(1)), 2).size());
+    }
+
+    @Test
+    public void testSearchTitles() throws Exception {
+        Note shopping = this.secureFileNoteStore.createNote(new Note("Shopping list", "milk and eggs"));
+        Note shop = this.secureFileNoteStore.createNote(new Note("Shop opening times", "shop"));
+        this.secureFileNoteStore.createNote(new Note("Weekend", "go shopping"));
+
+        List<NoteSearchResult> results = this.secureFileNoteStore.searchNotes("shop", 10);
+        assertEquals(2, results.size());
+        List<String> ids = new ArrayList<String>();
+        for (NoteSearchResult result : results) {
+            ids.add(result.getNoteId());
+        }
+        assertTrue(ids.contains(shopping.getId()));
+        assertTrue(ids.contains(shop.getId()));
+        //the content is not searched
+        assertEquals(0, this.secureFileNoteStore.searchNotes("milk", 10).size());
+        assertEquals(1, this.secureFileNoteStore.searchNotes("shop list", 10).size());
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        store.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        noteBatchCRUD(store, 100);
+
+        //each batch is a single journal record, which has to be replayed as a whole
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        reopened.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        List<Note> notes = reopened.listNotes();
+        assertEquals(1, notes.size());
+        assertEquals("batch note 0 updated", notes.get(0).getTitle());
+    }
+
+    @Test
+    public void testKeyHierarchy() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        store.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        noteCRUDL(store);
+    }
+
+    @Test
+    public void testKeyHierarchyReadsExistingNotes() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note existing = store.createNote(new Note("existing", "saved with its own keystore key"));
+
+        SecureFileNoteStore derivedKeyStore = new SecureFileNoteStore(this.context, this.aesCrypto);
+        derivedKeyStore.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        Note readNote = derivedKeyStore.readNote(existing.getId());
+        assertEquals(existing.getContent(), readNote.getContent());
+
+        //once updated, the note is encrypted with a derived key
+        existing.setContent("saved with a derived key");
+        derivedKeyStore.updateNote(existing);
+        readNote = derivedKeyStore.readNote(existing.getId());
+        assertEquals(existing.getContent(), readNote.getContent());
+        derivedKeyStore.deleteNote(existing);
+        assertNull(derivedKeyStore.readNote(existing.getId()));
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        store.setWriteBehindQueueSize(4);
+        noteCRUDL(store);
+
+        Note note = store.createNote(new Note("draft", "v0"));
+        for (int i = 1; i <= 20; i++) {
+            note.setContent("v" + i);
+            store.updateNote(note);
+        }
+        //reads include the queued writes
+        assertEquals("v20", store.readNote(note.getId()).getContent());
+        assertEquals(1, store.listNotes().size());
+        store.flush();
+
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        assertEquals("v20", reopened.readNote(note.getId()).getContent());
+
+        store.deleteNote(note);
+        assertNull(store.readNote(note.getId()));
+        assertEquals(0, store.count());
+        store.flush();
+        assertEquals(0, new SecureFileNoteStore(this.context, this.aesCrypto).count());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        StringBuilder longContent = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longContent.append("a long note that compresses well ");
+        }
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note rawNote = store.createNote(new Note("raw", longContent.toString()));
+
+        store.setCompressor(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE));
+        Note compressedNote = store.createNote(new Note("compressed", longContent.toString()));
+        Note shortNote = store.createNote(new Note("short", "stored raw"));
+        store.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        Note derivedKeyNote = store.createNote(new Note("derived", longContent.toString()));
+
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        reopened.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        for (Note note : new Note[]{rawNote, compressedNote, derivedKeyNote}) {
+            assertEquals(longContent.toString(), reopened.readNote(note.getId()).getContent());
+        }
+        assertEquals("stored raw", reopened.readNote(shortNote.getId()).getContent());
+        //the compressed file is encrypted with its own keystore key, so the key is removed with it
+        reopened.deleteNote(compressedNote);
+        assertNull(reopened.readNote(compressedNote.getId()));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto, AtomicFileWriter.DurabilityMode.GROUP_COMMIT);
+        store.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        final int threadCount = 8;
+        final int operationsPerThread = 60;
+        //all the threads update these notes, the others are owned by a single thread
+        final Note[] sharedNotes = new Note[4];
+        for (int i = 0; i < sharedNotes.length; i++) {
+            sharedNotes[i] = store.createNote(new Note("shared", "shared"));
+        }
+
+        final List<Map<String, Note>> ownedNotes = new ArrayList<Map<String, Note>>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadId = t;
+            final Map<String, Note> notes = new HashMap<String, Note>();
+            ownedNotes.add(notes);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(threadId);
+                    try {
+                        start.await();
+                        for (int op = 0; op < operationsPerThread; op++) {
+                            String value = "thread" + threadId + "-op" + op;
+                            int action = random.nextInt(6);
+                            if (action == 0 || notes.isEmpty()) {
+                                Note note = store.createNote(new Note(value, value));
+                                notes.put(note.getId(), note);
+                            } else if (action == 1) {
+                                Note note = notes.values().iterator().next();
+                                store.deleteNote(note);
+                                notes.remove(note.getId());
+                            } else if (action == 2) {
+                                Note note = notes.values().iterator().next();
+                                note.setTitle(value);
+                                note.setContent(value);
+                                store.updateNote(note);
+                            } else if (action == 3) {
+                                Note shared = sharedNotes[random.nextInt(sharedNotes.length)];
+                                store.updateNote(new Note(shared.getId(), value, value, shared.getCreatedAt().getTime()));
+                            } else if (action == 4) {
+                                //the title and content are always saved together, so a read must never mix two versions
+                                Note read = store.readNote(sharedNotes[random.nextInt(sharedNotes.length)].getId());
+                                assertEquals(read.getTitle(), read.getContent());
+                            } else {
+                                store.listNotes();
+                                store.count();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+
+        Map<String, Note> expected = new HashMap<String, Note>();
+        for (Map<String, Note> notes : ownedNotes) {
+            expected.putAll(notes);
+        }
+        for (Note shared : sharedNotes) {
+            expected.put(shared.getId(), shared);
+        }
+        store.sync();
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        reopened.setKeyHierarchy(new KeyHierarchy(this.context, this.aesCrypto, "test"));
+        for (SecureFileNoteStore checkedStore : new SecureFileNoteStore[]{store, reopened}) {
+            List<Note> listed = checkedStore.listNotes();
+            assertEquals(expected.size(), listed.size());
+            assertEquals(expected.size(), checkedStore.count());
+            for (Note note : listed) {
+                assertTrue(expected.containsKey(note.getId()));
+                Note read = checkedStore.readNote(note.getId());
+                assertEquals(note.getTitle(), read.getTitle());
+                assertEquals(read.getTitle(), read.getContent());
+                if (!isShared(sharedNotes, note.getId())) {
+                    assertEquals(expected.get(note.getId()).getContent(), read.getContent());
+                }
+            }
+        }
+    }
+
+    private static boolean isShared(Note[] sharedNotes, String noteId) {
+        for (Note shared : sharedNotes) {
+            if (shared.getId().equals(noteId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testGroupCommitRecoversUnsyncedWrites() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto, AtomicFileWriter.DurabilityMode.GROUP_COMMIT);
+        Note synced = store.createNote(new Note("synced", "this note is synced"));
+        store.sync();
+        synced.setTitle("syncedUpdated");
+        store.updateNote(synced);
+        Note lost = store.createNote(new Note("lost", "this note is never synced"));
+        assertEquals("syncedUpdated", store.readNote(synced.getId()).getTitle());
+
+        //the app is stopped before the writes are synced: the journal lists them, but their files are never renamed into place.
+        //A new instance has to agree with the files
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto, AtomicFileWriter.DurabilityMode.GROUP_COMMIT);
+        List<Note> notes = reopened.listNotes();
+        assertEquals(1, notes.size());
+        for (Note note : notes) {
+            Note readNote = reopened.readNote(note.getId());
+            assertNotNull(readNote);
+            assertEquals(note.getTitle(), readNote.getTitle());
+        }
+        assertEquals("synced", notes.get(0).getTitle());
+        assertNull(reopened.readNote(lost.getId()));
+        for (File shard : new File(this.context.getFilesDir(), "notes").listFiles()) {
+            if (shard.isDirectory()) {
+                for (File file : shard.listFiles()) {
+                    assertFalse(file.getName().endsWith(".tmp"));
+                }
+            }
+        }
+
+        //the recovered metadata is journaled, so it is kept the next time too
+        SecureFileNoteStore reopenedAgain = new SecureFileNoteStore(this.context, this.aesCrypto);
+        assertEquals(1, reopenedAgain.listNotes().size());
+        assertEquals("synced", reopenedAgain.readNote(synced.getId()).getTitle());
+    }
+
+    @Test
+    public void testMigrateToShardedLayout() throws Exception {
+        SecureFileNoteStore store = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note note = store.createNote(new Note("flat", "saved in the files directory"));
+
+        //move the note back to where older versions saved it
+        File notesDir = new File(this.context.getFilesDir(), "notes");
+        File flatFile = new File(this.context.getFilesDir(), note.getId());
+        for (File shard : notesDir.listFiles()) {
+            File noteFile = new File(shard, note.getId());
+            if (noteFile.exists()) {
+                assertTrue(noteFile.renameTo(flatFile));
+            }
+        }
+        assertTrue(new File(notesDir, ".sharded").delete());
+
+        SecureFileNoteStore reopened = new SecureFileNoteStore(this.context, this.aesCrypto);
+        Note readNote = reopened.readNote(note.getId());
+        assertEquals(note.getContent(), readNote.getContent());
+        assertFalse(flatFile.exists());
+        reopened.deleteNote(note);
+        assertNull(reopened.readNote(note.getId()));
+    }
+
     public static void removeFiles(Context context) {
-        File testDir = context.getFilesDir();
-        if (testDir.exists()) {
-            File[] files = testDir.listFiles();
+        removeFiles(context.getFilesDir());
+    }
+
+    private static void removeFiles(File dir) {
+        if (dir.exists()) {
+            File[] files = dir.listFiles();
             for (File f : files) {
-                f.delete();
+                if (f.isDirectory()) {
+                    removeFiles(f);
+                } else {
+                    f.delete();
+                }
             }
-            testDir.delete();
+            dir.delete();
         }
     }
 }
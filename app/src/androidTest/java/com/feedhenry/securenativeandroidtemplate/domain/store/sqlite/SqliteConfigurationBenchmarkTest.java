@@ -0,0 +1,179 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.configurations.SqliteStoreConfiguration;
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Run the same note workload with different SQLCipher settings, to pick the settings for a class of devices.
+ * Each setting is changed on its own from the default configuration, so its effect can be told apart.
+ * The database is keyed with a password, so the time to open it includes the key derivation, which depends on kdf_iter.
+ * The results are written to logcat with the "SqliteConfigurationBenchmark" tag.
+ */
+@LargeTest
+public class SqliteConfigurationBenchmarkTest {
+
+    private static final String TAG = "SqliteConfigurationBenchmark";
+    private static final int NOTE_COUNT = 1000;
+    private static final int PAGE_SIZE = 20;
+    private static final int SEARCH_COUNT = 100;
+
+    @Inject
+    Context context;
+
+    @Inject
+    SqliteNoteStore sqliteStore;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+        //key the databases with a password
+        this.sqliteStore.sharedPreferences.edit().clear().commit();
+    }
+
+    @After
+    public void teardown() {
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void benchmarkConfigurations() throws Exception {
+        List<SqliteStoreConfiguration> configurations = new ArrayList<SqliteStoreConfiguration>();
+        configurations.add(new SqliteStoreConfiguration());
+        for (int pageSize : new int[]{4096, 16384}) {
+            SqliteStoreConfiguration configuration = new SqliteStoreConfiguration();
+            configuration.setCipherPageSize(pageSize);
+            configurations.add(configuration);
+        }
+        for (int cacheSize : new int[]{-512, -8000}) {
+            SqliteStoreConfiguration configuration = new SqliteStoreConfiguration();
+            configuration.setCacheSize(cacheSize);
+            configurations.add(configuration);
+        }
+        for (int kdfIter : new int[]{4000, 256000}) {
+            SqliteStoreConfiguration configuration = new SqliteStoreConfiguration();
+            configuration.setKdfIter(kdfIter);
+            configurations.add(configuration);
+        }
+        SqliteStoreConfiguration noHmac = new SqliteStoreConfiguration();
+        noHmac.setCipherUseHmac(false);
+        configurations.add(noHmac);
+        SqliteStoreConfiguration noMemorySecurity = new SqliteStoreConfiguration();
+        noMemorySecurity.setCipherMemorySecurity(false);
+        configurations.add(noMemorySecurity);
+        SqliteStoreConfiguration memoryTempStore = new SqliteStoreConfiguration();
+        memoryTempStore.setTempStore("MEMORY");
+        configurations.add(memoryTempStore);
+        for (String journalMode : new String[]{"DELETE", "TRUNCATE"}) {
+            SqliteStoreConfiguration configuration = new SqliteStoreConfiguration();
+            configuration.setJournalMode(journalMode);
+            configurations.add(configuration);
+        }
+
+        for (SqliteStoreConfiguration configuration : configurations) {
+            runWorkload(configuration);
+        }
+    }
+
+    private void runWorkload(SqliteStoreConfiguration configuration) throws Exception {
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+        SqliteNoteStore store = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        store.setConfiguration(configuration);
+        store.setCompressor(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE_FAST));
+        Log.i(TAG, configuration.toString());
+        try {
+            List<Note> notes = new ArrayList<Note>(NOTE_COUNT);
+            for (int i = 0; i < NOTE_COUNT; i++) {
+                notes.add(new Note("note " + i, noteContent(i)));
+            }
+            long start = System.nanoTime();
+            for (Note note : notes) {
+                store.createNote(note);
+            }
+            logOpsPerSecond("create", NOTE_COUNT, start);
+
+            store.close();
+            start = System.nanoTime();
+            assertEquals(NOTE_COUNT, store.count());
+            logOpsPerSecond("cold open", 1, start);
+
+            start = System.nanoTime();
+            int pageCount = 0;
+            PageCursor cursor = null;
+            List<Note> page;
+            do {
+                page = store.listNotes(cursor, PAGE_SIZE);
+                if (!page.isEmpty()) {
+                    cursor = PageCursor.after(page.get(page.size() - 1));
+                }
+                pageCount++;
+            } while (page.size() == PAGE_SIZE);
+            logOpsPerSecond("list page", pageCount, start);
+
+            start = System.nanoTime();
+            for (Note note : notes) {
+                store.readNote(note.getId());
+            }
+            logOpsPerSecond("read", NOTE_COUNT, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < SEARCH_COUNT; i++) {
+                store.searchNotes("note " + i, PAGE_SIZE);
+            }
+            logOpsPerSecond("search", SEARCH_COUNT, start);
+
+            start = System.nanoTime();
+            for (Note note : notes) {
+                note.setTitle(note.getTitle() + " updated");
+            }
+            store.updateNotes(notes);
+            logOpsPerSecond("batch update", NOTE_COUNT, start);
+
+            start = System.nanoTime();
+            for (Note note : notes) {
+                store.deleteNote(note);
+            }
+            logOpsPerSecond("delete", NOTE_COUNT, start);
+            assertEquals(0, store.count());
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A mix of short notes and long ones, which are compressed
+     */
+    private String noteContent(int index) {
+        StringBuilder content = new StringBuilder();
+        int sentences = index % 10 == 0 ? 100 : 3;
+        for (int i = 0; i < sentences; i++) {
+            content.append("Sentence ").append(i).append(" of the note number ").append(index).append(". ");
+        }
+        return content.toString();
+    }
+
+    private void logOpsPerSecond(String operation, int count, long start) {
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format("  %s: %d ops/sec (%d ops in %d ms)", operation, count * 1000000000L / Math.max(1, elapsed), count, elapsed / 1000000));
+    }
+}
@@ -0,0 +1,80 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compare the time it takes to open the database when it's keyed with a password, which SQLCipher runs its key derivation on,
+ * and with a raw key (see {@link SqliteNoteStore#setUseRawKey(boolean)}).
+ * Each open is a cold open: the store is closed, then opened again by its first query. The time includes decrypting the key from the preferences.
+ * The results are written to logcat with the "SqliteKeyBenchmark" tag.
+ */
+@LargeTest
+public class SqliteKeyBenchmarkTest {
+
+    private static final String TAG = "SqliteKeyBenchmark";
+    private static final int OPEN_COUNT = 10;
+
+    @Inject
+    Context context;
+
+    @Inject
+    SqliteNoteStore sqliteStore;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+        //start from a database keyed with a password
+        this.sqliteStore.sharedPreferences.edit().clear().commit();
+    }
+
+    @After
+    public void teardown() {
+        this.sqliteStore.close();
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void benchmarkColdOpen() throws Exception {
+        this.sqliteStore.createNote(new Note("title", "content"));
+        logColdOpen("password");
+
+        //rekey the database, which is not part of the measure
+        this.sqliteStore.close();
+        SqliteNoteStore rawKeyStore = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        rawKeyStore.setUseRawKey(true);
+        assertEquals(1, rawKeyStore.count());
+        rawKeyStore.close();
+
+        logColdOpen("raw key");
+    }
+
+    private void logColdOpen(String keyMode) throws Exception {
+        long total = 0;
+        long slowest = 0;
+        for (int i = 0; i < OPEN_COUNT; i++) {
+            this.sqliteStore.close();
+            long start = System.nanoTime();
+            assertEquals(1, this.sqliteStore.count());
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            slowest = Math.max(slowest, elapsed);
+        }
+        Log.i(TAG, String.format("%s: %d ms per open on average, %d ms at most (%d opens)", keyMode, total / OPEN_COUNT / 1000000, slowest / 1000000, OPEN_COUNT));
+    }
+}
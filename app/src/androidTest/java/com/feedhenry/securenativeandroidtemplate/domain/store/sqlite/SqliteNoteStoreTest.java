@@ -4,20 +4,34 @@ import android.content.Context;
 import android.support.test.InstrumentationRegistry;
 
 import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.configurations.SqliteStoreConfiguration;
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStore;
+import com.feedhenry.securenativeandroidtemplate.domain.store.NoteStoreException;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteStoreTestBase;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.DatabaseUtils;
+import net.sqlcipher.database.SQLiteDatabase;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 import javax.inject.Inject;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 public class SqliteNoteStoreTest extends NoteStoreTestBase {
 
@@ -36,6 +50,7 @@ public class SqliteNoteStoreTest extends NoteStoreTestBase {
 
     @After
     public void teardown() {
+        this.sqliteStore.close();
         cleardb();
     }
 
@@ -44,6 +59,418 @@ public class SqliteNoteStoreTest extends NoteStoreTestBase {
         noteCRUDL(this.sqliteStore);
     }
 
+    @Test
+    public void testPages() throws Exception {
+        notePages(this.sqliteStore);
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        //several transactions per batch
+        this.sqliteStore.setBatchChunkSize(16);
+        noteBatchCRUD(this.sqliteStore, 100);
+    }
+
+    @Test
+    public void testFailedBatchChunkIsRolledBack() throws Exception {
+        this.sqliteStore.setBatchChunkSize(2);
+        List<Note> batch = new ArrayList<Note>();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new Note("note " + i, "original"));
+        }
+        this.sqliteStore.createNotes(batch);
+        for (Note note : batch) {
+            note.setContent("updated");
+        }
+        //the update of a note that doesn't exist fails, in the second chunk
+        batch.add(new Note("missing", "updated"));
+        try {
+            this.sqliteStore.updateNotes(batch);
+            fail("the update of a missing note should fail");
+        } catch (NoteStoreException expected) {
+        }
+        //the first chunk is saved, the second one is rolled back
+        assertEquals("updated", this.sqliteStore.readNote(batch.get(1).getId()).getContent());
+        assertEquals("original", this.sqliteStore.readNote(batch.get(2).getId()).getContent());
+        assertEquals(3, this.sqliteStore.count());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        StringBuilder longContent = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longContent.append("a long note that compresses well ");
+        }
+        Note rawNote = this.sqliteStore.createNote(new Note("raw", longContent.toString()));
+
+        this.sqliteStore.setCompressor(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE_FAST));
+        Note shortNote = this.sqliteStore.createNote(new Note("short", "stored as text"));
+        Note compressedNote = this.sqliteStore.createNote(new Note("compressed", longContent.toString()));
+
+        //notes saved with and without compression can be read
+        assertEquals(longContent.toString(), this.sqliteStore.readNote(rawNote.getId()).getContent());
+        assertEquals("stored as text", this.sqliteStore.readNote(shortNote.getId()).getContent());
+        assertEquals(longContent.toString(), this.sqliteStore.readNote(compressedNote.getId()).getContent());
+        this.sqliteStore.setCompressor(null);
+        assertEquals(longContent.toString(), this.sqliteStore.readNote(compressedNote.getId()).getContent());
+    }
+
+    @Test
+    public void testQueriesUseIndexes() throws Exception {
+        SQLiteDatabase db = this.sqliteStore.getWritableDatabase();
+        String byUuid = "SELECT * FROM " + NoteContract.NoteEntry.TABLE_NAME + " WHERE " + SqliteNoteStore.SELECTION_BY_UUID;
+        assertTrue(explainQueryPlan(db, byUuid, "id").contains(NoteDbHelper.INDEX_UUID));
+
+        String list = "SELECT " + NoteContract.NoteEntry.COLUMN_UUID + " FROM " + NoteContract.NoteEntry.TABLE_NAME
+                + " ORDER BY " + SqliteNoteStore.SORT_ORDER_BY_CREATED_AT;
+        String listPlan = explainQueryPlan(db, list);
+        assertTrue(listPlan.contains(NoteDbHelper.INDEX_CREATED_AT_UUID));
+        assertFalse(listPlan.contains("TEMP B-TREE"));
+
+        //the pages only read the note table, and the body of a note is read by its id
+        assertFalse(explainQueryPlan(db, SqliteNoteStore.SQL_FIRST_PAGE, "20").contains(NoteContract.NoteBodyEntry.TABLE_NAME));
+        assertTrue(explainQueryPlan(db, NoteStatements.SQL_READ, "id").contains("INTEGER PRIMARY KEY"));
+
+        //the next page is a range of the index, not a scan
+        String nextPagePlan = explainQueryPlan(db, SqliteNoteStore.SQL_NEXT_PAGE, "1000", "id", "20");
+        assertTrue(nextPagePlan.contains("SEARCH"));
+        assertTrue(nextPagePlan.contains(NoteDbHelper.INDEX_CREATED_AT_UUID));
+        assertFalse(nextPagePlan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void testReadQueryIsCompiledOnce() throws Exception {
+        Note note = this.sqliteStore.createNote(new Note("title", "content"));
+        this.sqliteStore.readNote(note.getId());
+        ReadConnectionPool pool = this.sqliteStore.getReadPool();
+        SQLiteDatabase db = pool.acquire();
+        try {
+            assertTrue(db.isInCompiledSqlCache(NoteStatements.SQL_READ));
+        } finally {
+            pool.release(db);
+        }
+        assertEquals("content", this.sqliteStore.readNote(note.getId()).getContent());
+    }
+
+    @Test
+    public void testWriteAheadLogging() throws Exception {
+        assertEquals("wal", queryPragma(this.sqliteStore.getWritableDatabase(), "journal_mode"));
+    }
+
+    @Test
+    public void testConfiguration() throws Exception {
+        SqliteStoreConfiguration configuration = new SqliteStoreConfiguration();
+        configuration.setCipherPageSize(4096);
+        configuration.setCacheSize(-1000);
+        configuration.setTempStore("MEMORY");
+        configuration.setJournalMode("TRUNCATE");
+        this.sqliteStore.setConfiguration(configuration);
+        noteCRUDL(this.sqliteStore);
+
+        SQLiteDatabase db = this.sqliteStore.getWritableDatabase();
+        assertEquals("4096", queryPragma(db, "cipher_page_size"));
+        assertEquals("-1000", queryPragma(db, "cache_size"));
+        //2 is MEMORY
+        assertEquals("2", queryPragma(db, "temp_store"));
+        assertEquals("truncate", queryPragma(db, "journal_mode"));
+        //the read connections have the same settings
+        ReadConnectionPool pool = this.sqliteStore.getReadPool();
+        SQLiteDatabase readDb = pool.acquire();
+        try {
+            assertEquals("-1000", queryPragma(readDb, "cache_size"));
+        } finally {
+            pool.release(readDb);
+        }
+
+        //the database can only be opened with the same cipher settings
+        this.sqliteStore.close();
+        SqliteNoteStore otherStore = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        try {
+            otherStore.count();
+            fail("the database was opened with the default page size");
+        } catch (Exception e) {
+            //expected
+        } finally {
+            otherStore.close();
+        }
+    }
+
+    @Test
+    public void testReadsDoNotWaitForWrites() throws Exception {
+        Note note = this.sqliteStore.createNote(new Note("title", "content"));
+        SQLiteDatabase db = this.sqliteStore.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            this.sqliteStore.updateNote(new Note(note.getId(), "changed", "content", note.getCreatedAt().getTime()));
+            //the read connections see the last committed state
+            assertEquals("title", this.sqliteStore.readNote(note.getId()).getTitle());
+            assertEquals(1, this.sqliteStore.count());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        assertEquals("changed", this.sqliteStore.readNote(note.getId()).getTitle());
+    }
+
+    @Test
+    public void testConcurrentDeletesAndBatches() throws Exception {
+        final List<Note> deleted = new ArrayList<Note>();
+        final List<Note> updated = new ArrayList<Note>();
+        for (int i = 0; i < 50; i++) {
+            deleted.add(new Note("deleted" + i, "content"));
+            updated.add(new Note("updated" + i, "content"));
+        }
+        this.sqliteStore.createNotes(deleted);
+        this.sqliteStore.createNotes(updated);
+        this.sqliteStore.setBatchChunkSize(5);
+
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread deletes = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Note note : deleted) {
+                        sqliteStore.deleteNote(note);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        });
+        Thread batches = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        sqliteStore.updateNotes(updated);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        });
+        deletes.start();
+        batches.start();
+        deletes.join(30000);
+        batches.join(30000);
+        assertFalse("the writes are deadlocked", deletes.isAlive() || batches.isAlive());
+        assertTrue(errors.isEmpty());
+        assertEquals(updated.size(), this.sqliteStore.count());
+    }
+
+    @Test
+    public void testRawKey() throws Exception {
+        this.sqliteStore.setUseRawKey(true);
+        noteCRUDL(this.sqliteStore);
+        Note note = this.sqliteStore.createNote(new Note("title", "content"));
+        this.sqliteStore.close();
+
+        //the database keeps its raw key, even for a store that isn't set to use one
+        SqliteNoteStore otherStore = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        try {
+            assertEquals("content", otherStore.readNote(note.getId()).getContent());
+        } finally {
+            otherStore.close();
+        }
+    }
+
+    @Test
+    public void testRekeyToRawKey() throws Exception {
+        //start from a database keyed with a password
+        this.sqliteStore.sharedPreferences.edit().clear().commit();
+        Note note = this.sqliteStore.createNote(new Note("title", "content"));
+        this.sqliteStore.close();
+
+        SqliteNoteStore rawKeyStore = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        rawKeyStore.setUseRawKey(true);
+        try {
+            assertEquals("content", rawKeyStore.readNote(note.getId()).getContent());
+            assertEquals(1, rawKeyStore.searchNotes("title", 10).size());
+            rawKeyStore.createNote(new Note("second", "content"));
+        } finally {
+            rawKeyStore.close();
+        }
+        //the password is forgotten, so the database can only be opened with the raw key
+        assertEquals(1, this.sqliteStore.sharedPreferences.getAll().size());
+        assertEquals(2, this.sqliteStore.count());
+    }
+
+    @Test
+    public void testFailedRekeyKeepsPassword() throws Exception {
+        //start from a database keyed with a password
+        this.sqliteStore.sharedPreferences.edit().clear().commit();
+        Note note = this.sqliteStore.createNote(new Note("title", "content"));
+        this.sqliteStore.close();
+        String password = this.sqliteStore.sharedPreferences.getString("dbkey", null);
+        assertNotNull(password);
+
+        //the database can't be opened at all, whatever the key
+        File dbFile = this.context.getDatabasePath(NoteDbHelper.DATABASE_NAME);
+        File movedFile = new File(dbFile.getPath() + ".moved");
+        assertTrue(dbFile.renameTo(movedFile));
+        assertTrue(dbFile.mkdir());
+        SqliteNoteStore rawKeyStore = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        rawKeyStore.setUseRawKey(true);
+        try {
+            rawKeyStore.readNote(note.getId());
+            fail("the database should not open");
+        } catch (Exception expected) {
+            //expected
+        } finally {
+            rawKeyStore.close();
+        }
+        assertEquals(password, this.sqliteStore.sharedPreferences.getString("dbkey", null));
+
+        //once the database can be opened again, it is rekeyed with the password that was kept
+        assertTrue(dbFile.delete());
+        assertTrue(movedFile.renameTo(dbFile));
+        rawKeyStore = new SqliteNoteStore(this.context, this.sqliteStore.rsaCrypto);
+        rawKeyStore.setUseRawKey(true);
+        try {
+            assertEquals("content", rawKeyStore.readNote(note.getId()).getContent());
+        } finally {
+            rawKeyStore.close();
+        }
+        assertFalse(this.sqliteStore.sharedPreferences.contains("dbkey"));
+    }
+
+    @Test
+    public void testCloseAndReopen() throws Exception {
+        Note note = this.sqliteStore.createNote(new Note("title", "content"));
+        this.sqliteStore.close();
+        assertEquals("content", this.sqliteStore.readNote(note.getId()).getContent());
+        this.sqliteStore.deleteNote(note);
+        assertEquals(0, this.sqliteStore.count());
+    }
+
+    @Test
+    public void testCountIsKeptByTriggers() throws Exception {
+        List<Note> notes = new ArrayList<Note>();
+        for (int i = 0; i < 30; i++) {
+            notes.add(new Note("note " + i, "content " + i));
+        }
+        this.sqliteStore.createNotes(notes);
+        this.sqliteStore.updateNotes(notes);
+        this.sqliteStore.deleteNotes(notes.subList(0, 10));
+        this.sqliteStore.deleteNote(notes.get(10));
+        SQLiteDatabase db = this.sqliteStore.getWritableDatabase();
+        assertEquals(19, this.sqliteStore.count());
+        assertEquals(DatabaseUtils.queryNumEntries(db, NoteContract.NoteEntry.TABLE_NAME), this.sqliteStore.count());
+    }
+
+    @Test
+    public void testTimestampsAreNotTruncated() throws Exception {
+        //a time in milliseconds that doesn't fit in 32 bits
+        long createdAt = 1506000000123L;
+        Note note = this.sqliteStore.createNote(new Note(UUID.randomUUID().toString(), "title", "content", createdAt));
+        assertEquals(createdAt, this.sqliteStore.readNote(note.getId()).getCreatedAt().getTime());
+        assertEquals(createdAt, this.sqliteStore.listNotes().get(0).getCreatedAt().getTime());
+    }
+
+    @Test
+    public void testUpgradeFromVersion1() throws Exception {
+        SQLiteDatabase db = this.sqliteStore.getWritableDatabase();
+        //go back to the version 1 schema, which had the content in the note table, allowed duplicated uuids and had no search or count table
+        db.execSQL("DROP TABLE " + NoteContract.NoteEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE " + NoteContract.NoteBodyEntry.TABLE_NAME);
+        db.execSQL("DROP TABLE " + NoteDbHelper.FTS_TABLE_NAME);
+        db.execSQL("DROP TABLE " + NoteDbHelper.COUNT_TABLE_NAME);
+        db.execSQL(String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s INTEGER, %s TEXT, %s TEXT, %s TEXT)",
+                NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_CREATED_AT,
+                NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT));
+        Note note = new Note("old", "old content");
+        String insertVersion1 = String.format("INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)", NoteContract.NoteEntry.TABLE_NAME,
+                NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, NoteContract.NoteEntry.COLUMN_CREATED_AT);
+        db.execSQL(insertVersion1, new Object[]{note.getId(), "old", "old content", note.getCreatedAt().getTime()});
+        db.execSQL(insertVersion1, new Object[]{note.getId(), "new", "new content", note.getCreatedAt().getTime()});
+        db.setVersion(1);
+
+        new NoteDbHelper(this.context).onUpgrade(db, 1, NoteDbHelper.DATABASE_VERSION);
+        db.setVersion(NoteDbHelper.DATABASE_VERSION);
+        assertEquals(1, this.sqliteStore.count());
+        Note upgradedNote = this.sqliteStore.readNote(note.getId());
+        assertEquals("new", upgradedNote.getTitle());
+        //the content was moved to its own table
+        assertEquals("new content", upgradedNote.getContent());
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, NoteContract.NoteBodyEntry.TABLE_NAME));
+        assertTrue(explainQueryPlan(db, "SELECT * FROM " + NoteContract.NoteEntry.TABLE_NAME + " WHERE " + SqliteNoteStore.SELECTION_BY_UUID, "id")
+                .contains(NoteDbHelper.INDEX_UUID));
+        assertTrue(explainQueryPlan(db, SqliteNoteStore.SQL_FIRST_PAGE, "20").contains(NoteDbHelper.INDEX_CREATED_AT_UUID));
+        //the existing note is indexed for search, and the triggers keep the index in sync
+        assertEquals(1, this.sqliteStore.searchNotes("new content", 10).size());
+        upgradedNote.setContent("changed");
+        this.sqliteStore.updateNote(upgradedNote);
+        assertEquals(1, this.sqliteStore.searchNotes("changed", 10).size());
+        this.sqliteStore.deleteNote(upgradedNote);
+        assertEquals(0, this.sqliteStore.searchNotes("new", 10).size());
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, NoteContract.NoteBodyEntry.TABLE_NAME));
+        assertEquals(0, this.sqliteStore.count());
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        StringBuilder longContent = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longContent.append("a long note about the garden ");
+        }
+        this.sqliteStore.setCompressor(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE_FAST));
+        Note titleMatch = this.sqliteStore.createNote(new Note("Shopping list", "milk and eggs"));
+        Note contentMatch = this.sqliteStore.createNote(new Note("Weekend", "go shopping for the garden"));
+        //saved compressed, so its content is indexed by the store rather than the triggers
+        Note compressedMatch = this.sqliteStore.createNote(new Note("Plants", longContent.toString()));
+        this.sqliteStore.createNote(new Note("Other", "nothing to see"));
+
+        List<NoteSearchResult> results = this.sqliteStore.searchNotes("shop", 10);
+        assertEquals(2, results.size());
+        assertEquals(titleMatch.getId(), results.get(0).getNoteId());
+        assertEquals(contentMatch.getId(), results.get(1).getNoteId());
+        assertTrue(results.get(1).getSnippet().contains("shopping"));
+
+        List<NoteSearchResult> gardenResults = this.sqliteStore.searchNotes("GARDEN", 1);
+        assertEquals(1, gardenResults.size());
+        assertEquals(compressedMatch.getId(), gardenResults.get(0).getNoteId());
+        //all the words have to match
+        assertEquals(1, this.sqliteStore.searchNotes("garden shop", 10).size());
+
+        //updates and deletes are applied to the index
+        titleMatch.setTitle("Groceries");
+        this.sqliteStore.updateNote(titleMatch);
+        this.sqliteStore.deleteNote(contentMatch);
+        assertEquals(0, this.sqliteStore.searchNotes("shopping", 10).size());
+        assertEquals(0, this.sqliteStore.searchNotes("\"*", 10).size());
+    }
+
+    /**
+     * @return the details of all the steps of the query plan
+     */
+    private String explainQueryPlan(SQLiteDatabase db, String sql, String... args) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailIndex)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    private String queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, new String[0]);
+        try {
+            assertTrue(cursor.moveToNext());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void cleardb() {
         this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
     }
@@ -0,0 +1,155 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.di.SecureTestApplication;
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.inject.Inject;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compare the throughput of the note CRUD operations using {@link ContentValues} and a new query for each call (how the store used to do it)
+ * with the compiled statements used by {@link SqliteNoteStore}.
+ * The results are written to logcat with the "SqliteStatementBenchmark" tag.
+ */
+@LargeTest
+public class SqliteStatementBenchmarkTest {
+
+    private static final String TAG = "SqliteStatementBenchmark";
+    private static final int NOTE_COUNT = 3000;
+
+    @Inject
+    Context context;
+
+    @Inject
+    SqliteNoteStore sqliteStore;
+
+    @Before
+    public void setup() {
+        SecureTestApplication application = (SecureTestApplication) InstrumentationRegistry.getTargetContext().getApplicationContext();
+        application.getComponent().inject(this);
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void teardown() {
+        this.context.deleteDatabase(NoteDbHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void benchmarkCrud() throws Exception {
+        SQLiteDatabase db = this.sqliteStore.getWritableDatabase();
+        Note[] notes = new Note[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new Note("note " + i, "content of note " + i);
+        }
+
+        //the old way
+        long start = System.nanoTime();
+        for (Note note : notes) {
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put(NoteContract.NoteEntry.COLUMN_UUID, note.getId());
+                values.put(NoteContract.NoteEntry.COLUMN_NAME_TITLE, note.getTitle());
+                values.put(NoteContract.NoteEntry.COLUMN_CREATED_AT, note.getCreatedAt().getTime());
+                long id = db.insert(NoteContract.NoteEntry.TABLE_NAME, null, values);
+                ContentValues bodyValues = new ContentValues();
+                bodyValues.put(NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, id);
+                bodyValues.put(NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT, note.getContent());
+                db.insert(NoteContract.NoteBodyEntry.TABLE_NAME, null, bodyValues);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        logOpsPerSecond("insert with ContentValues", start);
+
+        start = System.nanoTime();
+        String bodySelection = NoteContract.NoteBodyEntry.COLUMN_NOTE_ID + " = (SELECT " + NoteContract.NoteEntry._ID + " FROM "
+                + NoteContract.NoteEntry.TABLE_NAME + " WHERE " + SqliteNoteStore.SELECTION_BY_UUID + ")";
+        for (Note note : notes) {
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                values.put(NoteContract.NoteEntry.COLUMN_NAME_TITLE, note.getTitle() + " updated");
+                db.update(NoteContract.NoteEntry.TABLE_NAME, values, SqliteNoteStore.SELECTION_BY_UUID, new String[]{note.getId()});
+                ContentValues bodyValues = new ContentValues();
+                bodyValues.put(NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT, note.getContent());
+                db.update(NoteContract.NoteBodyEntry.TABLE_NAME, bodyValues, bodySelection, new String[]{note.getId()});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        logOpsPerSecond("update with ContentValues", start);
+
+        String[] projections = {
+                "n." + NoteContract.NoteEntry.COLUMN_UUID,
+                "n." + NoteContract.NoteEntry.COLUMN_CREATED_AT,
+                "n." + NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+                "b." + NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT
+        };
+        String tables = NoteContract.NoteEntry.TABLE_NAME + " n LEFT JOIN " + NoteContract.NoteBodyEntry.TABLE_NAME + " b ON b."
+                + NoteContract.NoteBodyEntry.COLUMN_NOTE_ID + " = n." + NoteContract.NoteEntry._ID;
+        start = System.nanoTime();
+        for (Note note : notes) {
+            Cursor cursor = db.query(tables, projections, "n." + SqliteNoteStore.SELECTION_BY_UUID, new String[]{note.getId()}, null, null, null);
+            assertEquals(1, cursor.getCount());
+            cursor.close();
+        }
+        logOpsPerSecond("read with query", start);
+
+        start = System.nanoTime();
+        for (Note note : notes) {
+            db.delete(NoteContract.NoteEntry.TABLE_NAME, SqliteNoteStore.SELECTION_BY_UUID, new String[]{note.getId()});
+        }
+        logOpsPerSecond("delete with ContentValues", start);
+        assertEquals(0, this.sqliteStore.count());
+
+        //the compiled statements
+        start = System.nanoTime();
+        for (Note note : notes) {
+            this.sqliteStore.createNote(note);
+        }
+        logOpsPerSecond("insert with statement", start);
+
+        start = System.nanoTime();
+        for (Note note : notes) {
+            note.setTitle(note.getTitle() + " updated");
+            this.sqliteStore.updateNote(note);
+        }
+        logOpsPerSecond("update with statement", start);
+
+        start = System.nanoTime();
+        for (Note note : notes) {
+            this.sqliteStore.readNote(note.getId());
+        }
+        logOpsPerSecond("read with cached query", start);
+
+        start = System.nanoTime();
+        for (Note note : notes) {
+            this.sqliteStore.deleteNote(note);
+        }
+        logOpsPerSecond("delete with statement", start);
+        assertEquals(0, this.sqliteStore.count());
+    }
+
+    private void logOpsPerSecond(String operation, long start) {
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format("%s: %d ops/sec (%d rows in %d ms)", operation, NOTE_COUNT * 1000000000L / elapsed, NOTE_COUNT, elapsed / 1000000));
+    }
+}
@@ -0,0 +1,148 @@
+package com.feedhenry.securenativeandroidtemplate.domain.utils;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compare the cost of saving note payloads of different sizes, with and without compressing them first,
+ * and report the size from which compressing first is faster. Two paths are measured: only the encryption,
+ * and the encryption followed by a synced write to a file (like the file store does in the SYNC durability mode).
+ * The results are written to logcat with the "PayloadCompressorBenchmark" tag.
+ */
+@LargeTest
+public class PayloadCompressorBenchmarkTest {
+
+    private static final String TAG = "PayloadCompressorBenchmark";
+    private static final int[] PAYLOAD_SIZES = {64, 256, 1024, 4096, 16 * 1024, 64 * 1024};
+    private static final String[] WORDS = {"the", "note", "meeting", "tomorrow", "remember", "to", "buy", "milk", "and",
+            "call", "about", "project", "deadline", "review", "secure", "android", "template", "storage"};
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final int ENCRYPT_ITERATIONS = 200;
+    private static final int WRITE_ITERATIONS = 20;
+
+    private final File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "PayloadCompressorBenchmark");
+
+    @After
+    public void teardown() {
+        this.file.delete();
+    }
+
+    @Test
+    public void findBreakEvenSize() throws Exception {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+        for (PayloadCompressor.Codec codec : PayloadCompressor.Codec.values()) {
+            PayloadCompressor compressor = new PayloadCompressor(codec, 0);
+            int encryptBreakEven = -1;
+            int writeBreakEven = -1;
+            for (int size : PAYLOAD_SIZES) {
+                byte[] payload = createPayload(size);
+                byte[] compressed = compressor.compress(payload);
+                if (compressed != null) {
+                    assertEquals(ByteBuffer.wrap(payload), PayloadCompressor.decompress(ByteBuffer.wrap(compressed)));
+                }
+
+                //warm up
+                measure(key, null, payload, null, ENCRYPT_ITERATIONS);
+                measure(key, compressor, payload, null, ENCRYPT_ITERATIONS);
+
+                long rawEncrypt = measure(key, null, payload, null, ENCRYPT_ITERATIONS);
+                long compressedEncrypt = measure(key, compressor, payload, null, ENCRYPT_ITERATIONS);
+                long rawWrite = measure(key, null, payload, file, WRITE_ITERATIONS);
+                long compressedWrite = measure(key, compressor, payload, file, WRITE_ITERATIONS);
+                encryptBreakEven = updateBreakEven(encryptBreakEven, size, compressedEncrypt < rawEncrypt);
+                writeBreakEven = updateBreakEven(writeBreakEven, size, compressedWrite < rawWrite);
+
+                int compressedSize = compressed == null ? payload.length : compressed.length;
+                Log.i(TAG, String.format("%s, %d bytes (%.0f%% after compression): encrypt raw %d us, compressed %d us; encrypt and write raw %d us, compressed %d us",
+                        codec, size, 100.0 * compressedSize / payload.length,
+                        rawEncrypt / 1000, compressedEncrypt / 1000, rawWrite / 1000, compressedWrite / 1000));
+            }
+            Log.i(TAG, String.format("%s break-even size: encrypt %s, encrypt and write %s", codec,
+                    describe(encryptBreakEven), describe(writeBreakEven)));
+        }
+    }
+
+    /**
+     * @return the average time in nanoseconds
+     */
+    private static long measure(SecretKey key, PayloadCompressor compressor, byte[] payload, File file, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            byte[] data = payload;
+            if (compressor != null) {
+                //the write path of the stores: payloads that don't get smaller are encrypted raw
+                byte[] compressed = compressor.compress(payload);
+                data = compressed == null ? payload : compressed;
+            }
+            byte[] encrypted = encrypt(key, data);
+            if (file != null) {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(encrypted);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * The break-even size is the smallest size from which compressing first is faster for all the bigger sizes too,
+     * so a single noisy measurement of a small size doesn't decide it.
+     */
+    private static int updateBreakEven(int breakEven, int size, boolean compressedIsFaster) {
+        if (!compressedIsFaster) {
+            return -1;
+        }
+        return breakEven < 0 ? size : breakEven;
+    }
+
+    private static String describe(int breakEven) {
+        return breakEven < 0 ? "not reached" : breakEven + " bytes";
+    }
+
+    private static byte[] encrypt(SecretKey key, byte[] payload) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+        return cipher.doFinal(payload);
+    }
+
+    /**
+     * Create a note as it is saved by the stores: a JSON object with some text made of common words.
+     */
+    private static byte[] createPayload(int size) throws Exception {
+        Random random = new Random(size);
+        StringBuilder content = new StringBuilder();
+        while (content.length() < size) {
+            content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        String json = "{\"id\":\"" + new UUID(random.nextLong(), random.nextLong()) + "\",\"title\":\"benchmark\",\"content\":\"";
+        String payload = json + content.substring(0, Math.max(0, size - json.length() - 2)) + "\"}";
+        return payload.getBytes("utf-8");
+    }
+}
@@ -3,8 +3,10 @@ package com.feedhenry.securenativeandroidtemplate.di;
 import android.app.Application;
 import android.content.Context;
 import android.os.Build;
+import com.feedhenry.securenativeandroidtemplate.domain.configurations.AppConfiguration;
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.AesCrypto;
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.AndroidMSecureKeyStore;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyHierarchy;
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.NullAndroidSecureKeyStore;
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.PreAndroidMSecureKeyStore;
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.RsaCrypto;
@@ -12,10 +14,12 @@ import com.feedhenry.securenativeandroidtemplate.domain.crypto.SecureKeyStore;
 import com.feedhenry.securenativeandroidtemplate.domain.repositories.NoteRepository;
 import com.feedhenry.securenativeandroidtemplate.domain.repositories.NoteRepositoryImpl;
 import com.feedhenry.securenativeandroidtemplate.domain.services.NoteCrudlService;
+import com.feedhenry.securenativeandroidtemplate.domain.store.AtomicFileWriter;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStore;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStoreFactory;
 import com.feedhenry.securenativeandroidtemplate.domain.store.SecureFileNoteStore;
 import com.feedhenry.securenativeandroidtemplate.domain.store.sqlite.SqliteNoteStore;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
 import com.feedhenry.securenativeandroidtemplate.features.authentication.providers.KeycloakAuthenticateProviderImpl;
 import com.feedhenry.securenativeandroidtemplate.features.authentication.providers.OpenIDAuthenticationProvider;
 import org.aerogear.mobile.auth.AuthService;
@@ -69,12 +73,19 @@ public class SecureApplicationModule {
 
     @Provides @Singleton @Named("fileStore")
     NoteDataStore providesNoteDataStore(Context context, AesCrypto aesCrypto) {
-        return new SecureFileNoteStore(context, aesCrypto);
+        SecureFileNoteStore fileStore = new SecureFileNoteStore(context, aesCrypto, AtomicFileWriter.DurabilityMode.GROUP_COMMIT);
+        fileStore.setKeyHierarchy(new KeyHierarchy(context, aesCrypto, "notes"));
+        fileStore.setCompressor(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE_FAST));
+        return fileStore;
     }
 
     @Provides @Singleton @Named("sqliteStore")
-    NoteDataStore providesSqliteNoteDataStore(Context context, RsaCrypto rsaCrypto) {
-        return new SqliteNoteStore(context, rsaCrypto);
+    NoteDataStore providesSqliteNoteDataStore(Context context, RsaCrypto rsaCrypto, AppConfiguration appConfiguration) {
+        SqliteNoteStore sqliteStore = new SqliteNoteStore(context, rsaCrypto);
+        sqliteStore.setConfiguration(appConfiguration.getSqliteStoreConfiguration());
+        sqliteStore.setCompressor(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE_FAST));
+        sqliteStore.setUseRawKey(true);
+        return sqliteStore;
     }
 
     @Provides @Singleton
@@ -19,12 +19,14 @@ import javax.inject.Singleton;
 public class AppConfiguration {
 
     private static final String API_SERVER_KEY = "api-server";
+    private static final String SQLITE_STORE_KEY = "sqlite-store";
 
     private Context context;
     private Exception configurationError;
     private JSONObject appConfigJson;
 
     private ApiServerConfiguration apiServerConfiguration;
+    private SqliteStoreConfiguration sqliteStoreConfiguration;
 
     @Inject
     public AppConfiguration(Context context) {
@@ -42,6 +44,11 @@ public class AppConfiguration {
             String content = StreamUtils.readStream(in);
             appConfigJson = new JSONObject(content);
             apiServerConfiguration = new ApiServerConfiguration(appConfigJson.getJSONObject(API_SERVER_KEY));
+            //optional, the store uses the default settings without it
+            JSONObject sqliteStoreConfigJson = appConfigJson.optJSONObject(SQLITE_STORE_KEY);
+            if (sqliteStoreConfigJson != null) {
+                sqliteStoreConfiguration = new SqliteStoreConfiguration(sqliteStoreConfigJson);
+            }
         } finally {
             in.close();
         }
@@ -50,4 +57,14 @@ public class AppConfiguration {
     public ApiServerConfiguration getAPIServerConfiguration() {
         return this.apiServerConfiguration;
     }
+
+    /**
+     * @return the settings of the sqlite note store, or the default settings if they are not configured
+     */
+    public SqliteStoreConfiguration getSqliteStoreConfiguration() {
+        if (this.sqliteStoreConfiguration == null) {
+            return new SqliteStoreConfiguration();
+        }
+        return this.sqliteStoreConfiguration;
+    }
 }
@@ -0,0 +1,172 @@
+package com.feedhenry.securenativeandroidtemplate.domain.configurations;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The SQLCipher settings of the sqlite note store. The settings that are not set keep the SQLCipher default, except the journal mode, which is WAL.
+ *
+ * The cipher page size, the KDF iterations and the HMAC are part of the format of the database file:
+ * changing them for an existing database makes it unreadable, so they should only be set before the database is created.
+ * The other settings apply to each connection, and can be changed at any time.
+ */
+public class SqliteStoreConfiguration {
+
+    public static final String JOURNAL_MODE_WAL = "WAL";
+
+    private static final String CIPHER_PAGE_SIZE = "cipher-page-size";
+    private static final String CACHE_SIZE = "cache-size";
+    private static final String KDF_ITER = "kdf-iter";
+    private static final String CIPHER_USE_HMAC = "cipher-use-hmac";
+    private static final String CIPHER_MEMORY_SECURITY = "cipher-memory-security";
+    private static final String TEMP_STORE = "temp-store";
+    private static final String JOURNAL_MODE = "journal-mode";
+
+    private static final List<String> TEMP_STORES = Arrays.asList("DEFAULT", "FILE", "MEMORY");
+    private static final List<String> JOURNAL_MODES = Arrays.asList("DELETE", "TRUNCATE", "PERSIST", "MEMORY", JOURNAL_MODE_WAL, "OFF");
+
+    private Integer cipherPageSize;
+    private Integer cacheSize;
+    private Integer kdfIter;
+    private Boolean cipherUseHmac;
+    private Boolean cipherMemorySecurity;
+    private String tempStore;
+    private String journalMode = JOURNAL_MODE_WAL;
+
+    /**
+     * Create a configuration with the default settings
+     */
+    public SqliteStoreConfiguration() {
+
+    }
+
+    SqliteStoreConfiguration(JSONObject sqliteStoreConfigJson) throws Exception {
+        if (sqliteStoreConfigJson.has(CIPHER_PAGE_SIZE)) {
+            setCipherPageSize(sqliteStoreConfigJson.getInt(CIPHER_PAGE_SIZE));
+        }
+        if (sqliteStoreConfigJson.has(CACHE_SIZE)) {
+            setCacheSize(sqliteStoreConfigJson.getInt(CACHE_SIZE));
+        }
+        if (sqliteStoreConfigJson.has(KDF_ITER)) {
+            setKdfIter(sqliteStoreConfigJson.getInt(KDF_ITER));
+        }
+        if (sqliteStoreConfigJson.has(CIPHER_USE_HMAC)) {
+            setCipherUseHmac(sqliteStoreConfigJson.getBoolean(CIPHER_USE_HMAC));
+        }
+        if (sqliteStoreConfigJson.has(CIPHER_MEMORY_SECURITY)) {
+            setCipherMemorySecurity(sqliteStoreConfigJson.getBoolean(CIPHER_MEMORY_SECURITY));
+        }
+        if (sqliteStoreConfigJson.has(TEMP_STORE)) {
+            setTempStore(sqliteStoreConfigJson.getString(TEMP_STORE));
+        }
+        if (sqliteStoreConfigJson.has(JOURNAL_MODE)) {
+            setJournalMode(sqliteStoreConfigJson.getString(JOURNAL_MODE));
+        }
+    }
+
+    public Integer getCipherPageSize() {
+        return cipherPageSize;
+    }
+
+    /**
+     * @param cipherPageSize the size of the encrypted pages, a power of two between 512 and 65536. Only for new databases.
+     */
+    public void setCipherPageSize(Integer cipherPageSize) {
+        if (cipherPageSize != null && (cipherPageSize < 512 || cipherPageSize > 65536 || Integer.bitCount(cipherPageSize) != 1)) {
+            throw new IllegalArgumentException("invalid cipher page size: " + cipherPageSize);
+        }
+        this.cipherPageSize = cipherPageSize;
+    }
+
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize the size of the page cache of each connection: a number of pages if positive, or a number of KiB if negative
+     */
+    public void setCacheSize(Integer cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public Integer getKdfIter() {
+        return kdfIter;
+    }
+
+    /**
+     * @param kdfIter the number of iterations of the key derivation from the password. It's not used with a raw key. Only for new databases.
+     */
+    public void setKdfIter(Integer kdfIter) {
+        if (kdfIter != null && kdfIter <= 0) {
+            throw new IllegalArgumentException("invalid kdf iterations: " + kdfIter);
+        }
+        this.kdfIter = kdfIter;
+    }
+
+    public Boolean getCipherUseHmac() {
+        return cipherUseHmac;
+    }
+
+    /**
+     * @param cipherUseHmac whether each page is authenticated. Only for new databases.
+     */
+    public void setCipherUseHmac(Boolean cipherUseHmac) {
+        this.cipherUseHmac = cipherUseHmac;
+    }
+
+    public Boolean getCipherMemorySecurity() {
+        return cipherMemorySecurity;
+    }
+
+    /**
+     * @param cipherMemorySecurity whether SQLCipher wipes the memory it frees. SQLCipher versions that don't have the setting ignore it.
+     */
+    public void setCipherMemorySecurity(Boolean cipherMemorySecurity) {
+        this.cipherMemorySecurity = cipherMemorySecurity;
+    }
+
+    public String getTempStore() {
+        return tempStore;
+    }
+
+    /**
+     * @param tempStore where the temporary tables and indexes are kept: DEFAULT, FILE or MEMORY
+     */
+    public void setTempStore(String tempStore) {
+        this.tempStore = checkValue(tempStore, TEMP_STORES, "temp store");
+    }
+
+    public String getJournalMode() {
+        return journalMode;
+    }
+
+    /**
+     * @param journalMode the journal mode, like DELETE or WAL
+     */
+    public void setJournalMode(String journalMode) {
+        this.journalMode = checkValue(journalMode, JOURNAL_MODES, "journal mode");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cipher_page_size=%s, cache_size=%s, kdf_iter=%s, cipher_use_hmac=%s, cipher_memory_security=%s, temp_store=%s, journal_mode=%s",
+                cipherPageSize, cacheSize, kdfIter, cipherUseHmac, cipherMemorySecurity, tempStore, journalMode);
+    }
+
+    /**
+     * The values end up in pragmas, so only the known ones are allowed
+     */
+    private static String checkValue(String value, List<String> allowedValues, String name) {
+        if (value == null) {
+            return null;
+        }
+        String upperCaseValue = value.toUpperCase(Locale.ROOT);
+        if (!allowedValues.contains(upperCaseValue)) {
+            throw new IllegalArgumentException("invalid " + name + ": " + value);
+        }
+        return upperCaseValue;
+    }
+}
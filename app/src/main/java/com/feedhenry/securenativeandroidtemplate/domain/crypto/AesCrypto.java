@@ -6,16 +6,29 @@ import android.util.Base64;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 
 /**
@@ -27,29 +40,103 @@ public class AesCrypto {
 
     private static final int BASE64_FLAG = Base64.NO_WRAP;
 
+    private static final int DEFAULT_KEY_CACHE_SIZE = 32;
+    //below that, handing the values over to a worker costs more than encrypting them
+    private static final int MIN_BATCH_PART_SIZE = 64;
+
     private SecureKeyStore secureKeyStore;
+    private volatile SecretKeyCache keyCache = new SecretKeyCache(DEFAULT_KEY_CACHE_SIZE);
+    private volatile CipherPool cipherPool = new CipherPool(true);
+    private ExecutorService batchExecutor;
+    private int batchWorkerCount = 0;
 
     @Inject
     public AesCrypto(SecureKeyStore secureKeyStore) {
         this.secureKeyStore = secureKeyStore;
     }
 
+    /**
+     * Set how many of the keys loaded from the keystore are kept, so using them again doesn't go through the keystore.
+     * The least recently used keys are dropped first. The keys that were already loaded are dropped.
+     * Only the keys that are handles to keys in the keystore are kept: the keys whose bytes are in memory
+     * (e.g. the keys of {@link PreAndroidMSecureKeyStore}) are cached by the keystore, which wipes them after a while.
+     * @param keyCacheSize the max number of keys to keep. 0 disables the cache. The default is 32.
+     */
+    public void setKeyCacheSize(int keyCacheSize) {
+        if (keyCacheSize < 0) {
+            throw new IllegalArgumentException("the key cache size can't be negative");
+        }
+        this.keyCache = new SecretKeyCache(keyCacheSize);
+    }
+
+    /**
+     * Set whether the ciphers of the single-shot operations (not the streams) are kept per thread and re-initialised for each operation,
+     * instead of being created each time. It's enabled by default.
+     * @param cipherPooling whether the ciphers are kept
+     */
+    public void setCipherPooling(boolean cipherPooling) {
+        if (cipherPooling != this.cipherPool.isEnabled()) {
+            this.cipherPool = new CipherPool(cipherPooling);
+        }
+    }
+
+    /**
+     * Set how many worker threads the batch operations ({@link #encryptAll(String, List)} and {@link #decryptAll(String, List)}) can use.
+     * A large batch is split in parts, which the workers and the calling thread process in parallel. Small batches always run on the calling thread.
+     * @param batchWorkerCount the number of worker threads. 0 runs the batches on the calling thread. The default is 0.
+     */
+    public synchronized void setBatchWorkerCount(int batchWorkerCount) {
+        if (batchWorkerCount < 0) {
+            throw new IllegalArgumentException("the batch worker count can't be negative");
+        }
+        if (this.batchExecutor != null) {
+            //the parts that are already queued still run
+            this.batchExecutor.shutdown();
+            this.batchExecutor = null;
+        }
+        if (batchWorkerCount > 0) {
+            this.batchExecutor = Executors.newFixedThreadPool(batchWorkerCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "AesCrypto-batch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.batchWorkerCount = batchWorkerCount;
+    }
+
     /**
      * Load the secret key from the keystore using the given key alias if it already exists, or generate a new one if it doesn't exist.
+     * The loaded keys are cached (see {@link #setKeyCacheSize(int)}), and removed from the cache when they are deleted with {@link #deleteSecretKey(String)}.
      * @param keyAlias the alias of the key
+     * @param doGenerate if a missing key should be generated. If it's false, a GeneralSecurityException is thrown instead.
      * @return the SecretKey instance.
      * @throws GeneralSecurityException
      * @throws IOException
      */
-    private SecretKey loadOrGenerateSecretKey(String keyAlias, boolean doGenerate) throws GeneralSecurityException, IOException {
+    public SecretKey loadOrGenerateSecretKey(String keyAlias, boolean doGenerate) throws GeneralSecurityException, IOException {
+        SecretKeyCache cache = this.keyCache;
+        SecretKey secretKey = cache.get(keyAlias);
+        if (secretKey != null) {
+            return secretKey;
+        }
+        long cacheVersion = cache.getVersion();
         if (!this.secureKeyStore.hasSecretKey(keyAlias)) {
             if (doGenerate) {
                 this.secureKeyStore.generateAESKey(keyAlias);
+                cache.invalidate(keyAlias);
+                cacheVersion = cache.getVersion();
             } else {
                 throw new GeneralSecurityException("missing alias " + keyAlias);
             }
         }
-        SecretKey secretKey = (SecretKey) this.secureKeyStore.getSecretKey(keyAlias);
+        secretKey = (SecretKey) this.secureKeyStore.getSecretKey(keyAlias);
+        //the bytes of a SecretKeySpec can't be wiped, so it's not kept here
+        if (secretKey != null && !(secretKey instanceof SecretKeySpec)) {
+            cache.put(keyAlias, secretKey, cacheVersion);
+        }
         return secretKey;
 
     }
@@ -65,15 +152,99 @@ public class AesCrypto {
      */
     public byte[] encrypt(String keyAlias, byte[] plainText) throws GeneralSecurityException, IOException {
         SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, true);
-        Cipher cipher = Cipher.getInstance(secureKeyStore.getSupportedAESMode());
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        return encrypt(secretKey, plainText, null);
+    }
+    // end::encrypt[]
+
+    /**
+     * Encrypt the given data using the given key.
+     * @param secretKey the key to use. It can be a key from the keystore, or a key that is derived from one (see {@link KeyHierarchy}).
+     * @param plainText the data to encrypt
+     * @param aad additional data that is authenticated, but not encrypted. Can be null.
+     * @return the encrypted data, in the same format as {@link #encrypt(String, byte[])}
+     * @throws GeneralSecurityException
+     */
+    public byte[] encrypt(SecretKey secretKey, byte[] plainText, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = initEncryption(secretKey, aad);
         //get the iv that is being used
         byte[] iv = cipher.getIV();
-        byte[] encrypted = cipher.doFinal(plainText);
-        GCMEncrypted encryptedData = new GCMEncrypted(iv, encrypted);
-        return encryptedData.toByteArray();
+        byte[] encrypted = new byte[GCMEncrypted.getHeaderLength(iv) + cipher.getOutputSize(plainText.length)];
+        int length = GCMEncrypted.writeHeader(iv, encrypted, 0);
+        length += cipher.doFinal(plainText, 0, plainText.length, encrypted, length);
+        return length == encrypted.length ? encrypted : Arrays.copyOf(encrypted, length);
+    }
+
+    /**
+     * Encrypt a slice of the given array using the given key, and write the encrypted data into the given output array.
+     * There are no intermediate copies of the data.
+     * @param secretKey the key to use
+     * @param input the array that holds the data to encrypt
+     * @param inputOffset the offset of the data in the input array
+     * @param inputLength the length of the data
+     * @param aad additional data that is authenticated, but not encrypted. Can be null.
+     * @param output the array to write the encrypted data to, in the same format as {@link #encrypt(String, byte[])}. It must not overlap with the input.
+     * @param outputOffset the offset in the output array to write to
+     * @return the number of bytes written to the output array
+     * @throws ShortBufferException if there's not enough room in the output array. {@link #getMaxEncryptedSize(int)} bytes are always enough.
+     * @throws GeneralSecurityException
+     */
+    public int encrypt(SecretKey secretKey, byte[] input, int inputOffset, int inputLength, byte[] aad, byte[] output, int outputOffset) throws GeneralSecurityException {
+        Cipher cipher = initEncryption(secretKey, aad);
+        byte[] iv = cipher.getIV();
+        int encryptedLength = GCMEncrypted.getHeaderLength(iv) + cipher.getOutputSize(inputLength);
+        if (output.length - outputOffset < encryptedLength) {
+            throw new ShortBufferException("the encrypted data needs " + encryptedLength + " bytes");
+        }
+        int length = GCMEncrypted.writeHeader(iv, output, outputOffset);
+        return length + cipher.doFinal(input, inputOffset, inputLength, output, outputOffset + length);
+    }
+
+    /**
+     * Encrypt the remaining data of the given buffer using the given key, and write the encrypted data into the given output buffer.
+     * The cipher reads straight from the input buffer, and writes straight into the output buffer.
+     * @param secretKey the key to use
+     * @param input the data to encrypt. Its position is moved to its limit.
+     * @param output the buffer to write the encrypted data to, at its position, in the same format as {@link #encrypt(String, byte[])}. It must not overlap with the input.
+     * @param aad additional data that is authenticated, but not encrypted. Can be null.
+     * @return the number of bytes written to the output buffer
+     * @throws ShortBufferException if there's not enough room in the output buffer. Nothing is read or written then.
+     * @throws GeneralSecurityException
+     */
+    public int encrypt(SecretKey secretKey, ByteBuffer input, ByteBuffer output, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = initEncryption(secretKey, aad);
+        byte[] iv = cipher.getIV();
+        int encryptedLength = GCMEncrypted.getHeaderLength(iv) + cipher.getOutputSize(input.remaining());
+        if (output.remaining() < encryptedLength) {
+            throw new ShortBufferException("the encrypted data needs " + encryptedLength + " bytes");
+        }
+        output.putInt(iv.length);
+        output.put(iv);
+        return GCMEncrypted.getHeaderLength(iv) + cipher.doFinal(input, output);
+    }
+
+    /**
+     * @param plainTextLength the length of the data to encrypt
+     * @return the max length of the encrypted data, to size the output of {@link #encrypt(SecretKey, byte[], int, int, byte[], byte[], int)}
+     */
+    public static int getMaxEncryptedSize(int plainTextLength) {
+        return GCMEncrypted.IV_LENGTH_SIZE + GCMEncrypted.MAX_IV_LENGTH + plainTextLength + GCMEncrypted.GCM_TAG_LENGTH / 8;
+    }
+
+    /**
+     * @param encryptedLength the length of the encrypted data
+     * @return the max length of the plain text, to size the output of {@link #decrypt(SecretKey, byte[], int, int, byte[], byte[], int)}
+     */
+    public static int getMaxDecryptedSize(int encryptedLength) {
+        return Math.max(0, encryptedLength - GCMEncrypted.IV_LENGTH_SIZE - GCMEncrypted.GCM_TAG_LENGTH / 8);
+    }
+
+    private Cipher initEncryption(SecretKey secretKey, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = cipherPool.initEncryption(secureKeyStore.getSupportedAESMode(), secretKey);
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
     }
-    // end::encrypt[]
 
     // tag::decrypt[]
     /**
@@ -85,15 +256,276 @@ public class AesCrypto {
      * @throws IOException
      */
     public byte[] decrypt(String keyAlias, byte[] encryptedText) throws GeneralSecurityException, IOException {
-        GCMEncrypted encryptedData = GCMEncrypted.parse(encryptedText);
         SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, false);
-        Cipher cipher = Cipher.getInstance(secureKeyStore.getSupportedAESMode());
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCMEncrypted.GCM_TAG_LENGTH, encryptedData.iv));
-        byte[] plainText = cipher.doFinal(encryptedData.encryptedData);
-        return plainText;
+        return decrypt(secretKey, encryptedText, null);
     }
     // end::decrypt[]
 
+    /**
+     * Decrypt the given encrypted data using the given key.
+     * @param secretKey the key to use
+     * @param encryptedText the data to decrypt, in the format returned by {@link #encrypt(SecretKey, byte[], byte[])}
+     * @param aad the additional authenticated data that was used for the encryption. Can be null.
+     * @return the plain text data
+     * @throws GeneralSecurityException
+     */
+    public byte[] decrypt(SecretKey secretKey, byte[] encryptedText, byte[] aad) throws GeneralSecurityException {
+        return decrypt(secretKey, encryptedText, 0, encryptedText.length, aad);
+    }
+
+    /**
+     * Decrypt a slice of the given array using the given key. The cipher reads straight from the array.
+     * @param secretKey the key to use
+     * @param input the array that holds the encrypted data, in the format returned by {@link #encrypt(SecretKey, byte[], byte[])}
+     * @param inputOffset the offset of the encrypted data in the input array
+     * @param inputLength the length of the encrypted data
+     * @param aad the additional authenticated data that was used for the encryption. Can be null.
+     * @return the plain text data
+     * @throws GeneralSecurityException
+     */
+    public byte[] decrypt(SecretKey secretKey, byte[] input, int inputOffset, int inputLength, byte[] aad) throws GeneralSecurityException {
+        int headerLength = GCMEncrypted.readHeaderLength(input, inputOffset, inputLength);
+        Cipher cipher = initDecryption(secretKey, input, inputOffset, headerLength, aad);
+        return cipher.doFinal(input, inputOffset + headerLength, inputLength - headerLength);
+    }
+
+    /**
+     * Decrypt a slice of the given array using the given key, and write the plain text into the given output array.
+     * There are no intermediate copies of the data.
+     * @param secretKey the key to use
+     * @param input the array that holds the encrypted data, in the format returned by {@link #encrypt(SecretKey, byte[], byte[])}
+     * @param inputOffset the offset of the encrypted data in the input array
+     * @param inputLength the length of the encrypted data
+     * @param aad the additional authenticated data that was used for the encryption. Can be null.
+     * @param output the array to write the plain text to. It must not overlap with the input.
+     * @param outputOffset the offset in the output array to write to
+     * @return the number of bytes written to the output array
+     * @throws ShortBufferException if there's not enough room in the output array. {@link #getMaxDecryptedSize(int)} bytes are always enough.
+     * @throws GeneralSecurityException
+     */
+    public int decrypt(SecretKey secretKey, byte[] input, int inputOffset, int inputLength, byte[] aad, byte[] output, int outputOffset) throws GeneralSecurityException {
+        int headerLength = GCMEncrypted.readHeaderLength(input, inputOffset, inputLength);
+        Cipher cipher = initDecryption(secretKey, input, inputOffset, headerLength, aad);
+        return cipher.doFinal(input, inputOffset + headerLength, inputLength - headerLength, output, outputOffset);
+    }
+
+    /**
+     * Decrypt the encrypted data in the given buffer, e.g. a buffer that maps an encrypted file.
+     * @param keyAlias The alias of the key in the keystore that will be used for the decryption.
+     * @param encrypted the encrypted data, in the format returned by {@link #encrypt(String, byte[])} or written by {@link #encryptStream(String, OutputStream)}
+     * @return the plain text data. The position is 0, and the limit is the size of the plain text.
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public ByteBuffer decrypt(String keyAlias, ByteBuffer encrypted) throws GeneralSecurityException, IOException {
+        SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, false);
+        return decrypt(secretKey, encrypted, null);
+    }
+
+    /**
+     * Decrypt the encrypted data in the given buffer using the given key. The cipher reads straight from the buffer, and writes into the returned buffer.
+     * @param secretKey the key to use
+     * @param encrypted the encrypted data. It can be a mapped or direct buffer.
+     * @param aad the additional authenticated data that was used for the encryption. Can be null.
+     * @return the plain text data. The position is 0, and the limit is the size of the plain text.
+     * @throws GeneralSecurityException
+     */
+    public ByteBuffer decrypt(SecretKey secretKey, ByteBuffer encrypted, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = initDecryption(secretKey, encrypted, aad);
+        ByteBuffer plainText = ByteBuffer.allocate(cipher.getOutputSize(encrypted.remaining()));
+        cipher.doFinal(encrypted, plainText);
+        plainText.flip();
+        return plainText;
+    }
+
+    /**
+     * Decrypt the encrypted data in the given buffer using the given key, and write the plain text into the given output buffer.
+     * The cipher reads straight from the input buffer, and writes straight into the output buffer.
+     * @param secretKey the key to use
+     * @param input the encrypted data, from its position to its limit. It can be a mapped or direct buffer. Its position is moved to its limit.
+     * @param output the buffer to write the plain text to, at its position. It must not overlap with the input.
+     * @param aad the additional authenticated data that was used for the encryption. Can be null.
+     * @return the number of bytes written to the output buffer
+     * @throws ShortBufferException if there's not enough room in the output buffer. Nothing is read or written then.
+     * @throws GeneralSecurityException
+     */
+    public int decrypt(SecretKey secretKey, ByteBuffer input, ByteBuffer output, byte[] aad) throws GeneralSecurityException {
+        int start = input.position();
+        Cipher cipher = initDecryption(secretKey, input, aad);
+        if (output.remaining() < cipher.getOutputSize(input.remaining())) {
+            input.position(start);
+            throw new ShortBufferException("the plain text needs " + cipher.getOutputSize(input.remaining()) + " bytes");
+        }
+        return cipher.doFinal(input, output);
+    }
+
+    private Cipher initDecryption(SecretKey secretKey, byte[] input, int inputOffset, int headerLength, byte[] aad) throws GeneralSecurityException {
+        //the iv is read straight from the input
+        GCMParameterSpec params = new GCMParameterSpec(GCMEncrypted.GCM_TAG_LENGTH, input,
+                inputOffset + GCMEncrypted.IV_LENGTH_SIZE, headerLength - GCMEncrypted.IV_LENGTH_SIZE);
+        Cipher cipher = cipherPool.init(secureKeyStore.getSupportedAESMode(), Cipher.DECRYPT_MODE, secretKey, params);
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
+    }
+
+    /**
+     * Read the header of the encrypted data in the given buffer, and initialise a cipher with it. The position of the buffer is moved after the header.
+     */
+    private Cipher initDecryption(SecretKey secretKey, ByteBuffer input, byte[] aad) throws GeneralSecurityException {
+        if (input.remaining() < GCMEncrypted.IV_LENGTH_SIZE) {
+            throw new GeneralSecurityException("the encrypted data is truncated");
+        }
+        int ivLength = input.getInt(input.position());
+        if (ivLength <= 0 || ivLength > input.remaining() - GCMEncrypted.IV_LENGTH_SIZE) {
+            throw new AEADBadTagException("invalid iv length " + ivLength);
+        }
+        GCMParameterSpec params;
+        if (input.hasArray()) {
+            params = new GCMParameterSpec(GCMEncrypted.GCM_TAG_LENGTH, input.array(),
+                    input.arrayOffset() + input.position() + GCMEncrypted.IV_LENGTH_SIZE, ivLength);
+            input.position(input.position() + GCMEncrypted.IV_LENGTH_SIZE + ivLength);
+        } else {
+            input.getInt();
+            byte[] iv = new byte[ivLength];
+            input.get(iv);
+            params = new GCMParameterSpec(GCMEncrypted.GCM_TAG_LENGTH, iv);
+        }
+        Cipher cipher = cipherPool.init(secureKeyStore.getSupportedAESMode(), Cipher.DECRYPT_MODE, secretKey, params);
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher;
+    }
+
+    /**
+     * Encrypt many values with the same key, e.g. to export or re-encrypt notes. The key is only loaded once,
+     * and each value is encrypted with a new IV, in the same format as {@link #encrypt(String, byte[])}.
+     * @param keyAlias The alias of the key in the keystore that will be used for the encryption.
+     * @param plainTexts the values to encrypt
+     * @return the encrypted values, in the same order
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public List<byte[]> encryptAll(String keyAlias, List<byte[]> plainTexts) throws GeneralSecurityException, IOException {
+        SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, true);
+        return encryptAll(secretKey, plainTexts, null);
+    }
+
+    /**
+     * Encrypt many values with the given key. Large batches are split across the batch workers (see {@link #setBatchWorkerCount(int)}).
+     * @param secretKey the key to use
+     * @param plainTexts the values to encrypt
+     * @param aad additional data that is authenticated, but not encrypted, the same for all the values. Can be null.
+     * @return the encrypted values, in the same order, in the format returned by {@link #encrypt(SecretKey, byte[], byte[])}
+     * @throws GeneralSecurityException
+     * @throws IOException if the calling thread is interrupted while waiting for the workers
+     */
+    public List<byte[]> encryptAll(SecretKey secretKey, List<byte[]> plainTexts, byte[] aad) throws GeneralSecurityException, IOException {
+        return runBatch(secretKey, plainTexts, aad, true);
+    }
+
+    /**
+     * Decrypt many values with the same key. The key is only loaded once.
+     * @param keyAlias The alias of the key in the keystore that will be used for the decryption.
+     * @param encryptedTexts the values to decrypt, in the format returned by {@link #encrypt(String, byte[])}
+     * @return the plain text values, in the same order
+     * @throws GeneralSecurityException if a value can't be decrypted. The whole batch fails then.
+     * @throws IOException
+     */
+    public List<byte[]> decryptAll(String keyAlias, List<byte[]> encryptedTexts) throws GeneralSecurityException, IOException {
+        SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, false);
+        return decryptAll(secretKey, encryptedTexts, null);
+    }
+
+    /**
+     * Decrypt many values with the given key. Large batches are split across the batch workers (see {@link #setBatchWorkerCount(int)}).
+     * @param secretKey the key to use
+     * @param encryptedTexts the values to decrypt, in the format returned by {@link #encrypt(SecretKey, byte[], byte[])}
+     * @param aad the additional authenticated data that was used for the encryption of all the values. Can be null.
+     * @return the plain text values, in the same order
+     * @throws GeneralSecurityException if a value can't be decrypted. The whole batch fails then.
+     * @throws IOException if the calling thread is interrupted while waiting for the workers
+     */
+    public List<byte[]> decryptAll(SecretKey secretKey, List<byte[]> encryptedTexts, byte[] aad) throws GeneralSecurityException, IOException {
+        return runBatch(secretKey, encryptedTexts, aad, false);
+    }
+
+    private List<byte[]> runBatch(final SecretKey secretKey, final List<byte[]> inputs, final byte[] aad, final boolean encrypting) throws GeneralSecurityException, IOException {
+        final byte[][] outputs = new byte[inputs.size()][];
+        ExecutorService executor;
+        int partCount;
+        synchronized (this) {
+            executor = this.batchExecutor;
+            partCount = Math.min(this.batchWorkerCount + 1, inputs.size() / MIN_BATCH_PART_SIZE);
+        }
+        if (executor == null || partCount <= 1) {
+            runBatchPart(secretKey, inputs, aad, encrypting, outputs, 0, inputs.size());
+            return Arrays.asList(outputs);
+        }
+        int partSize = (inputs.size() + partCount - 1) / partCount;
+        List<Future<Void>> parts = new ArrayList<Future<Void>>(partCount - 1);
+        try {
+            //the calling thread takes the first part, the workers the others
+            for (int start = partSize; start < inputs.size(); start += partSize) {
+                final int from = start;
+                final int to = Math.min(start + partSize, inputs.size());
+                Callable<Void> part = new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runBatchPart(secretKey, inputs, aad, encrypting, outputs, from, to);
+                        return null;
+                    }
+                };
+                try {
+                    parts.add(executor.submit(part));
+                } catch (RejectedExecutionException e) {
+                    //the workers were changed in the meantime
+                    runBatchPart(secretKey, inputs, aad, encrypting, outputs, from, to);
+                }
+            }
+            runBatchPart(secretKey, inputs, aad, encrypting, outputs, 0, partSize);
+            for (Future<Void> part : parts) {
+                waitForBatchPart(part);
+            }
+        } finally {
+            //only stops the parts that haven't started yet if one failed
+            for (Future<Void> part : parts) {
+                part.cancel(false);
+            }
+        }
+        return Arrays.asList(outputs);
+    }
+
+    private void runBatchPart(SecretKey secretKey, List<byte[]> inputs, byte[] aad, boolean encrypting, byte[][] outputs, int from, int to) throws GeneralSecurityException {
+        //each thread re-initialises its own pooled cipher for each value
+        for (int i = from; i < to; i++) {
+            outputs[i] = encrypting ? encrypt(secretKey, inputs.get(i), aad) : decrypt(secretKey, inputs.get(i), aad);
+        }
+    }
+
+    private static void waitForBatchPart(Future<Void> part) throws GeneralSecurityException, IOException {
+        try {
+            part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a batch");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new GeneralSecurityException(cause);
+        }
+    }
+
     /**
      * Encrypt the given string. The encrypted data will be returned as a base64-encoded string.
      * @param keyAlias The alias of the key in the keystore that will be used for the encryption.
@@ -118,8 +550,25 @@ public class AesCrypto {
      */
     public OutputStream encryptStream(String keyAlias, OutputStream outputStream) throws GeneralSecurityException, IOException {
         SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, true);
+        return encryptStream(secretKey, outputStream, null);
+    }
+
+    /**
+     * Returns an OutputStream that will automatically encrypt data with the given key while writing. The output has the same format as {@link #encryptStream(String, OutputStream)}.
+     * @param secretKey the key to use
+     * @param outputStream the original output stream.
+     * @param aad additional data that is authenticated, but not encrypted. Can be null.
+     * @return The output stream that will encrypt the data
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public OutputStream encryptStream(SecretKey secretKey, OutputStream outputStream, byte[] aad) throws GeneralSecurityException, IOException {
+        //the stream keeps the cipher after the call returns, so it can't come from the pool
         Cipher cipher = Cipher.getInstance(secureKeyStore.getSupportedAESMode());
         cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
         //get the iv that is being used
         byte[] iv = cipher.getIV();
         //need to write down the size of the iv as different provider will generate iv with different size
@@ -140,13 +589,30 @@ public class AesCrypto {
      */
     public InputStream decryptStream(String keyAlias, InputStream inputStream) throws GeneralSecurityException, IOException {
         SecretKey secretKey = loadOrGenerateSecretKey(keyAlias, false);
+        return decryptStream(secretKey, inputStream, null);
+    }
+
+    /**
+     * Decrypt the encrypted input stream with the given key, and return the plain text input stream.
+     * @param secretKey the key to use
+     * @param inputStream the encrypted input stream, in the format written by {@link #encryptStream(SecretKey, OutputStream, byte[])}
+     * @param aad the additional authenticated data that was used for the encryption. Can be null.
+     * @return the plain text input stream
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public InputStream decryptStream(SecretKey secretKey, InputStream inputStream, byte[] aad) throws GeneralSecurityException, IOException {
         byte[] ivLengthBytes = new byte[4];
         inputStream.read(ivLengthBytes);
         int ivLength = ByteBuffer.wrap(ivLengthBytes).getInt();
         byte[] iv = new byte[ivLength];
         inputStream.read(iv);
+        //the stream keeps the cipher after the call returns, so it can't come from the pool
         Cipher cipher = Cipher.getInstance(secureKeyStore.getSupportedAESMode());
         cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCMEncrypted.GCM_TAG_LENGTH, iv));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
         CipherInputStream cipherStream = new CipherInputStream(inputStream, cipher);
         return cipherStream;
     }
@@ -171,48 +637,61 @@ public class AesCrypto {
      * @throws IOException
      */
     public void deleteSecretKey(String keyAlias) throws GeneralSecurityException, IOException {
-        this.secureKeyStore.deleteKey(keyAlias);
+        SecretKeyCache cache = this.keyCache;
+        cache.invalidate(keyAlias);
+        try {
+            this.secureKeyStore.deleteKey(keyAlias);
+        } finally {
+            //also drops the key if it was loaded again while it was being deleted
+            cache.invalidate(keyAlias);
+        }
     }
 
+    /**
+     * The format of the encrypted data: the length of the IV (4 bytes), the IV, then the encrypted data with the GCM tag at the end.
+     */
     static class GCMEncrypted {
         private static final int GCM_TAG_LENGTH = 128;
-        private byte[] iv;
-        //apparently different providers could generate IVs with different length
-        private int ivLength;
-        private byte[] encryptedData;
+        private static final int IV_LENGTH_SIZE = 4;
+        //apparently different providers could generate IVs with different length, but they use 12 bytes
+        private static final int MAX_IV_LENGTH = 16;
 
         private GCMEncrypted() {
 
         }
 
-        GCMEncrypted(byte[] iv, byte[] data) {
-            this.iv = iv;
-            this.ivLength = iv.length;
-            this.encryptedData = data;
+        static int getHeaderLength(byte[] iv) {
+            return IV_LENGTH_SIZE + iv.length;
         }
 
-        public byte[] toByteArray() {
-            ByteBuffer bb = ByteBuffer.allocate(4 + this.iv.length + this.encryptedData.length);
-            bb.put(ByteBuffer.allocate(4).putInt(this.ivLength).array());
-            bb.put(this.iv);
-            bb.put(this.encryptedData);
-            return bb.array();
+        /**
+         * @return the number of bytes written
+         */
+        static int writeHeader(byte[] iv, byte[] output, int offset) {
+            int ivLength = iv.length;
+            output[offset] = (byte) (ivLength >>> 24);
+            output[offset + 1] = (byte) (ivLength >>> 16);
+            output[offset + 2] = (byte) (ivLength >>> 8);
+            output[offset + 3] = (byte) ivLength;
+            System.arraycopy(iv, 0, output, offset + IV_LENGTH_SIZE, ivLength);
+            return IV_LENGTH_SIZE + ivLength;
         }
 
-        public static GCMEncrypted parse(byte[] encrypted) {
-            int ivLength = ByteBuffer.wrap(Arrays.copyOfRange(encrypted, 0, 4)).getInt();
-            ByteBuffer bb = ByteBuffer.wrap(encrypted);
-            GCMEncrypted gcmData = new GCMEncrypted();
-            byte[] ivLengthBytes = new byte[4];
-            byte[] ivArr = new byte[ivLength];
-            byte[] dataArr = new byte[encrypted.length - ivLength - 4];
-            bb.get(ivLengthBytes);
-            bb.get(ivArr);
-            bb.get(dataArr);
-            gcmData.iv = ivArr;
-            gcmData.encryptedData = dataArr;
-            gcmData.ivLength = ivLength;
-            return gcmData;
+        /**
+         * @return the length of the header, the IV is the end of it
+         * @throws AEADBadTagException if the data is too short for the header, or the IV length is invalid.
+         * The IV is authenticated by the tag, so a corrupted header is reported the same way as a corrupted ciphertext.
+         */
+        static int readHeaderLength(byte[] input, int offset, int length) throws GeneralSecurityException {
+            if (length < IV_LENGTH_SIZE) {
+                throw new AEADBadTagException("the encrypted data is truncated");
+            }
+            int ivLength = ((input[offset] & 0xff) << 24) | ((input[offset + 1] & 0xff) << 16)
+                    | ((input[offset + 2] & 0xff) << 8) | (input[offset + 3] & 0xff);
+            if (ivLength <= 0 || ivLength > length - IV_LENGTH_SIZE) {
+                throw new AEADBadTagException("invalid iv length " + ivLength);
+            }
+            return IV_LENGTH_SIZE + ivLength;
         }
     }
 }
@@ -39,7 +39,7 @@ public class AndroidMSecureKeyStore extends SecureKeyStoreImpl implements Secure
     @Override
     public Key getSecretKey(String keyAlias) throws GeneralSecurityException, IOException {
         KeyStore ks = loadKeyStore();
-        return loadKeyStore().getKey(keyAlias, null);
+        return ks.getKey(keyAlias, null);
     }
 
     // tag::generateAESKey[]
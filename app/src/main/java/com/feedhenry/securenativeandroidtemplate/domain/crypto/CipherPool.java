@@ -0,0 +1,112 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Keep a Cipher per transformation for each thread, so the ciphers of the short operations (a note, a title, a wrapped key)
+ * don't have to be looked up in the providers each time. A cipher is re-initialised with the key and the parameters of each operation.
+ *
+ * The provider of a cipher is chosen when it's first initialised, depending on the key (e.g. a key of the Android keystore can
+ * only be used by the keystore provider), so the ciphers are also kept per class of key.
+ *
+ * A cipher from the pool must be used and done with on the thread that got it, before it gets another cipher from the same pool:
+ * it must not be handed to a stream that outlives the call.
+ */
+class CipherPool {
+
+    private static class PooledCipher {
+        final Cipher cipher;
+        //the IV of the previous encryption of this cipher, see initEncryption
+        byte[] previousIv;
+
+        PooledCipher(Cipher cipher) {
+            this.cipher = cipher;
+        }
+    }
+
+    private final boolean enabled;
+    private final ThreadLocal<Map<String, PooledCipher>> ciphers = new ThreadLocal<Map<String, PooledCipher>>() {
+        @Override
+        protected Map<String, PooledCipher> initialValue() {
+            return new HashMap<String, PooledCipher>();
+        }
+    };
+
+    /**
+     * @param enabled if false, a new cipher is created for each operation
+     */
+    CipherPool(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get a cipher initialised with the given key and parameters
+     * @param transformation the transformation, e.g. AES/GCM/NoPadding
+     * @param opmode the mode, e.g. {@link Cipher#DECRYPT_MODE}
+     * @param key the key
+     * @param params the parameters, e.g. the IV. Can be null.
+     * @return the cipher
+     * @throws GeneralSecurityException
+     */
+    Cipher init(String transformation, int opmode, Key key, AlgorithmParameterSpec params) throws GeneralSecurityException {
+        Cipher cipher = get(transformation, key).cipher;
+        if (params == null) {
+            cipher.init(opmode, key);
+        } else {
+            cipher.init(opmode, key, params);
+        }
+        return cipher;
+    }
+
+    /**
+     * Get a cipher initialised for an encryption with the given key, and an IV that the provider generates.
+     *
+     * A pooled cipher is re-initialised for each encryption, so it relies on the provider to generate a new IV each time.
+     * As a guard against a provider that keeps the IV of its previous initialisation, the IV is compared with the one of the previous
+     * encryption of the same pooled cipher, and the encryption fails if the cipher repeats it twice in a row.
+     * It only catches that failure mode: it doesn't detect an IV that repeats one of the older ones, or one used by another thread or cipher.
+     * Without pooling, each cipher is used once, so nothing is checked.
+     * @param transformation the transformation, e.g. AES/GCM/NoPadding
+     * @param key the key
+     * @return the cipher. Its IV is the one to send with the encrypted data.
+     * @throws GeneralSecurityException if the cipher returned the same IV as for its previous encryption
+     */
+    Cipher initEncryption(String transformation, Key key) throws GeneralSecurityException {
+        PooledCipher pooledCipher = get(transformation, key);
+        Cipher cipher = pooledCipher.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] iv = cipher.getIV();
+        if (iv != null) {
+            if (Arrays.equals(iv, pooledCipher.previousIv)) {
+                throw new GeneralSecurityException("the cipher repeated the IV of its previous encryption");
+            }
+            pooledCipher.previousIv = iv.clone();
+        }
+        return cipher;
+    }
+
+    private PooledCipher get(String transformation, Key key) throws GeneralSecurityException {
+        if (!enabled) {
+            return new PooledCipher(Cipher.getInstance(transformation));
+        }
+        Map<String, PooledCipher> threadCiphers = ciphers.get();
+        String poolKey = transformation + '|' + key.getClass().getName();
+        PooledCipher pooledCipher = threadCiphers.get(poolKey);
+        if (pooledCipher == null) {
+            pooledCipher = new PooledCipher(Cipher.getInstance(transformation));
+            threadCiphers.put(poolKey, pooledCipher);
+        }
+        return pooledCipher;
+    }
+}
@@ -0,0 +1,71 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-based Extract-and-Expand Key Derivation Function (HKDF) using HMAC-SHA256, as defined in RFC 5869.
+ */
+public class Hkdf {
+
+    private static final String HMAC_ALG = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+
+    }
+
+    /**
+     * Derive key material from the given input key material.
+     * @param inputKeyMaterial the secret to derive the key from
+     * @param salt the salt value. An empty or null value means a salt of zeros.
+     * @param info context specific information to bind the derived key to
+     * @param length the length of the derived key in bytes. Can't be more than 255 * 32.
+     * @return the derived key material
+     * @throws GeneralSecurityException
+     */
+    public static byte[] derive(byte[] inputKeyMaterial, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        if (length <= 0 || length > 255 * HASH_LENGTH) {
+            throw new GeneralSecurityException("invalid HKDF output length " + length);
+        }
+        byte[] pseudoRandomKey = extract(salt, inputKeyMaterial);
+        try {
+            return expand(pseudoRandomKey, info, length);
+        } finally {
+            Arrays.fill(pseudoRandomKey, (byte) 0);
+        }
+    }
+
+    private static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws GeneralSecurityException {
+        if (salt == null || salt.length == 0) {
+            salt = new byte[HASH_LENGTH];
+        }
+        Mac mac = Mac.getInstance(HMAC_ALG);
+        mac.init(new SecretKeySpec(salt, HMAC_ALG));
+        return mac.doFinal(inputKeyMaterial);
+    }
+
+    private static byte[] expand(byte[] pseudoRandomKey, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_ALG);
+        mac.init(new SecretKeySpec(pseudoRandomKey, HMAC_ALG));
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int counter = 1; offset < length; counter++) {
+            mac.update(block);
+            if (info != null) {
+                mac.update(info);
+            }
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int toCopy = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, toCopy);
+            offset += toCopy;
+        }
+        Arrays.fill(block, (byte) 0);
+        return output;
+    }
+}
@@ -0,0 +1,86 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A two level key hierarchy. There is only one master key, and it is wrapped by a key in the {@link SecureKeyStore}.
+ * Other keys are derived from the master key using HKDF, so they don't need to be saved anywhere.
+ *
+ * The master key is unwrapped the first time it is needed, so only that operation requires the key store.
+ * This also means the number of entries in the key store doesn't grow when more keys are needed.
+ */
+public class KeyHierarchy {
+
+    private static final String SHARE_PREF_KEY_NAME = "KEY_HIERARCHY";
+    private static final String MASTER_KEY_ALIAS_PREFIX = "com.feedhenry.secureapp.masterkey.";
+    private static final int BASE64_FLAG = Base64.NO_WRAP;
+
+    private static final int MASTER_KEY_BYTES = 32;
+    private static final int DERIVED_KEY_BYTES = 32;
+    private static final String AES_ALG = "AES";
+
+    private final AesCrypto aesCrypto;
+    private final SharedPreferences sharedPreferences;
+    private final String name;
+    private final byte[] info;
+
+    private byte[] masterKey;
+
+    /**
+     * @param context the app context
+     * @param aesCrypto used to wrap the master key
+     * @param name the name of the hierarchy. Keys derived from hierarchies with different names are always different.
+     */
+    public KeyHierarchy(Context context, AesCrypto aesCrypto, String name) {
+        this.aesCrypto = aesCrypto;
+        this.sharedPreferences = context.getSharedPreferences(SHARE_PREF_KEY_NAME, Context.MODE_PRIVATE);
+        this.name = name;
+        this.info = ("KeyHierarchy/" + name).getBytes(Charset.forName("utf-8"));
+    }
+
+    /**
+     * Derive the AES key for the given salt, e.g. the id of the object the key protects.
+     * @param salt the salt value
+     * @return the derived AES key
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public SecretKey deriveKey(String salt) throws GeneralSecurityException, IOException {
+        byte[] keyBytes = Hkdf.derive(getMasterKey(), salt.getBytes("utf-8"), info, DERIVED_KEY_BYTES);
+        try {
+            return new SecretKeySpec(keyBytes, AES_ALG);
+        } finally {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    // tag::getMasterKey[]
+    private synchronized byte[] getMasterKey() throws GeneralSecurityException, IOException {
+        if (masterKey == null) {
+            String keyAlias = MASTER_KEY_ALIAS_PREFIX + name;
+            String wrappedKey = this.sharedPreferences.getString(name, null);
+            if (wrappedKey == null) {
+                byte[] newKey = new byte[MASTER_KEY_BYTES];
+                new SecureRandom().nextBytes(newKey);
+                wrappedKey = Base64.encodeToString(aesCrypto.encrypt(keyAlias, newKey), BASE64_FLAG);
+                this.sharedPreferences.edit().putString(name, wrappedKey).commit();
+                masterKey = newKey;
+            } else {
+                masterKey = aesCrypto.decrypt(keyAlias, Base64.decode(wrappedKey, BASE64_FLAG));
+            }
+        }
+        return masterKey;
+    }
+    // end::getMasterKey[]
+}
@@ -1,7 +1,9 @@
 package com.feedhenry.securenativeandroidtemplate.domain.crypto;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.security.KeyPairGeneratorSpec;
 import android.security.keystore.KeyProperties;
@@ -17,6 +19,7 @@ import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -27,6 +30,9 @@ import javax.security.auth.x500.X500Principal;
 /**
  * Implement the SecureKeyStore interface for pre Android M devices, but post Android KITKAT (API level 19 or v4.4).
  * In these versions the Android KeyStore only supports generating/persisting RSA key pairs. So we will used SharedPreferences to persist the encrypted AES key.
+ *
+ * Unwrapping an AES key is an RSA decryption, which is slow, so the unwrapped keys are kept in memory for a while (see {@link #setKeyCache(int, long)}).
+ * Their bytes are wiped when they expire or are dropped, when they are deleted, and when the app is asked to trim its memory.
  */
 @RequiresApi(Build.VERSION_CODES.KITKAT)
 public class PreAndroidMSecureKeyStore extends SecureKeyStoreImpl implements SecureKeyStore {
@@ -35,14 +41,40 @@ public class PreAndroidMSecureKeyStore extends SecureKeyStoreImpl implements Sec
     private static final int BASE64_FLAG = Base64.NO_WRAP;
     private static final int BIT_PER_BYTE = 8;
 
+    private static final int DEFAULT_KEY_CACHE_SIZE = 8;
+    private static final long DEFAULT_KEY_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
     private static final String RSA_KEY_ALIAS = "com.feedhenry.secureapp.rsakeypair";
     private Context context;
     private SharedPreferences sharedPreferences;
+    private volatile UnwrappedKeyCache keyCache = new UnwrappedKeyCache(DEFAULT_KEY_CACHE_SIZE, DEFAULT_KEY_CACHE_TTL_MILLIS);
 
     @Inject
     public PreAndroidMSecureKeyStore(Context context) {
         this.context = context;
         this.sharedPreferences = this.context.getSharedPreferences(SHARE_PREF_KEY_NAME, Context.MODE_PRIVATE);
+        this.context.registerComponentCallbacks(trimMemoryCallbacks);
+    }
+
+    /**
+     * Set how many of the unwrapped AES keys are kept in memory, and for how long. The keys that were already unwrapped are wiped.
+     * @param keyCacheSize the max number of keys to keep. 0 disables the cache. The default is 8.
+     * @param ttlMillis how long a key is kept after it's unwrapped, in milliseconds. The default is 5 minutes.
+     */
+    public void setKeyCache(int keyCacheSize, long ttlMillis) {
+        if (keyCacheSize < 0 || ttlMillis < 0) {
+            throw new IllegalArgumentException("the key cache size and ttl can't be negative");
+        }
+        UnwrappedKeyCache previousCache = this.keyCache;
+        this.keyCache = new UnwrappedKeyCache(keyCacheSize, ttlMillis);
+        previousCache.clear();
+    }
+
+    /**
+     * Wipe all the unwrapped AES keys that are kept in memory. They will be unwrapped again the next time they are used.
+     */
+    public void clearKeyCache() {
+        this.keyCache.clear();
     }
 
     @Override
@@ -63,11 +95,22 @@ public class PreAndroidMSecureKeyStore extends SecureKeyStoreImpl implements Sec
     // tag::getSecretKey[]
     @Override
     public Key getSecretKey(String keyAlias) throws GeneralSecurityException, IOException {
+        UnwrappedKeyCache cache = this.keyCache;
+        synchronized (cache) {
+            byte[] cachedKeyBytes = cache.get(keyAlias);
+            if (cachedKeyBytes != null) {
+                //the spec copies the bytes, so it's still usable after they are wiped
+                return new SecretKeySpec(cachedKeyBytes, KeyProperties.KEY_ALGORITHM_AES);
+            }
+        }
+        long cacheVersion = cache.getVersion();
         String encodedKey = this.sharedPreferences.getString(keyAlias, null);
         if (encodedKey != null) {
             byte[] encryptedKeyBytes = Base64.decode(encodedKey, BASE64_FLAG);
             byte[] keyBytes = rsaDecrypt(encryptedKeyBytes);
-            return new SecretKeySpec(keyBytes, KeyProperties.KEY_ALGORITHM_AES);
+            SecretKeySpec secretKey = new SecretKeySpec(keyBytes, KeyProperties.KEY_ALGORITHM_AES);
+            cache.put(keyAlias, keyBytes, cacheVersion);
+            return secretKey;
         }
         return null;
     }
@@ -79,9 +122,13 @@ public class PreAndroidMSecureKeyStore extends SecureKeyStoreImpl implements Sec
         byte[] secretKey = generateSecretKey(AES_KEYSIZE_128);
         byte[] encryptedKey = rsaEncrypt(secretKey);
         String encodedSecretKey = Base64.encodeToString(encryptedKey, BASE64_FLAG);
+        UnwrappedKeyCache cache = this.keyCache;
         SharedPreferences.Editor editor = this.sharedPreferences.edit();
         editor.putString(keyAlias, encodedSecretKey);
         editor.commit();
+        //the new key is usually loaded right after it's generated, so it's cached instead of being unwrapped again
+        cache.invalidate(keyAlias);
+        cache.put(keyAlias, secretKey, cache.getVersion());
     }
     // end::generateAESKey[]
 
@@ -116,12 +163,18 @@ public class PreAndroidMSecureKeyStore extends SecureKeyStoreImpl implements Sec
     @Override
     public void deleteKey(String keyAlias) throws GeneralSecurityException, IOException {
         if (hasSecretKey(keyAlias)) {
+            UnwrappedKeyCache cache = this.keyCache;
+            cache.invalidate(keyAlias);
             SharedPreferences.Editor editor = this.sharedPreferences.edit();
             editor.remove(keyAlias);
             editor.commit();
+            //also wipes the key if it was unwrapped again while it was being deleted
+            cache.invalidate(keyAlias);
         } else if (hasKeyPair(keyAlias)) {
             KeyStore ks = loadKeyStore();
             ks.deleteEntry(keyAlias);
+            //the keys that were wrapped with the key pair can't be unwrapped anymore
+            keyCache.clear();
         }
     }
 
@@ -134,6 +187,26 @@ public class PreAndroidMSecureKeyStore extends SecureKeyStoreImpl implements Sec
     }
     // end::generateSecretKey[]
 
+    /**
+     * Wipe the unwrapped keys when the app is asked to release memory, e.g. when it goes to the background.
+     */
+    private final ComponentCallbacks2 trimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            clearKeyCache();
+        }
+
+        @Override
+        public void onLowMemory() {
+            clearKeyCache();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+    };
+
     private byte[] rsaEncrypt(byte[] keyToEncrypt) throws GeneralSecurityException, IOException {
         KeyStore keyStore = loadKeyStore();
         if (!keyStore.containsAlias(RSA_KEY_ALIAS)) {
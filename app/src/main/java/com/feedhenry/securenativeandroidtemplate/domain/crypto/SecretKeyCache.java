@@ -0,0 +1,68 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A bounded cache of the secret keys loaded from the keystore, by alias. When it's full, the least recently used key is dropped.
+ *
+ * A key that is loaded while the cache is invalidated (e.g. while its alias is deleted) could be stale,
+ * so a key is only added if nothing was invalidated since {@link #getVersion()} was read, before loading it.
+ */
+class SecretKeyCache {
+
+    private final Map<String, SecretKey> keys;
+    private final int maxSize;
+    private long version = 0;
+
+    /**
+     * @param maxSize the max number of keys. 0 disables the cache.
+     */
+    SecretKeyCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.keys = new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized SecretKey get(String keyAlias) {
+        return keys.get(keyAlias);
+    }
+
+    /**
+     * @return the version to pass to {@link #put(String, SecretKey, long)}, read before the key is loaded
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Add a key, unless the cache was invalidated since the given version
+     * @param keyAlias the alias of the key
+     * @param secretKey the key
+     * @param loadVersion the version read before the key was loaded
+     */
+    synchronized void put(String keyAlias, SecretKey secretKey, long loadVersion) {
+        if (maxSize > 0 && loadVersion == version) {
+            keys.put(keyAlias, secretKey);
+        }
+    }
+
+    /**
+     * Remove the key with the given alias
+     * @param keyAlias the alias of the key
+     */
+    synchronized void invalidate(String keyAlias) {
+        version++;
+        keys.remove(keyAlias);
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+}
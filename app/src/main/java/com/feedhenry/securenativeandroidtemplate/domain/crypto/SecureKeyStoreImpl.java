@@ -19,10 +19,28 @@ public abstract class SecureKeyStoreImpl implements SecureKeyStore {
     protected static final String ALG_RSA_ECB_PCKS1Padding = "RSA/ECB/PKCS1Padding";
     protected static final String ALG_RSA_ECB_OAEPPadding = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
 
+    private volatile KeyStore keyStore;
+
+    /**
+     * Get the Android keystore. It's loaded the first time, and then shared by all the methods:
+     * the instance doesn't cache the entries, it asks the keystore service on each call, so it always sees the keys that are added or deleted later.
+     * @return the keystore
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
     protected KeyStore loadKeyStore() throws GeneralSecurityException, IOException {
-        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
-        keyStore.load(null);
-        return keyStore;
+        KeyStore loadedKeyStore = this.keyStore;
+        if (loadedKeyStore == null) {
+            synchronized (this) {
+                loadedKeyStore = this.keyStore;
+                if (loadedKeyStore == null) {
+                    loadedKeyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+                    loadedKeyStore.load(null);
+                    this.keyStore = loadedKeyStore;
+                }
+            }
+        }
+        return loadedKeyStore;
     }
 
     @Override
@@ -0,0 +1,378 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streaming authenticated encryption using AES/GCM, similar to the STREAM construction used by Tink's AES-GCM-HKDF streaming AEAD.
+ *
+ * The plain text is split into fixed size segments, and each segment is encrypted and authenticated on its own.
+ * This means the data can be decrypted one segment at a time, so the memory used doesn't depend on the size of the data.
+ *
+ * The format is:
+ * <pre>
+ * | segment size (4 bytes) | salt (16 bytes) | nonce prefix (7 bytes) | segment 0 | segment 1 | ... | last segment |
+ * </pre>
+ * Each segment is the encrypted data followed by a 16 bytes tag. All the segments except the last one have the same size,
+ * which can't be more than {@link #MAX_SEGMENT_SIZE}: the buffers are allocated from the size in the header before any segment is authenticated.
+ * A new key is derived for each stream from the given key and the random salt, using HKDF.
+ * The nonce of each segment is the nonce prefix, followed by the index of the segment and a flag that is only set for the last segment,
+ * so segments can't be reordered, removed or appended.
+ */
+public class SegmentedAesGcm {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String AES_MODE = "AES/GCM/NoPadding";
+    private static final String AES_ALG = "AES";
+    private static final int TAG_LENGTH = 16;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int NONCE_LENGTH = 12;
+    private static final int KEY_LENGTH = 32;
+    private static final byte[] KEY_INFO = {'S', 'e', 'g', 'm', 'e', 'n', 't', 'e', 'd', 'A', 'e', 's', 'G', 'c', 'm'};
+
+    /**
+     * The length of the header written before the first segment
+     */
+    public static final int HEADER_LENGTH = 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+
+    private SegmentedAesGcm() {
+
+    }
+
+    /**
+     * Returns an OutputStream that encrypts the data written to it. The header is written straight away.
+     * The last segment is written when the stream is closed.
+     * @param key the key to derive the stream key from. It must be exportable (like a key derived by {@link KeyHierarchy}).
+     * @param outputStream the stream to write the encrypted data to
+     * @param aad additional data that is authenticated with every segment, but not encrypted. Can be null.
+     * @param segmentSize the size of the plain text in each segment, up to {@link #MAX_SEGMENT_SIZE}
+     * @return the output stream
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static OutputStream newEncryptingStream(SecretKey key, OutputStream outputStream, byte[] aad, int segmentSize) throws GeneralSecurityException, IOException {
+        checkSegmentSize(segmentSize);
+        SecureRandom random = new SecureRandom();
+        byte[] header = new byte[HEADER_LENGTH];
+        ByteBuffer.wrap(header).putInt(segmentSize);
+        byte[] saltAndPrefix = new byte[SALT_LENGTH + NONCE_PREFIX_LENGTH];
+        random.nextBytes(saltAndPrefix);
+        System.arraycopy(saltAndPrefix, 0, header, 4, saltAndPrefix.length);
+        SegmentCipher segmentCipher = new SegmentCipher(key, header, aad);
+        outputStream.write(header);
+        return new EncryptingStream(outputStream, segmentCipher, segmentSize);
+    }
+
+    /**
+     * Returns an InputStream that decrypts the data, one segment at a time.
+     * @param key the key used for the encryption
+     * @param inputStream the encrypted data, starting with the header
+     * @param aad the additional data used for the encryption. Can be null.
+     * @return the plain text input stream. It throws an IOException if any segment can't be authenticated.
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static InputStream newDecryptingStream(SecretKey key, InputStream inputStream, byte[] aad) throws GeneralSecurityException, IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        readFully(inputStream, header, 0, header.length);
+        SegmentCipher segmentCipher = new SegmentCipher(key, header, aad);
+        return new DecryptingStream(inputStream, segmentCipher);
+    }
+
+    /**
+     * Decrypt all the segments in the given buffer. The plain text is written straight into the returned buffer, without any intermediate copies.
+     * @param key the key used for the encryption
+     * @param encrypted the encrypted data, starting with the header. It can be a mapped or a direct buffer.
+     * @param aad the additional data used for the encryption. Can be null.
+     * @return the plain text. The position is 0, and the limit is the size of the plain text.
+     * @throws GeneralSecurityException if any of the segments can't be authenticated
+     */
+    public static ByteBuffer decrypt(SecretKey key, ByteBuffer encrypted, byte[] aad) throws GeneralSecurityException {
+        if (encrypted.remaining() < HEADER_LENGTH) {
+            throw new GeneralSecurityException("the encrypted data is truncated");
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        encrypted.get(header);
+        SegmentCipher segmentCipher = new SegmentCipher(key, header, aad);
+        int encryptedSegmentSize = segmentCipher.getSegmentSize() + TAG_LENGTH;
+        int segmentCount = segmentCount(encrypted.remaining(), segmentCipher.getSegmentSize());
+        long plainTextSize = plainTextSize(encrypted.remaining(), segmentCount);
+        if (plainTextSize > Integer.MAX_VALUE - TAG_LENGTH) {
+            throw new GeneralSecurityException("the encrypted data is too large");
+        }
+        //some providers ask for room for the tag in the output buffer, even when decrypting
+        ByteBuffer output = ByteBuffer.allocate((int) plainTextSize + TAG_LENGTH);
+        ByteBuffer segment = encrypted.duplicate();
+        for (int i = 0; i < segmentCount; i++) {
+            int start = encrypted.position() + i * encryptedSegmentSize;
+            segment.limit(Math.min(start + encryptedSegmentSize, encrypted.limit()));
+            segment.position(start);
+            segmentCipher.decrypt(i, i == segmentCount - 1, segment, output);
+        }
+        output.flip();
+        return output;
+    }
+
+    /**
+     * Derives the key of a stream, and computes the nonces of its segments
+     */
+    private static class SegmentCipher {
+        private final Cipher cipher;
+        private final SecretKey streamKey;
+        private final byte[] aad;
+        private final byte[] noncePrefix;
+        private final int segmentSize;
+
+        SegmentCipher(SecretKey key, byte[] header, byte[] aad) throws GeneralSecurityException {
+            byte[] keyBytes = key.getEncoded();
+            if (keyBytes == null) {
+                throw new GeneralSecurityException("the segmented format requires a key that can be exported");
+            }
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            this.segmentSize = headerBuffer.getInt();
+            checkSegmentSize(segmentSize);
+            byte[] salt = new byte[SALT_LENGTH];
+            headerBuffer.get(salt);
+            this.noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            headerBuffer.get(noncePrefix);
+            byte[] streamKeyBytes = Hkdf.derive(keyBytes, salt, KEY_INFO, KEY_LENGTH);
+            this.streamKey = new SecretKeySpec(streamKeyBytes, AES_ALG);
+            Arrays.fill(streamKeyBytes, (byte) 0);
+            Arrays.fill(keyBytes, (byte) 0);
+            //authenticate the header with each segment
+            this.aad = aad == null ? header.clone() : concat(aad, header);
+            this.cipher = Cipher.getInstance(AES_MODE);
+        }
+
+        int getSegmentSize() {
+            return segmentSize;
+        }
+
+        int encrypt(int index, boolean last, byte[] in, int inLength, byte[] out) throws GeneralSecurityException {
+            cipher.init(Cipher.ENCRYPT_MODE, streamKey, nonce(index, last));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(in, 0, inLength, out, 0);
+        }
+
+        int decrypt(int index, boolean last, byte[] in, int inLength, byte[] out) throws GeneralSecurityException {
+            cipher.init(Cipher.DECRYPT_MODE, streamKey, nonce(index, last));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(in, 0, inLength, out, 0);
+        }
+
+        void decrypt(int index, boolean last, ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+            cipher.init(Cipher.DECRYPT_MODE, streamKey, nonce(index, last));
+            cipher.updateAAD(aad);
+            cipher.doFinal(in, out);
+        }
+
+        private GCMParameterSpec nonce(int index, boolean last) {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+            ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 4).putInt(index);
+            nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+            return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        }
+    }
+
+    private static class EncryptingStream extends FilterOutputStream {
+        private final SegmentCipher segmentCipher;
+        private final byte[] plainSegment;
+        private final byte[] encryptedSegment;
+        private int buffered = 0;
+        private int segmentIndex = 0;
+        private boolean closed = false;
+
+        EncryptingStream(OutputStream out, SegmentCipher segmentCipher, int segmentSize) {
+            super(out);
+            this.segmentCipher = segmentCipher;
+            this.plainSegment = new byte[segmentSize];
+            this.encryptedSegment = new byte[segmentSize + TAG_LENGTH];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                //a full segment is only written once we know it's not the last one
+                if (buffered == plainSegment.length) {
+                    writeSegment(false);
+                }
+                int toCopy = Math.min(len, plainSegment.length - buffered);
+                System.arraycopy(b, off, plainSegment, buffered, toCopy);
+                buffered += toCopy;
+                off += toCopy;
+                len -= toCopy;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSegment(true);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            try {
+                int length = segmentCipher.encrypt(segmentIndex, last, plainSegment, buffered, encryptedSegment);
+                out.write(encryptedSegment, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            segmentIndex++;
+            buffered = 0;
+        }
+    }
+
+    private static class DecryptingStream extends InputStream {
+        private final InputStream in;
+        private final SegmentCipher segmentCipher;
+        //one extra byte to find out if a segment is the last one
+        private final byte[] encryptedSegment;
+        private final byte[] plainSegment;
+        private int encryptedBuffered = 0;
+        private int plainPosition = 0;
+        private int plainLength = 0;
+        private int segmentIndex = 0;
+        private boolean lastSegmentRead = false;
+
+        DecryptingStream(InputStream in, SegmentCipher segmentCipher) {
+            this.in = in;
+            this.segmentCipher = segmentCipher;
+            this.encryptedSegment = new byte[segmentCipher.getSegmentSize() + TAG_LENGTH + 1];
+            this.plainSegment = new byte[segmentCipher.getSegmentSize()];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (plainPosition == plainLength) {
+                if (lastSegmentRead) {
+                    return -1;
+                }
+                readSegment();
+            }
+            int toCopy = Math.min(len, plainLength - plainPosition);
+            System.arraycopy(plainSegment, plainPosition, b, off, toCopy);
+            plainPosition += toCopy;
+            return toCopy;
+        }
+
+        private void readSegment() throws IOException {
+            while (encryptedBuffered < encryptedSegment.length) {
+                int count = in.read(encryptedSegment, encryptedBuffered, encryptedSegment.length - encryptedBuffered);
+                if (count < 0) {
+                    break;
+                }
+                encryptedBuffered += count;
+            }
+            boolean last = encryptedBuffered < encryptedSegment.length;
+            int segmentLength = last ? encryptedBuffered : encryptedSegment.length - 1;
+            if (segmentLength < TAG_LENGTH) {
+                throw new EOFException("the encrypted data is truncated");
+            }
+            try {
+                plainLength = segmentCipher.decrypt(segmentIndex, last, encryptedSegment, segmentLength, plainSegment);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("failed to authenticate segment " + segmentIndex, e);
+            }
+            plainPosition = 0;
+            segmentIndex++;
+            lastSegmentRead = last;
+            if (!last) {
+                //move the extra byte to the start of the next segment
+                encryptedSegment[0] = encryptedSegment[encryptedSegment.length - 1];
+                encryptedBuffered = 1;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of segments in the encrypted data (without the header) of the given size
+     */
+    private static int segmentCount(long encryptedSize, int segmentSize) throws GeneralSecurityException {
+        int encryptedSegmentSize = segmentSize + TAG_LENGTH;
+        long fullSegments = encryptedSize / encryptedSegmentSize;
+        long remaining = encryptedSize % encryptedSegmentSize;
+        if (remaining == 0 && fullSegments > 0) {
+            //the last segment is a full one
+            remaining = encryptedSegmentSize;
+            fullSegments--;
+        }
+        if (remaining < TAG_LENGTH || fullSegments >= Integer.MAX_VALUE) {
+            throw new GeneralSecurityException("invalid encrypted data size " + encryptedSize);
+        }
+        return (int) fullSegments + 1;
+    }
+
+    /**
+     * @return the size of the plain text of the encrypted data (without the header) of the given size
+     */
+    private static long plainTextSize(long encryptedSize, int segmentCount) {
+        return encryptedSize - (long) segmentCount * TAG_LENGTH;
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = in.read(b, off, len);
+            if (count < 0) {
+                throw new EOFException("the encrypted data is truncated");
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    private static void checkSegmentSize(int segmentSize) throws GeneralSecurityException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new GeneralSecurityException("invalid segment size " + segmentSize);
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the raw bytes of the keys unwrapped by {@link PreAndroidMSecureKeyStore}, by alias, so they don't have to be decrypted with the RSA key each time.
+ * The keys are kept for a limited time after they are unwrapped, and when it's full, the least recently used key is dropped.
+ * The bytes of a key are wiped (filled with zeros) whenever it leaves the cache.
+ *
+ * Like {@link SecretKeyCache}, a key that is unwrapped while the cache is invalidated could be stale,
+ * so a key is only added if nothing was invalidated since {@link #getVersion()} was read, before unwrapping it.
+ */
+class UnwrappedKeyCache {
+
+    private static class Entry {
+        final byte[] keyBytes;
+        final long expiresAt;
+
+        Entry(byte[] keyBytes, long expiresAt) {
+            this.keyBytes = keyBytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> keys;
+    private final int maxSize;
+    private final long ttlMillis;
+    private long version = 0;
+
+    /**
+     * @param maxSize the max number of keys. 0 disables the cache.
+     * @param ttlMillis how long a key is kept after it's added, in milliseconds
+     */
+    UnwrappedKeyCache(final int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.keys = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxSize) {
+                    wipe(eldest.getValue().keyBytes);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the bytes of a key. They belong to the cache and can be wiped at any time, so they have to be copied before the lock is released,
+     * e.g. by creating a {@link javax.crypto.spec.SecretKeySpec} while holding the lock of the cache.
+     * @param keyAlias the alias of the key
+     * @return the bytes of the key, or null if it's not cached or it expired
+     */
+    synchronized byte[] get(String keyAlias) {
+        Entry entry = keys.get(keyAlias);
+        if (entry == null) {
+            return null;
+        }
+        if (now() >= entry.expiresAt) {
+            keys.remove(keyAlias);
+            wipe(entry.keyBytes);
+            return null;
+        }
+        return entry.keyBytes;
+    }
+
+    /**
+     * @return the version to pass to {@link #put(String, byte[], long)}, read before the key is unwrapped
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Add the bytes of a key, unless the cache was invalidated since the given version. The cache takes the bytes over:
+     * they are not copied, and they are wiped when the key leaves the cache, or right away if they are not added.
+     * @param keyAlias the alias of the key
+     * @param keyBytes the bytes of the key
+     * @param loadVersion the version read before the key was unwrapped
+     */
+    synchronized void put(String keyAlias, byte[] keyBytes, long loadVersion) {
+        if (maxSize <= 0 || loadVersion != version) {
+            wipe(keyBytes);
+            return;
+        }
+        removeExpired();
+        Entry previous = keys.put(keyAlias, new Entry(keyBytes, now() + ttlMillis));
+        if (previous != null && previous.keyBytes != keyBytes) {
+            wipe(previous.keyBytes);
+        }
+    }
+
+    /**
+     * Remove and wipe the key with the given alias
+     * @param keyAlias the alias of the key
+     */
+    synchronized void invalidate(String keyAlias) {
+        version++;
+        Entry entry = keys.remove(keyAlias);
+        if (entry != null) {
+            wipe(entry.keyBytes);
+        }
+    }
+
+    /**
+     * Remove and wipe all the keys
+     */
+    synchronized void clear() {
+        version++;
+        for (Entry entry : keys.values()) {
+            wipe(entry.keyBytes);
+        }
+        keys.clear();
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return the current time in milliseconds, only used to compare with the expiry of the keys
+     */
+    long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private void removeExpired() {
+        long now = now();
+        Iterator<Entry> entries = keys.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (now >= entry.expiresAt) {
+                wipe(entry.keyBytes);
+                entries.remove();
+            }
+        }
+    }
+
+    private static void wipe(byte[] keyBytes) {
+        Arrays.fill(keyBytes, (byte) 0);
+    }
+}
@@ -0,0 +1,60 @@
+package com.feedhenry.securenativeandroidtemplate.domain.models;
+
+import java.util.Comparator;
+
+/**
+ * A note that matches a search, with the part of the note that matches and how relevant it is.
+ */
+public class NoteSearchResult {
+
+    /**
+     * Order the results from the most to the least relevant
+     */
+    public static final Comparator<NoteSearchResult> MOST_RELEVANT_FIRST = new Comparator<NoteSearchResult>() {
+        @Override
+        public int compare(NoteSearchResult first, NoteSearchResult second) {
+            return Double.compare(second.score, first.score);
+        }
+    };
+
+    private final String noteId;
+    private final int storeType;
+    private final String title;
+    private final String snippet;
+    private final double score;
+
+    /**
+     * @param noteId the id of the note
+     * @param storeType the type of the store of the note
+     * @param title the title of the note
+     * @param snippet the part of the note that matches the search
+     * @param score the relevance of the note, higher is more relevant
+     */
+    public NoteSearchResult(String noteId, int storeType, String title, String snippet, double score) {
+        this.noteId = noteId;
+        this.storeType = storeType;
+        this.title = title;
+        this.snippet = snippet;
+        this.score = score;
+    }
+
+    public String getNoteId() {
+        return noteId;
+    }
+
+    public int getStoreType() {
+        return storeType;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getSnippet() {
+        return snippet;
+    }
+
+    public double getScore() {
+        return score;
+    }
+}
@@ -0,0 +1,82 @@
+package com.feedhenry.securenativeandroidtemplate.domain.models;
+
+import java.util.Comparator;
+
+/**
+ * The position in a paged list of notes.
+ *
+ * The notes are listed newest first: by creation time, and then by id for notes created at the same time, so every note has a unique position.
+ * A page starts right after the cursor, so the cursor of the next page is the position of the last note of the current one.
+ * Unlike an offset, the cursor stays valid when notes are added or removed before it.
+ */
+public class PageCursor implements Comparable<PageCursor> {
+
+    /**
+     * Order the notes the way they are paged
+     */
+    public static final Comparator<Note> NEWEST_FIRST = new Comparator<Note>() {
+        @Override
+        public int compare(Note first, Note second) {
+            return PageCursor.compare(first.getCreatedAt().getTime(), first.getId(), second.getCreatedAt().getTime(), second.getId());
+        }
+    };
+
+    private final long createdAt;
+    private final String id;
+
+    public PageCursor(long createdAt, String id) {
+        this.createdAt = createdAt;
+        this.id = id;
+    }
+
+    /**
+     * @param note the last note of a page
+     * @return the cursor of the next page
+     */
+    public static PageCursor after(Note note) {
+        return new PageCursor(note.getCreatedAt().getTime(), note.getId());
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param note a note
+     * @return true if the note comes after the cursor, i.e. it belongs to the pages that start at the cursor
+     */
+    public boolean isBefore(Note note) {
+        return compare(createdAt, id, note.getCreatedAt().getTime(), note.getId()) < 0;
+    }
+
+    @Override
+    public int compareTo(PageCursor other) {
+        return compare(createdAt, id, other.createdAt, other.id);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PageCursor)) {
+            return false;
+        }
+        PageCursor cursor = (PageCursor) other;
+        return createdAt == cursor.createdAt && id.equals(cursor.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (createdAt ^ (createdAt >>> 32)) + id.hashCode();
+    }
+
+    private static int compare(long firstCreatedAt, String firstId, long secondCreatedAt, String secondId) {
+        //newer notes first
+        if (firstCreatedAt != secondCreatedAt) {
+            return firstCreatedAt > secondCreatedAt ? -1 : 1;
+        }
+        return secondId.compareTo(firstId);
+    }
+}
@@ -1,8 +1,11 @@
 package com.feedhenry.securenativeandroidtemplate.domain.repositories;
 
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Define a repository that can be used to perform CRUDL operations on the notes.
@@ -15,6 +18,21 @@ public interface NoteRepository {
      */
     List<Note> listNotes() throws Exception;
 
+    /**
+     * Read a page of the notes from all the data stores, newest first
+     * @param after where the page starts: {@link PageCursor#after(Note)} the last note of the previous page, or null for the first page
+     * @param pageSize the max number of notes in the page
+     */
+    List<Note> listNotes(PageCursor after, int pageSize) throws Exception;
+
+    /**
+     * Search the notes of all the data stores
+     * @param query the search as typed by the user
+     * @param limit the max number of results
+     * @return the matching notes, most relevant first
+     */
+    List<NoteSearchResult> searchNotes(String query, int limit) throws Exception;
+
     /**
      * Read the details about the a note with the given noteId
      * @param noteId the id of the node
@@ -56,4 +74,11 @@ public interface NoteRepository {
      */
     long count() throws Exception;
 
+    /**
+     * Return the number of notes in each store
+     * @return the number of notes, by store type
+     * @throws Exception
+     */
+    Map<Integer, Long> countByStore() throws Exception;
+
 }
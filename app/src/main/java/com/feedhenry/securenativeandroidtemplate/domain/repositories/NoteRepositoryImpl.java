@@ -1,12 +1,17 @@
 package com.feedhenry.securenativeandroidtemplate.domain.repositories;
 
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStore;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStoreFactory;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteStoreException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -36,6 +41,41 @@ public class NoteRepositoryImpl implements NoteRepository {
         return notes;
     }
 
+    /**
+     * Each store returns its own page after the same cursor. The page of the repository is the first notes of all those pages, merged in order.
+     */
+    @Override
+    public List<Note> listNotes(PageCursor after, int pageSize) throws Exception {
+        List<Note> notes = new ArrayList<Note>();
+        List<NoteDataStore> stores = this.noteStoreFactory.getAllStores();
+        for (NoteDataStore store: stores) {
+            notes.addAll(store.listNotes(after, pageSize));
+        }
+        //the pages are already sorted, so this is only a merge of sorted runs
+        Collections.sort(notes, PageCursor.NEWEST_FIRST);
+        if (notes.size() > pageSize) {
+            notes = new ArrayList<Note>(notes.subList(0, pageSize));
+        }
+        return notes;
+    }
+
+    /**
+     * The results of all the stores are merged by their scores. Each store ranks its results in its own way, so the order across stores is only approximate.
+     */
+    @Override
+    public List<NoteSearchResult> searchNotes(String query, int limit) throws Exception {
+        List<NoteSearchResult> results = new ArrayList<NoteSearchResult>();
+        List<NoteDataStore> stores = this.noteStoreFactory.getAllStores();
+        for (NoteDataStore store: stores) {
+            results.addAll(store.searchNotes(query, limit));
+        }
+        Collections.sort(results, NoteSearchResult.MOST_RELEVANT_FIRST);
+        if (results.size() > limit) {
+            results = new ArrayList<NoteSearchResult>(results.subList(0, limit));
+        }
+        return results;
+    }
+
     @Override
     public Note readNote(String noteId) throws Exception {
         Note readNote = null;
@@ -94,13 +134,22 @@ public class NoteRepositoryImpl implements NoteRepository {
 
     @Override
     public long count() throws Exception {
-        List<Note> notes = new ArrayList<Note>();
+        long total = 0;
+        for (long storeCount : countByStore().values()) {
+            total += storeCount;
+        }
+        return total;
+    }
+
+    @Override
+    public Map<Integer, Long> countByStore() throws Exception {
         List<NoteDataStore> stores = this.noteStoreFactory.getAllStores();
-        int total = 0;
+        //in the order of the stores
+        Map<Integer, Long> counts = new LinkedHashMap<Integer, Long>();
         for (NoteDataStore store : stores) {
-            total += store.count();
+            counts.put(store.getType(), store.count());
         }
-        return total;
+        return counts;
     }
 
 
@@ -0,0 +1,427 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write files atomically. The content is written to a temporary file first, which is then renamed to replace the target file.
+ * If the app is killed half way through a write, the target file will have either the old or the new content, never a mix of both.
+ *
+ * A temporary file is always synced to the storage before it replaces its target, and the directory is synced after the rename,
+ * so a power loss can't replace a good file with an empty or torn one either.
+ */
+public class AtomicFileWriter {
+
+    /**
+     * Control when the written data is flushed to the storage device.
+     */
+    public enum DurabilityMode {
+        /**
+         * Each write is synced to the storage, and replaces the target file when its stream is closed. This is the safest, but also the slowest mode.
+         */
+        SYNC,
+        /**
+         * Writes are kept in their temporary files, and replace their target files in batches (or when {@link #sync()} is called):
+         * the temporary files are synced, then renamed, then their directories are synced, and only then the appended files are synced.
+         * Until then, the files are read from their temporary files (see {@link #openForRead(File)}).
+         * A crash can lose the writes that are not synced yet, but the files will not be torn.
+         * The temporary files of the lost writes are left behind, see {@link #deleteStaleTempFiles(File)}.
+         */
+        GROUP_COMMIT
+    }
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int DEFAULT_GROUP_COMMIT_SIZE = 8;
+
+    private final DurabilityMode durabilityMode;
+    private final int groupCommitSize;
+    //guards the pending files, and the renames of the pending replacements
+    private final Object pendingLock = new Object();
+    //the temporary files that will replace their targets on the next sync, by target
+    private final Map<File, File> pendingReplacements = new LinkedHashMap<File, File>();
+    private final Set<File> pendingAppends = new LinkedHashSet<File>();
+    //gives each write its own temporary file, so a batch never renames a file that is still being written
+    private final AtomicLong tempFileCounter = new AtomicLong();
+
+    public AtomicFileWriter(DurabilityMode durabilityMode) {
+        this(durabilityMode, DEFAULT_GROUP_COMMIT_SIZE);
+    }
+
+    /**
+     * @param durabilityMode when the data should be synced
+     * @param groupCommitSize how many writes are batched before they are synced. Only used by {@link DurabilityMode#GROUP_COMMIT}.
+     */
+    public AtomicFileWriter(DurabilityMode durabilityMode, int groupCommitSize) {
+        this.durabilityMode = durabilityMode;
+        this.groupCommitSize = groupCommitSize;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    /**
+     * Open a stream to replace the content of the given file. The target file is replaced when the stream is closed,
+     * or, in the {@link DurabilityMode#GROUP_COMMIT} mode, when the batch is synced.
+     * A file must only be written by one stream at a time.
+     * @param target the file to write
+     * @return the output stream
+     * @throws IOException
+     */
+    public OutputStream openForWrite(File target) throws IOException {
+        File tempFile = new File(target.getPath() + "." + tempFileCounter.incrementAndGet() + TEMP_FILE_SUFFIX);
+        return new AtomicOutputStream(target, tempFile, new FileOutputStream(tempFile));
+    }
+
+    /**
+     * Discard a write opened by {@link #openForWrite(File)}: the stream is closed and its temporary file is removed, without replacing the target.
+     * Does nothing if the stream is already closed.
+     * @param stream the stream returned by {@link #openForWrite(File)}
+     */
+    public void abort(OutputStream stream) {
+        if (!(stream instanceof AtomicOutputStream)) {
+            throw new IllegalArgumentException("Not a stream of this writer");
+        }
+        ((AtomicOutputStream) stream).abort();
+    }
+
+    /**
+     * Open the latest content of the given file: its temporary file if it's waiting for the next sync, or the file itself.
+     * The stream stays valid when the temporary file is renamed.
+     * @param target the file to read
+     * @return the input stream
+     * @throws FileNotFoundException if the file doesn't exist
+     */
+    public FileInputStream openForRead(File target) throws FileNotFoundException {
+        synchronized (pendingLock) {
+            File tempFile = pendingReplacements.get(target);
+            return new FileInputStream(tempFile != null ? tempFile : target);
+        }
+    }
+
+    /**
+     * @param target the file
+     * @return the length of the latest content of the given file (see {@link #openForRead(File)}), or 0 if it doesn't exist
+     */
+    public long length(File target) {
+        synchronized (pendingLock) {
+            File tempFile = pendingReplacements.get(target);
+            return (tempFile != null ? tempFile : target).length();
+        }
+    }
+
+    /**
+     * Make sure data appended to the given file is durable, according to the durability mode.
+     * The stream is not closed.
+     * @param file the file that has been appended to
+     * @param out the stream used to append the data
+     * @throws IOException
+     */
+    public void commitAppend(File file, FileOutputStream out) throws IOException {
+        out.flush();
+        if (durabilityMode == DurabilityMode.SYNC) {
+            out.getFD().sync();
+        } else {
+            boolean syncNow;
+            synchronized (pendingLock) {
+                pendingAppends.add(file);
+                syncNow = pendingCount() >= groupCommitSize;
+            }
+            if (syncNow) {
+                sync();
+            }
+        }
+    }
+
+    /**
+     * Sync all the writes that are not synced yet: the pending temporary files are synced first,
+     * then they replace their targets, then the directories of the replaced files are synced, and finally the appended files are synced.
+     * The appended files are last, as they usually record the writes (e.g. a journal), so they should never be durable before the files they refer to.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        Map<File, File> replacements;
+        File[] appends;
+        synchronized (pendingLock) {
+            replacements = new LinkedHashMap<File, File>(pendingReplacements);
+            appends = pendingAppends.toArray(new File[pendingAppends.size()]);
+            pendingAppends.clear();
+        }
+        for (File tempFile : replacements.values()) {
+            syncFile(tempFile);
+        }
+
+        Set<File> directories = new LinkedHashSet<File>();
+        List<File> failedTargets = new ArrayList<File>();
+        synchronized (pendingLock) {
+            for (Map.Entry<File, File> replacement : replacements.entrySet()) {
+                File target = replacement.getKey();
+                File tempFile = replacement.getValue();
+                //skip the files that have been written again or removed since they were synced
+                if (pendingReplacements.get(target) != tempFile) {
+                    continue;
+                }
+                pendingReplacements.remove(target);
+                if (tempFile.renameTo(target)) {
+                    directories.add(target.getParentFile());
+                } else {
+                    tempFile.delete();
+                    failedTargets.add(target);
+                }
+            }
+        }
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+        for (File file : appends) {
+            syncFile(file);
+        }
+        if (!failedTargets.isEmpty()) {
+            throw new IOException("Failed to replace file " + failedTargets.get(0).getName());
+        }
+    }
+
+    /**
+     * Remove the temporary files of the given target: the one waiting for the next sync, and the ones left by interrupted writes.
+     * It must not be called while the target is being written.
+     * @param target the target file
+     */
+    public void deleteTempFile(File target) {
+        File pendingFile;
+        synchronized (pendingLock) {
+            pendingFile = pendingReplacements.remove(target);
+        }
+        if (pendingFile != null) {
+            pendingFile.delete();
+        }
+        File[] leftovers = target.getParentFile().listFiles();
+        if (leftovers == null) {
+            return;
+        }
+        String prefix = target.getName() + ".";
+        for (File leftover : leftovers) {
+            String name = leftover.getName();
+            if (name.startsWith(prefix) && name.endsWith(TEMP_FILE_SUFFIX)) {
+                leftover.delete();
+            }
+        }
+    }
+
+    /**
+     * Remove the temporary files left in the given directory by a previous run of the app: the writes that were interrupted,
+     * and, in the {@link DurabilityMode#GROUP_COMMIT} mode, the writes that were not synced before the app was stopped.
+     * They can't be told apart, so none of them is rolled forward.
+     * The temporary files of the writes made by this writer are kept.
+     * @param directory the directory of the target files
+     * @return the target files whose temporary files were removed, i.e. the files that may have lost a write
+     */
+    public List<File> deleteStaleTempFiles(File directory) {
+        List<File> targets = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return targets;
+        }
+        Set<File> ownTempFiles;
+        synchronized (pendingLock) {
+            ownTempFiles = new HashSet<File>(pendingReplacements.values());
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(TEMP_FILE_SUFFIX) || !file.isFile() || ownTempFiles.contains(file)) {
+                continue;
+            }
+            //the name of a temporary file is the name of its target, followed by a counter and the suffix
+            String targetName = name.substring(0, name.length() - TEMP_FILE_SUFFIX.length());
+            int counterStart = targetName.lastIndexOf('.');
+            if (counterStart > 0 && isCounter(targetName.substring(counterStart + 1))) {
+                targetName = targetName.substring(0, counterStart);
+            }
+            file.delete();
+            File target = new File(directory, targetName);
+            if (!targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+        return targets;
+    }
+
+    private static boolean isCounter(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Flush the content of the given file to the storage. Files that have been removed are skipped.
+     */
+    void syncFile(File file) throws IOException {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException notFound) {
+            //it has been removed since it was written
+            return;
+        }
+        try {
+            in.getFD().sync();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Flush the entries of the given directory to the storage, so a rename in it is durable.
+     */
+    void syncDirectory(File directory) throws IOException {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            Os.fsync(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to sync directory " + directory.getName(), e);
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    //the directory has been synced already
+                }
+            }
+        }
+    }
+
+    private int pendingCount() {
+        return pendingReplacements.size() + pendingAppends.size();
+    }
+
+    private class AtomicOutputStream extends FilterOutputStream {
+
+        private final File target;
+        private final File tempFile;
+        private final FileOutputStream fileStream;
+        private boolean closed = false;
+        //set once a write fails, so the incomplete file never replaces the target, even if the stream is closed after the failure
+        private boolean failed = false;
+
+        AtomicOutputStream(File target, File tempFile, FileOutputStream fileStream) {
+            super(fileStream);
+            this.target = target;
+            this.tempFile = tempFile;
+            this.fileStream = fileStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            discard();
+        }
+
+        private void discard() {
+            try {
+                fileStream.close();
+            } catch (IOException ignored) {
+                //the file is removed anyway, and the original failure is the one to report
+            }
+            tempFile.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (failed) {
+                abort();
+                throw new IOException("Failed to write file " + target.getName());
+            }
+            closed = true;
+            try {
+                fileStream.flush();
+                if (durabilityMode == DurabilityMode.SYNC) {
+                    fileStream.getFD().sync();
+                }
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+            fileStream.close();
+            if (durabilityMode == DurabilityMode.SYNC) {
+                if (!tempFile.renameTo(target)) {
+                    tempFile.delete();
+                    throw new IOException("Failed to replace file " + target.getName());
+                }
+                syncDirectory(target.getParentFile());
+                return;
+            }
+            boolean syncNow;
+            File replacedFile;
+            synchronized (pendingLock) {
+                replacedFile = pendingReplacements.put(target, tempFile);
+                syncNow = pendingCount() >= groupCommitSize;
+            }
+            if (replacedFile != null) {
+                //an older write of the same file that was not synced yet
+                replacedFile.delete();
+            }
+            if (syncNow) {
+                sync();
+            }
+        }
+    }
+}
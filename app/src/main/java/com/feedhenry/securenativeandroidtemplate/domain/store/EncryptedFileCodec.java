@@ -0,0 +1,375 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.AesCrypto;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyHierarchy;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.SegmentedAesGcm;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypt and decrypt the files (and journal records) of the {@link SecureFileNoteStore}.
+ *
+ * Data written before the key hierarchy was introduced has no header, and is encrypted with a key from the keystore that has the same alias as the file name.
+ * Newer data starts with a header that describes how it is encrypted. The header is authenticated as part of the encrypted data.
+ * Files that are encrypted with derived keys use the segmented format (see {@link SegmentedAesGcm}), so they can be decrypted a segment at a time.
+ * If a {@link PayloadCompressor} is set, the content of the files is compressed before it is encrypted. A header flag records it,
+ * so files without the flag (including all the files without a header) are still read as they are.
+ */
+class EncryptedFileCodec {
+
+    //files smaller than this are read into a heap buffer, larger ones are mapped into memory
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
+    private final AesCrypto aesCrypto;
+    private KeyHierarchy keyHierarchy;
+    private int segmentSize = SegmentedAesGcm.DEFAULT_SEGMENT_SIZE;
+    private PayloadCompressor compressor;
+
+    EncryptedFileCodec(AesCrypto aesCrypto) {
+        this.aesCrypto = aesCrypto;
+    }
+
+    /**
+     * Use the given key hierarchy to derive the keys for new data. Existing data stays readable.
+     * @param keyHierarchy the key hierarchy to use. Set it to null to use a keystore key per file again.
+     */
+    void setKeyHierarchy(KeyHierarchy keyHierarchy) {
+        this.keyHierarchy = keyHierarchy;
+    }
+
+    /**
+     * Set the size of the plain text segments of new files
+     * @param segmentSize the segment size in bytes
+     */
+    void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Compress the content of new files before they are encrypted
+     * @param compressor the compressor to use. Set it to null to save the content raw.
+     */
+    void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Returns an OutputStream that will encrypt the data written to it. The data is not compressed.
+     * @param name the name of the file. It decides which key is used.
+     * @param outputStream the original output stream
+     * @return the output stream that will encrypt the data
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    OutputStream encryptStream(String name, OutputStream outputStream) throws IOException, GeneralSecurityException {
+        if (keyHierarchy == null) {
+            return aesCrypto.encryptStream(name, outputStream);
+        }
+        return encryptStream(name, outputStream, new Header(Header.FLAG_DERIVED_KEY | Header.FLAG_SEGMENTED));
+    }
+
+    /**
+     * Encrypt the given content and write it to the stream, which is then closed.
+     * The content is compressed first if a compressor is set and the content is big enough.
+     * If it fails, the stream is left open, so the caller can discard what was written (see {@link AtomicFileWriter#abort(OutputStream)}).
+     * @param name the name of the file. It decides which key is used.
+     * @param outputStream the original output stream
+     * @param plainText the content to encrypt
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void encryptTo(String name, OutputStream outputStream, byte[] plainText) throws IOException, GeneralSecurityException {
+        byte[] compressed = compressor == null ? null : compressor.compress(plainText);
+        OutputStream encryptingStream;
+        if (compressed == null) {
+            encryptingStream = encryptStream(name, outputStream);
+        } else {
+            int keyFlags = keyHierarchy == null ? 0 : Header.FLAG_DERIVED_KEY | Header.FLAG_SEGMENTED;
+            encryptingStream = encryptStream(name, outputStream, new Header(keyFlags | Header.FLAG_DEFLATE));
+        }
+        //not closed if the write fails, as closing it would complete the file
+        encryptingStream.write(compressed == null ? plainText : compressed);
+        encryptingStream.close();
+    }
+
+    private OutputStream encryptStream(String name, OutputStream outputStream, Header header) throws IOException, GeneralSecurityException {
+        //load the key before anything is written, so a key failure leaves the stream empty
+        SecretKey key = getKey(name, header, true);
+        byte[] headerBytes = header.toByteArray();
+        outputStream.write(headerBytes);
+        if (header.hasFlag(Header.FLAG_SEGMENTED)) {
+            return SegmentedAesGcm.newEncryptingStream(key, outputStream, headerBytes, segmentSize);
+        }
+        return aesCrypto.encryptStream(key, outputStream, headerBytes);
+    }
+
+    /**
+     * Returns an InputStream that will decrypt the data read from the given stream.
+     * @param name the name of the file
+     * @param inputStream the encrypted input stream
+     * @return the plain text input stream
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    InputStream decryptStream(String name, InputStream inputStream) throws IOException, GeneralSecurityException {
+        PushbackInputStream in = new PushbackInputStream(inputStream, Header.MAGIC.length);
+        Header header = Header.read(in);
+        if (header == null) {
+            return aesCrypto.decryptStream(name, in);
+        }
+        SecretKey key = getKey(name, header, false);
+        InputStream decryptingStream;
+        if (header.hasFlag(Header.FLAG_SEGMENTED)) {
+            decryptingStream = SegmentedAesGcm.newDecryptingStream(key, in, header.toByteArray());
+        } else {
+            decryptingStream = aesCrypto.decryptStream(key, in, header.toByteArray());
+        }
+        if (header.hasFlag(Header.FLAG_DEFLATE)) {
+            return new InflaterInputStream(decryptingStream);
+        }
+        return decryptingStream;
+    }
+
+    /**
+     * Decrypt the whole content of the given file. Small files are read with a single read into a buffer of the size of the file,
+     * large files are mapped into memory. The cipher reads straight from that buffer, and writes into the returned buffer,
+     * so there are no intermediate copies of the data (except for the decompression of compressed files).
+     * @param name the name of the file. It decides which key is used.
+     * @param file the encrypted file
+     * @return the plain text. The position is 0, and the limit is the size of the plain text.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    ByteBuffer decryptFile(String name, File file) throws IOException, GeneralSecurityException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return decryptFile(name, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decrypt the whole content of the file opened by the given stream, like {@link #decryptFile(String, File)}. The stream is not closed.
+     * @param name the name of the file. It decides which key is used.
+     * @param in the stream of the encrypted file, at its start
+     * @return the plain text. The position is 0, and the limit is the size of the plain text.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    ByteBuffer decryptFile(String name, FileInputStream in) throws IOException, GeneralSecurityException {
+        ByteBuffer encrypted = readFile(in.getChannel());
+        Header header = Header.read(encrypted);
+        if (header == null) {
+            return aesCrypto.decrypt(name, encrypted);
+        }
+        SecretKey key = getKey(name, header, false);
+        ByteBuffer plainText;
+        if (header.hasFlag(Header.FLAG_SEGMENTED)) {
+            plainText = SegmentedAesGcm.decrypt(key, encrypted, header.toByteArray());
+        } else {
+            plainText = aesCrypto.decrypt(key, encrypted, header.toByteArray());
+        }
+        if (header.hasFlag(Header.FLAG_DEFLATE)) {
+            return PayloadCompressor.decompress(plainText);
+        }
+        return plainText;
+    }
+
+    private static ByteBuffer readFile(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size >= MAP_THRESHOLD) {
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encrypt a small piece of data, like a journal record.
+     * @param name the name the data belongs to. It decides which key is used.
+     * @param plainText the data to encrypt
+     * @return the encrypted data
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    byte[] encrypt(String name, byte[] plainText) throws IOException, GeneralSecurityException {
+        if (keyHierarchy == null) {
+            return aesCrypto.encrypt(name, plainText);
+        }
+        byte[] headerBytes = new Header(Header.FLAG_DERIVED_KEY).toByteArray();
+        byte[] encrypted = aesCrypto.encrypt(keyHierarchy.deriveKey(name), plainText, headerBytes);
+        byte[] output = Arrays.copyOf(headerBytes, headerBytes.length + encrypted.length);
+        System.arraycopy(encrypted, 0, output, headerBytes.length, encrypted.length);
+        return output;
+    }
+
+    /**
+     * Decrypt the data returned by {@link #encrypt(String, byte[])}
+     * @param name the name the data belongs to
+     * @param encrypted the encrypted data
+     * @return the plain text
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    byte[] decrypt(String name, byte[] encrypted) throws IOException, GeneralSecurityException {
+        if (!Header.startsWithMagic(encrypted)) {
+            return aesCrypto.decrypt(name, encrypted);
+        }
+        Header header = Header.parse(encrypted);
+        byte[] headerBytes = header.toByteArray();
+        return aesCrypto.decrypt(getKey(name, header, false), encrypted, headerBytes.length, encrypted.length - headerBytes.length, headerBytes);
+    }
+
+    /**
+     * Check if the file opened by the given stream is encrypted with its own key in the keystore, which then needs to be removed with the file.
+     * @param in the stream of the encrypted file, at its start. It is not closed.
+     * @return true if the file is encrypted with a keystore key (it has no header, or the header has no derived key flag)
+     * @throws IOException
+     */
+    boolean usesKeystoreKey(InputStream in) throws IOException {
+        Header header = Header.read(new PushbackInputStream(in, Header.MAGIC.length));
+        return header == null || !header.hasFlag(Header.FLAG_DERIVED_KEY);
+    }
+
+    /**
+     * Returns the key described by the header: derived from the key hierarchy, or the keystore key that has the name as its alias.
+     */
+    private SecretKey getKey(String name, Header header, boolean generate) throws IOException, GeneralSecurityException {
+        if (!header.hasFlag(Header.FLAG_DERIVED_KEY)) {
+            return aesCrypto.loadOrGenerateSecretKey(name, generate);
+        }
+        if (keyHierarchy == null) {
+            throw new GeneralSecurityException("the data is encrypted with a derived key, but no key hierarchy is set");
+        }
+        return keyHierarchy.deriveKey(name);
+    }
+
+    /**
+     * The header of the encrypted data: 4 magic bytes, followed by the version and the flags.
+     * The first byte of the magic is 0xFF, and data without the header starts with the (big-endian) length of the IV,
+     * so the two formats can't be mixed up.
+     * Without the derived key flag, the data is encrypted with the keystore key that has the name of the data as its alias.
+     */
+    static class Header {
+        static final byte[] MAGIC = {(byte) 0xFF, 'S', 'N', 'F'};
+        static final int LENGTH = MAGIC.length + 2;
+        static final byte VERSION = 1;
+
+        static final int FLAG_DERIVED_KEY = 1;
+        static final int FLAG_SEGMENTED = 2;
+        static final int FLAG_DEFLATE = 4;
+
+        private final int flags;
+
+        Header(int flags) {
+            this.flags = flags;
+        }
+
+        boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = Arrays.copyOf(MAGIC, LENGTH);
+            bytes[MAGIC.length] = VERSION;
+            bytes[MAGIC.length + 1] = (byte) flags;
+            return bytes;
+        }
+
+        static boolean startsWithMagic(byte[] data) {
+            if (data.length < MAGIC.length) {
+                return false;
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (data[i] != MAGIC[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static Header parse(byte[] data) throws IOException {
+            if (data.length < LENGTH) {
+                throw new IOException("invalid header");
+            }
+            return create(data[MAGIC.length], data[MAGIC.length + 1]);
+        }
+
+        /**
+         * Read the header from the given buffer.
+         * @return the header, or null if the data has no header. In this case the position of the buffer is not changed.
+         */
+        static Header read(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < MAGIC.length) {
+                return null;
+            }
+            int start = buffer.position();
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(start + i) != MAGIC[i]) {
+                    return null;
+                }
+            }
+            if (buffer.remaining() < LENGTH) {
+                throw new IOException("invalid header");
+            }
+            buffer.position(start + MAGIC.length);
+            byte version = buffer.get();
+            byte flags = buffer.get();
+            return create(version, flags);
+        }
+
+        /**
+         * Read the header from the given stream.
+         * @return the header, or null if the data has no header. In this case the stream is left at the start of the data.
+         */
+        static Header read(PushbackInputStream in) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            int read = 0;
+            while (read < magic.length) {
+                int count = in.read(magic, read, magic.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read < magic.length || !startsWithMagic(magic)) {
+                in.unread(magic, 0, read);
+                return null;
+            }
+            int version = in.read();
+            int flags = in.read();
+            if (version < 0 || flags < 0) {
+                throw new IOException("invalid header");
+            }
+            return create((byte) version, (byte) flags);
+        }
+
+        private static Header create(byte version, byte flags) throws IOException {
+            if (version != VERSION) {
+                throw new IOException("unsupported format version " + version);
+            }
+            return new Header(flags & 0xFF);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.feedhenry.securenativeandroidtemplate.domain.store;
 
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +37,30 @@ public class InMemoryNoteStore implements NoteDataStore {
         return note;
     }
 
+    @Override
+    public List<Note> createNotes(List<Note> notes) {
+        for (Note note : notes) {
+            createNote(note);
+        }
+        return notes;
+    }
+
+    @Override
+    public List<Note> updateNotes(List<Note> notes) {
+        for (Note note : notes) {
+            updateNote(note);
+        }
+        return notes;
+    }
+
+    @Override
+    public List<Note> deleteNotes(List<Note> notes) {
+        for (Note note : notes) {
+            deleteNote(note);
+        }
+        return notes;
+    }
+
     @Override
     public Note readNote(String noteId) {
         Note note = inMemoryStore.get(noteId);
@@ -47,6 +74,36 @@ public class InMemoryNoteStore implements NoteDataStore {
         return notes;
     }
 
+    @Override
+    public List<Note> listNotes(PageCursor after, int pageSize) {
+        List<Note> notes = listNotes();
+        Collections.sort(notes, PageCursor.NEWEST_FIRST);
+        List<Note> page = new ArrayList<Note>();
+        for (Note note : notes) {
+            if (page.size() == pageSize) {
+                break;
+            }
+            if (after == null || after.isBefore(note)) {
+                page.add(note);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public List<NoteSearchResult> searchNotes(String query, int limit) {
+        NoteMatcher matcher = new NoteMatcher(query);
+        List<NoteSearchResult> results = new ArrayList<NoteSearchResult>();
+        for (Note note : inMemoryStore.values()) {
+            int score = matcher.score(note.getTitle()) * 2 + matcher.score(note.getContent());
+            if (score > 0) {
+                results.add(new NoteSearchResult(note.getId(), getType(), note.getTitle(), note.getContent(), score));
+            }
+        }
+        Collections.sort(results, NoteSearchResult.MOST_RELEVANT_FIRST);
+        return results.size() > limit ? new ArrayList<NoteSearchResult>(results.subList(0, limit)) : results;
+    }
+
     @Override
     public int getType() {
         return STORE_TYPE_INMEMORY;
@@ -0,0 +1,283 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+
+/**
+ * An append-only journal of the changes made to the notes metadata.
+ * Each change is saved as its own record, and each record is encrypted (and authenticated) separately, so saving a note doesn't require re-encrypting all the metadata.
+ * The records are replayed on top of the metadata snapshot when the store is opened.
+ *
+ * Once the journal grows past the compaction threshold and the size of the snapshot, it is rotated out and the owner should fold it into a new snapshot.
+ * Waiting for the journal to be as big as the snapshot keeps the cost of the compactions proportional to the number of changes, no matter how many notes there are.
+ * Each record holds one or more operations, so a batch of changes is saved with a single write.
+ * Each operation is an operation byte followed by the note entry (or only the note id for a delete) encoded by {@link NoteMetadataIndex}.
+ * Journals written by older versions contain JSON records, which can still be replayed.
+ * Replaying a record is idempotent, so it's safe to replay records that are already part of the snapshot (e.g. if the app is killed during compaction).
+ */
+class MetadataJournal {
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    //used by the JSON records of older versions
+    private static final String LEGACY_OP_PUT = "put";
+    private static final String FIELD_OP = "op";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_VALUE = "value";
+
+    //any record larger than this can only be the result of a torn write
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final EncryptedFileCodec fileCodec;
+    private final String keyAlias;
+    private final File journalFile;
+    private final File compactingFile;
+    private final long compactionThreshold;
+    private final AtomicFileWriter fileWriter;
+
+    private long journalLength = 0;
+    private long snapshotLength = 0;
+
+    /**
+     * @param fileCodec used to encrypt/decrypt the records
+     * @param keyAlias the alias of the key that protects the records
+     * @param journalFile the file to append the records to
+     * @param compactionThreshold the size (in bytes) of the journal after which it should be compacted
+     * @param fileWriter decides when the appended records are synced
+     */
+    MetadataJournal(EncryptedFileCodec fileCodec, String keyAlias, File journalFile, long compactionThreshold, AtomicFileWriter fileWriter) {
+        this.fileCodec = fileCodec;
+        this.keyAlias = keyAlias;
+        this.journalFile = journalFile;
+        this.compactingFile = new File(journalFile.getPath() + ".compacting");
+        this.compactionThreshold = compactionThreshold;
+        this.fileWriter = fileWriter;
+    }
+
+    /**
+     * Record that the metadata of the given notes is added or changed, as a single record
+     * @param notes the notes
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void appendPuts(List<Note> notes) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        for (Note note : notes) {
+            record.write(OP_PUT);
+            NoteMetadataIndex.writeEntry(record, note);
+        }
+        append(record.toByteArray());
+    }
+
+    /**
+     * Record that the metadata of the given notes is removed, as a single record
+     * @param noteIds the ids of the notes
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void appendDeletes(List<String> noteIds) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        for (String noteId : noteIds) {
+            record.write(OP_DELETE);
+            NoteMetadataIndex.writeId(record, noteId);
+        }
+        append(record.toByteArray());
+    }
+
+    /**
+     * Append the record to the journal. If it fails, the journal is truncated back to its previous length,
+     * so a partial record never sits in front of the records appended after it.
+     */
+    private void append(byte[] record) throws IOException, GeneralSecurityException {
+        byte[] encrypted = fileCodec.encrypt(keyAlias, record);
+        FileOutputStream fileStream = new FileOutputStream(journalFile, true);
+        DataOutputStream out = new DataOutputStream(fileStream);
+        try {
+            out.writeInt(encrypted.length);
+            out.write(encrypted);
+            fileWriter.commitAppend(journalFile, fileStream);
+            out.close();
+        } catch (Throwable t) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                //the original failure is reported
+            }
+            try {
+                truncate(journalLength);
+            } catch (IOException truncateFailure) {
+                t.addSuppressed(truncateFailure);
+            }
+            throw t;
+        }
+        journalLength += 4 + encrypted.length;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Apply all the records in the journal to the given metadata.
+     * Records from a journal that was being compacted are applied first.
+     * If the last record is incomplete or its authentication tag doesn't match (e.g. the app was killed while writing it), it is dropped.
+     * Any other failure, e.g. the key can't be loaded, or a record in the middle of the journal can't be authenticated, is thrown and the journal is left as it is.
+     * @param metadata the metadata loaded from the snapshot
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void replay(NoteMetadataIndex metadata) throws IOException, GeneralSecurityException {
+        if (compactingFile.exists()) {
+            replayFile(compactingFile, metadata);
+        }
+        journalLength = 0;
+        if (journalFile.exists()) {
+            journalLength = replayFile(journalFile, metadata);
+            if (journalLength < journalFile.length()) {
+                //drop the torn record so new records are not appended after it
+                truncate(journalLength);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the valid records in the file
+     */
+    private long replayFile(File file, NoteMetadataIndex metadata) throws IOException, GeneralSecurityException {
+        long fileLength = file.length();
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int recordLength;
+                byte[] encrypted;
+                try {
+                    recordLength = in.readInt();
+                    if (recordLength <= 0 || recordLength > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    encrypted = new byte[recordLength];
+                    in.readFully(encrypted);
+                } catch (EOFException eof) {
+                    break;
+                }
+                long recordEnd = validLength + 4 + recordLength;
+                byte[] record;
+                try {
+                    record = fileCodec.decrypt(keyAlias, encrypted);
+                } catch (AEADBadTagException badTag) {
+                    if (recordEnd == fileLength) {
+                        //only the last record can be torn
+                        break;
+                    }
+                    throw badTag;
+                }
+                try {
+                    apply(record, metadata);
+                } catch (JSONException | BufferUnderflowException e) {
+                    throw new IOException("Invalid metadata journal record", e);
+                }
+                validLength = recordEnd;
+            }
+        } finally {
+            in.close();
+        }
+        return validLength;
+    }
+
+    private void apply(byte[] record, NoteMetadataIndex metadata) throws IOException, JSONException {
+        if (record.length > 0 && record[0] == '{') {
+            applyLegacy(new JSONObject(new String(record, "utf-8")), metadata);
+            return;
+        }
+        ByteBuffer data = ByteBuffer.wrap(record);
+        while (data.hasRemaining()) {
+            byte op = data.get();
+            if (op == OP_PUT) {
+                metadata.readEntry(data);
+            } else if (op == OP_DELETE) {
+                metadata.remove(NoteMetadataIndex.readId(data));
+            } else {
+                throw new IOException("unknown journal operation " + op);
+            }
+        }
+    }
+
+    private void applyLegacy(JSONObject record, NoteMetadataIndex metadata) throws JSONException {
+        String noteId = record.getString(FIELD_ID);
+        if (LEGACY_OP_PUT.equals(record.getString(FIELD_OP))) {
+            metadata.put(Note.fromJSON(record.getJSONObject(FIELD_VALUE)));
+        } else {
+            metadata.remove(noteId);
+        }
+    }
+
+    /**
+     * Set the size of the current snapshot
+     * @param snapshotLength the size of the snapshot file, in bytes
+     */
+    void setSnapshotLength(long snapshotLength) {
+        this.snapshotLength = snapshotLength;
+    }
+
+    /**
+     * @return true if the journal has grown past the threshold and the snapshot size, and there is no other compaction in progress
+     */
+    boolean needsCompaction() {
+        return journalLength >= Math.max(compactionThreshold, snapshotLength) && !compactingFile.exists();
+    }
+
+    /**
+     * @return true if a previous compaction has not completed
+     */
+    boolean hasPendingCompaction() {
+        return compactingFile.exists();
+    }
+
+    /**
+     * Move the current journal out of the way so new records go to a new journal file.
+     * The caller should then save a snapshot that includes all the records, and call {@link #finishCompaction(long)}.
+     * @throws IOException
+     */
+    void startCompaction() throws IOException {
+        if (journalFile.exists() && !journalFile.renameTo(compactingFile)) {
+            throw new IOException("Failed to rotate the metadata journal");
+        }
+        journalLength = 0;
+    }
+
+    /**
+     * Remove the journal records that are now part of the snapshot.
+     * It must only be called once the new snapshot is synced to the storage, otherwise a crash could lose both.
+     * @param snapshotLength the size of the new snapshot file, in bytes
+     */
+    void finishCompaction(long snapshotLength) {
+        this.snapshotLength = snapshotLength;
+        compactingFile.delete();
+    }
+}
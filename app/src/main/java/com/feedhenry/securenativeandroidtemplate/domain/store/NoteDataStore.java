@@ -1,6 +1,8 @@
 package com.feedhenry.securenativeandroidtemplate.domain.store;
 
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
 
 import java.util.List;
 
@@ -34,6 +36,25 @@ public interface NoteDataStore {
     Note deleteNote(Note note) throws Exception;
 
 
+    /**
+     * Save all the notes in the data store. This is a lot faster than saving them one by one.
+     * A large batch may be saved in several steps, so if it fails part of the notes may have been saved already.
+     * @param notes the notes to create
+     */
+    List<Note> createNotes(List<Note> notes) throws Exception;
+
+    /**
+     * Update all the notes in the data store. Like {@link #createNotes(List)}, a large batch may be saved in several steps.
+     * @param notes the notes to update
+     */
+    List<Note> updateNotes(List<Note> notes) throws Exception;
+
+    /**
+     * Delete all the notes in the data store. Like {@link #createNotes(List)}, a large batch may be deleted in several steps.
+     * @param notes the notes to delete
+     */
+    List<Note> deleteNotes(List<Note> notes) throws Exception;
+
     /**
      * Read the note from the data store
      * @param noteId the id of the note
@@ -45,6 +66,23 @@ public interface NoteDataStore {
      */
     List<Note> listNotes() throws Exception;
 
+    /**
+     * List a page of notes, in the order of {@link PageCursor#NEWEST_FIRST}. The notes don't include their content.
+     * @param after where the page starts: the cursor of the last note of the previous page, or null for the first page
+     * @param pageSize the max number of notes in the page
+     * @return the notes of the page. The last page has less notes than the page size.
+     */
+    List<Note> listNotes(PageCursor after, int pageSize) throws Exception;
+
+    /**
+     * Search the notes. Each word of the query is matched as a prefix, and all the words have to match.
+     * Stores that keep their notes encrypted one by one may only search the titles, to avoid decrypting every note.
+     * @param query the search as typed by the user
+     * @param limit the max number of results
+     * @return the matching notes, most relevant first
+     */
+    List<NoteSearchResult> searchNotes(String query, int limit) throws Exception;
+
     /**
      * Return the type of the store
      * @return
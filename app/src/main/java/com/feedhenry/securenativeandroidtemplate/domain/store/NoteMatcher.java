@@ -0,0 +1,56 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A simple search for the stores that don't have a full-text index. Like the search of the sqlite store,
+ * each word of the query is matched as a prefix of the words of the text, and all the words have to match.
+ */
+class NoteMatcher {
+
+    private static final String WORD_SEPARATORS = "[^\\p{L}\\p{N}]+";
+
+    private final List<String> terms = new ArrayList<String>();
+
+    NoteMatcher(String query) {
+        for (String term : query.toLowerCase(Locale.ROOT).split(WORD_SEPARATORS)) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+    }
+
+    /**
+     * @return true if the query has no word to search for, so nothing can match
+     */
+    boolean isEmpty() {
+        return terms.isEmpty();
+    }
+
+    /**
+     * @param text the text to search
+     * @return the number of words of the text that match a word of the query, or 0 if any word of the query doesn't match
+     */
+    int score(String text) {
+        if (text == null || terms.isEmpty()) {
+            return 0;
+        }
+        String[] words = text.toLowerCase(Locale.ROOT).split(WORD_SEPARATORS);
+        int hits = 0;
+        for (String term : terms) {
+            int termHits = 0;
+            for (String word : words) {
+                if (word.startsWith(term)) {
+                    termHits++;
+                }
+            }
+            if (termHits == 0) {
+                return 0;
+            }
+            hits += termHits;
+        }
+        return hits;
+    }
+}
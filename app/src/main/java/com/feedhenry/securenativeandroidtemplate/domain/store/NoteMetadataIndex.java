@@ -0,0 +1,458 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.UUID;
+
+/**
+ * The in-memory index of the notes metadata (id, title and creation time) of the {@link SecureFileNoteStore}.
+ *
+ * The metadata is kept in parallel arrays: the ids are shared with the lookup map, the creation times are primitive longs,
+ * and the titles are kept as UTF-8 bytes that are only decoded when a note is listed.
+ * The paged order (see {@link PageCursor}) is kept as an array of the positions of the notes, sorted by their creation times and ids,
+ * so a page is found with a binary search, for 4 bytes per note. The array is only sorted when the first page is read,
+ * so loading the snapshot and replaying the journal don't pay for it, and it's then kept sorted as the notes change.
+ *
+ * Each entry is encoded as: flags, id, varint creation time, varint title length, title bytes.
+ * Ids in the standard UUID format (the ones created by {@link Note}) take 16 bytes, other ids are saved as a varint length followed by the UTF-8 bytes.
+ * A snapshot is the magic, the version, the varint number of entries and then the entries.
+ */
+class NoteMetadataIndex {
+
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final byte[] MAGIC = {'S', 'N', 'M', 'I'};
+    private static final byte VERSION = 1;
+
+    private static final int FLAG_UUID_ID = 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private long[] createdAt = new long[INITIAL_CAPACITY];
+    private byte[][] titles = new byte[INITIAL_CAPACITY][];
+    //the positions of the notes in the paged order, only kept up to date once it has been sorted
+    private int[] order = new int[INITIAL_CAPACITY];
+    private boolean orderSorted = false;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String noteId) {
+        return positions.containsKey(noteId);
+    }
+
+    /**
+     * Add or replace the metadata of the given note
+     * @param note the note
+     */
+    void put(Note note) {
+        put(note.getId(), note.getTitle().getBytes(UTF8), note.getCreatedAt().getTime());
+    }
+
+    private void put(String noteId, byte[] title, long noteCreatedAt) {
+        Integer position = positions.get(noteId);
+        if (position == null) {
+            ensureCapacity(size + 1);
+            position = size++;
+            ids[position] = noteId;
+            positions.put(noteId, position);
+            createdAt[position] = noteCreatedAt;
+            if (orderSorted) {
+                insertInOrder(position, size - 1);
+            }
+        } else if (createdAt[position] != noteCreatedAt) {
+            if (orderSorted) {
+                removeFromOrder(searchOrder(createdAt[position], noteId, size), size);
+            }
+            createdAt[position] = noteCreatedAt;
+            if (orderSorted) {
+                insertInOrder(position, size - 1);
+            }
+        }
+        titles[position] = title;
+    }
+
+    /**
+     * Remove the metadata of the given note. The last entry is moved into the freed slot, so the arrays have no gaps.
+     * @param noteId the id of the note
+     * @return true if the note was in the index
+     */
+    boolean remove(String noteId) {
+        Integer position = positions.remove(noteId);
+        if (position == null) {
+            return false;
+        }
+        if (orderSorted) {
+            removeFromOrder(searchOrder(createdAt[position], noteId, size), size);
+        }
+        int last = --size;
+        if (position != last) {
+            if (orderSorted) {
+                order[searchOrder(createdAt[last], ids[last], size)] = position;
+            }
+            ids[position] = ids[last];
+            titles[position] = titles[last];
+            createdAt[position] = createdAt[last];
+            positions.put(ids[position], position);
+        }
+        ids[last] = null;
+        titles[last] = null;
+        return true;
+    }
+
+    /**
+     * @return a copy of the ids of all the notes
+     */
+    String[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * Returns the notes in the index. The list is a snapshot, so later changes to the index don't affect it.
+     * Only the arrays are copied, each {@link Note} is created when it is read from the list, so the list can't be modified,
+     * and changes made to a note that was read from it are not kept.
+     * @param storeType the store type to set on the notes
+     * @return the notes, without their content
+     */
+    List<Note> toList(int storeType) {
+        return new NoteList(Arrays.copyOf(ids, size), Arrays.copyOf(titles, size), Arrays.copyOf(createdAt, size), storeType);
+    }
+
+    /**
+     * Returns a page of the notes, in the order of {@link PageCursor#NEWEST_FIRST}
+     * @param after where the page starts, or null for the first page
+     * @param pageSize the max number of notes
+     * @param storeType the store type to set on the notes
+     * @return the notes, without their content
+     */
+    List<Note> getPage(PageCursor after, int pageSize, int storeType) {
+        sortOrder();
+        int start = 0;
+        if (after != null) {
+            int index = searchOrder(after.getCreatedAt(), after.getId(), size);
+            start = index >= 0 ? index + 1 : -index - 1;
+        }
+        int end = (int) Math.min((long) start + pageSize, size);
+        List<Note> page = new ArrayList<Note>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            int position = order[i];
+            Note note = new Note(ids[position], new String(titles[position], UTF8), "", createdAt[position]);
+            note.setStoreType(storeType);
+            page.add(note);
+        }
+        return page;
+    }
+
+    /**
+     * Search the titles of the notes
+     * @param matcher the search
+     * @param storeType the store type to set on the results
+     * @return the notes whose title matches, in no particular order. The snippet of each result is its title.
+     */
+    List<NoteSearchResult> searchTitles(NoteMatcher matcher, int storeType) {
+        List<NoteSearchResult> results = new ArrayList<NoteSearchResult>();
+        for (int i = 0; i < size; i++) {
+            String title = new String(titles[i], UTF8);
+            int score = matcher.score(title);
+            if (score > 0) {
+                results.add(new NoteSearchResult(ids[i], storeType, title, title, score));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Encode all the entries as a snapshot
+     * @return the snapshot
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(MAGIC.length + 1 + size * 48);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        writeVarint(out, size);
+        for (int i = 0; i < size; i++) {
+            writeEntry(out, ids[i], titles[i], createdAt[i]);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data the decrypted metadata file
+     * @return true if the data is a snapshot created by {@link #toByteArray()}, false if it's in the old JSON format
+     */
+    static boolean isSnapshot(ByteBuffer data) {
+        if (data.remaining() < MAGIC.length + 1) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(data.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Load the entries of the given snapshot
+     * @param data the snapshot
+     * @throws IOException if the snapshot is invalid
+     */
+    void readSnapshot(ByteBuffer data) throws IOException {
+        if (!isSnapshot(data)) {
+            throw new IOException("invalid metadata snapshot");
+        }
+        try {
+            data.position(data.position() + MAGIC.length);
+            byte version = data.get();
+            if (version != VERSION) {
+                throw new IOException("unsupported metadata snapshot version " + version);
+            }
+            long count = readVarint(data);
+            for (long i = 0; i < count; i++) {
+                readEntry(data);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated metadata snapshot", e);
+        }
+    }
+
+    /**
+     * Load the entries of a snapshot saved in the old JSON format, where each note id maps to the JSON of the note without its content.
+     * @param metadata the old snapshot
+     * @throws JSONException
+     */
+    void readLegacySnapshot(JSONObject metadata) throws JSONException {
+        Iterator<String> keys = metadata.keys();
+        while (keys.hasNext()) {
+            put(Note.fromJSON(metadata.getJSONObject(keys.next())));
+        }
+    }
+
+    /**
+     * Encode the metadata of a single note
+     * @param out where to write the entry
+     * @param note the note
+     */
+    static void writeEntry(ByteArrayOutputStream out, Note note) {
+        writeEntry(out, note.getId(), note.getTitle().getBytes(UTF8), note.getCreatedAt().getTime());
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, String noteId, byte[] title, long noteCreatedAt) {
+        writeId(out, noteId);
+        writeVarint(out, noteCreatedAt);
+        writeVarint(out, title.length);
+        out.write(title, 0, title.length);
+    }
+
+    /**
+     * Decode an entry written by {@link #writeEntry(ByteArrayOutputStream, Note)} and add it to the index
+     * @param data the encoded entry
+     * @throws IOException if the entry is invalid
+     */
+    void readEntry(ByteBuffer data) throws IOException {
+        String noteId = readId(data);
+        long noteCreatedAt = readVarint(data);
+        byte[] title = new byte[readLength(data)];
+        data.get(title);
+        put(noteId, title, noteCreatedAt);
+    }
+
+    /**
+     * Encode a note id. The flags byte tells if the id is stored as a UUID or as a string.
+     */
+    static void writeId(ByteArrayOutputStream out, String noteId) {
+        UUID uuid = parseUuid(noteId);
+        if (uuid != null) {
+            out.write(FLAG_UUID_ID);
+            writeLong(out, uuid.getMostSignificantBits());
+            writeLong(out, uuid.getLeastSignificantBits());
+        } else {
+            byte[] idBytes = noteId.getBytes(UTF8);
+            out.write(0);
+            writeVarint(out, idBytes.length);
+            out.write(idBytes, 0, idBytes.length);
+        }
+    }
+
+    static String readId(ByteBuffer data) throws IOException {
+        int flags = data.get();
+        if ((flags & FLAG_UUID_ID) != 0) {
+            return new UUID(data.getLong(), data.getLong()).toString();
+        }
+        byte[] idBytes = new byte[readLength(data)];
+        data.get(idBytes);
+        return new String(idBytes, UTF8);
+    }
+
+    private static UUID parseUuid(String noteId) {
+        //only use the binary form if it gives back exactly the same string
+        if (noteId.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(noteId);
+            return uuid.toString().equals(noteId) ? uuid : null;
+        } catch (IllegalArgumentException notUuid) {
+            return null;
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("invalid varint");
+    }
+
+    private static int readLength(ByteBuffer data) throws IOException {
+        long length = readVarint(data);
+        if (length < 0 || length > data.remaining()) {
+            throw new IOException("invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newCapacity = Math.max(capacity, ids.length * 2);
+            ids = Arrays.copyOf(ids, newCapacity);
+            titles = Arrays.copyOf(titles, newCapacity);
+            createdAt = Arrays.copyOf(createdAt, newCapacity);
+            order = Arrays.copyOf(order, newCapacity);
+        }
+    }
+
+    /**
+     * Sort the paged order of all the notes, if it's not sorted yet
+     */
+    private void sortOrder() {
+        if (orderSorted) {
+            return;
+        }
+        Integer[] sorted = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return compareToOrder(first, createdAt[second], ids[second]);
+            }
+        });
+        for (int i = 0; i < size; i++) {
+            order[i] = sorted[i];
+        }
+        orderSorted = true;
+    }
+
+    /**
+     * Find a note in the first entries of the paged order
+     * @param noteCreatedAt the creation time of the note
+     * @param noteId the id of the note
+     * @param count the number of entries in the order
+     * @return the index of the note in the order, or (-(insertion point) - 1) if it's not in the order, like {@link Arrays#binarySearch(int[], int)}
+     */
+    private int searchOrder(long noteCreatedAt, String noteId, int count) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareToOrder(order[middle], noteCreatedAt, noteId);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void insertInOrder(int position, int count) {
+        int index = -searchOrder(createdAt[position], ids[position], count) - 1;
+        System.arraycopy(order, index, order, index + 1, count - index);
+        order[index] = position;
+    }
+
+    private void removeFromOrder(int index, int count) {
+        System.arraycopy(order, index + 1, order, index, count - index - 1);
+    }
+
+    /**
+     * Compare the note at the given position with the given note, in the order of {@link PageCursor#NEWEST_FIRST}
+     */
+    private int compareToOrder(int position, long noteCreatedAt, String noteId) {
+        if (createdAt[position] != noteCreatedAt) {
+            return createdAt[position] > noteCreatedAt ? -1 : 1;
+        }
+        return noteId.compareTo(ids[position]);
+    }
+
+    private static class NoteList extends AbstractList<Note> implements RandomAccess {
+
+        private final String[] ids;
+        private final byte[][] titles;
+        private final long[] createdAt;
+        private final int storeType;
+
+        NoteList(String[] ids, byte[][] titles, long[] createdAt, int storeType) {
+            this.ids = ids;
+            this.titles = titles;
+            this.createdAt = createdAt;
+            this.storeType = storeType;
+        }
+
+        @Override
+        public Note get(int index) {
+            Note note = new Note(ids[index], new String(titles[index], UTF8), "", createdAt[index]);
+            note.setStoreType(storeType);
+            return note;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+}
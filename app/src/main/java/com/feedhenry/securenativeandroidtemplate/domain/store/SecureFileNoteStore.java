@@ -1,97 +1,463 @@
 package com.feedhenry.securenativeandroidtemplate.domain.store;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
 
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.AesCrypto;
+import com.feedhenry.securenativeandroidtemplate.domain.crypto.KeyHierarchy;
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
-import com.feedhenry.securenativeandroidtemplate.domain.utils.StreamUtils;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.inject.Inject;
 
 /**
  * Implement the note storage using the file system. Each note object is saved in its own file and encrypted with its own secret key.
+ * By default each secret key is saved in the keystore. If a {@link KeyHierarchy} is set, the secret keys are derived from its master key instead.
+ *
+ * The note files are spread across 256 sub directories (based on the hash of the note id), so no directory grows too big when there are a lot of notes.
+ * Files saved by older versions directly in the files directory are moved the first time the metadata is loaded.
+ *
+ * The metadata of the notes is kept in a compact binary index (see {@link NoteMetadataIndex}). A metadata snapshot saved as JSON by older versions
+ * is converted to the binary format when it is loaded.
+ *
+ * Only the titles of the notes can be searched, as searching the content would mean decrypting every note.
+ *
+ * Optionally, writes can be queued and saved in the background (see {@link #setWriteBehindQueueSize(int)}).
+ * The queued writes are saved when {@link #flush()} is called, and when the app goes to the background.
+ *
+ * In the {@link AtomicFileWriter.DurabilityMode#GROUP_COMMIT} mode, the writes are synced when {@link #sync()} is called, and when the app goes to the background.
+ * If the app is stopped before that, the files of the notes keep their previous content, and the metadata of these notes is rebuilt from their files
+ * the next time the metadata is loaded, so the list and the notes always agree.
+ *
+ * The store is safe to use from multiple threads. The metadata index is guarded by a read/write lock, and each note by one of a fixed set of
+ * read/write locks picked by the hash of its id, so operations on different notes can run in parallel.
+ * When both are needed, the note lock is always taken before the metadata lock.
+ * Batch operations take the locks of all their notes up front, in the order of the locks, and update the metadata with a single journal record.
  */
 
-public class SecureFileNoteStore implements NoteDataStore {
+public class SecureFileNoteStore implements NoteDataStore, Flushable {
+
+    private static final String TAG = "SecureFileNoteStore";
+    private static final Charset UTF8 = Charset.forName("utf-8");
 
     private static final String NOTES_METADATA_FILENAME = "notes_meta.json";
+    private static final String NOTES_METADATA_JOURNAL_FILENAME = "notes_meta.journal";
+    //the name is kept for the binary snapshot, as it is also the alias of the key that encrypts it
+    //fold the journal into the metadata snapshot once it grows past this size (and the size of the snapshot)
+    private static final long JOURNAL_COMPACTION_THRESHOLD = 64 * 1024;
+    private static final String NOTES_DIRECTORY = "notes";
+    //created once the note files are moved into the sharded layout
+    private static final String SHARDED_LAYOUT_MARKER = ".sharded";
+    private static final int SHARD_COUNT = 256;
+    private static final int NOTE_LOCK_STRIPES = 32;
 
     Context context;
     AesCrypto aesCrypto;
 
-    private JSONObject notesMetadata = new JSONObject();
-    private boolean metadataLoaded = false;
+    private NoteMetadataIndex notesMetadata = new NoteMetadataIndex();
+    private volatile boolean metadataLoaded = false;
+    private MetadataJournal metadataJournal;
+    private AtomicFileWriter fileWriter;
+    private EncryptedFileCodec fileCodec;
+    private Executor compactionExecutor = Executors.newSingleThreadExecutor();
+    //guards the metadata index and journal
+    private final ReadWriteLock metadataLock = new ReentrantReadWriteLock();
+    //guard the files of the notes
+    private final ReadWriteLock[] noteLocks = new ReadWriteLock[NOTE_LOCK_STRIPES];
+    private volatile WriteBehindQueue writeBehindQueue;
+    //shared by all the write-behind queues of the store, as a queue is only replaced once it's flushed
+    private Executor writeBehindExecutor;
+    private boolean trimMemoryCallbacksRegistered = false;
 
     @Inject
     public SecureFileNoteStore(Context context, AesCrypto aesCrypto) {
+        this(context, aesCrypto, AtomicFileWriter.DurabilityMode.SYNC);
+    }
+
+    /**
+     * @param context the app context
+     * @param aesCrypto used to encrypt the files
+     * @param durabilityMode control if each write is synced to the storage straight away, or in batches.
+     */
+    public SecureFileNoteStore(Context context, AesCrypto aesCrypto, AtomicFileWriter.DurabilityMode durabilityMode) {
         this.context = context;
         this.aesCrypto = aesCrypto;
+        this.fileWriter = new AtomicFileWriter(durabilityMode);
+        this.fileCodec = new EncryptedFileCodec(aesCrypto);
+        this.metadataJournal = new MetadataJournal(fileCodec, NOTES_METADATA_FILENAME,
+                new File(context.getFilesDir(), NOTES_METADATA_JOURNAL_FILENAME), JOURNAL_COMPACTION_THRESHOLD, fileWriter);
+        for (int i = 0; i < noteLocks.length; i++) {
+            noteLocks[i] = new ReentrantReadWriteLock();
+        }
+        if (durabilityMode == AtomicFileWriter.DurabilityMode.GROUP_COMMIT) {
+            //the writes are only renamed into place when synced, so sync them before the process can be killed
+            context.registerComponentCallbacks(trimMemoryCallbacks);
+            trimMemoryCallbacksRegistered = true;
+        }
+    }
+
+    /**
+     * Use the key hierarchy mode. The keys of new or updated notes are derived from the master key of the given key hierarchy,
+     * so creating, reading and deleting these notes doesn't require any operation on the keystore.
+     * Notes saved with their own keystore keys can still be read.
+     * @param keyHierarchy the key hierarchy to derive the keys from. Set it to null to save a key per note in the keystore.
+     */
+    public void setKeyHierarchy(KeyHierarchy keyHierarchy) {
+        this.fileCodec.setKeyHierarchy(keyHierarchy);
+    }
+
+    /**
+     * Compress the files of the notes (and the metadata snapshot) before they are encrypted. Small files are still saved raw.
+     * Files saved with or without compression can always be read.
+     * @param compressor the compressor to use. Set it to null to save the files raw (the default).
+     */
+    public void setCompressor(PayloadCompressor compressor) {
+        this.fileCodec.setCompressor(compressor);
+    }
+
+    /**
+     * Use the write-behind mode. Creates, updates and deletes are queued and saved in the background, and return straight away.
+     * If a note is changed again while its previous write is still queued, only the latest version is saved.
+     * Reads and lists include the queued writes.
+     * A write that fails in the background is only reported by the next {@link #flush()} (or the next call to this method).
+     * Until then, reads and lists still include it, as if it had been saved.
+     * @param queueSize the max number of notes with queued writes. When the queue is full, callers wait for a write to complete.
+     *                  Set it to 0 to save each write before returning again (the default).
+     * @throws IOException if saving the writes that are already queued fails
+     */
+    public synchronized void setWriteBehindQueueSize(int queueSize) throws IOException {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+            writeBehindQueue = null;
+        }
+        if (queueSize > 0) {
+            if (writeBehindExecutor == null) {
+                writeBehindExecutor = Executors.newSingleThreadExecutor();
+            }
+            writeBehindQueue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+                @Override
+                public void save(Note note) throws Exception {
+                    saveNote(note);
+                }
+
+                @Override
+                public void delete(Note note) throws Exception {
+                    removeNote(note);
+                }
+            }, queueSize, writeBehindExecutor);
+            if (!trimMemoryCallbacksRegistered) {
+                context.registerComponentCallbacks(trimMemoryCallbacks);
+                trimMemoryCallbacksRegistered = true;
+            }
+        }
     }
 
     @Override
     public Note createNote(Note note) throws Exception {
-        return saveNote(note);
+        return queueOrSaveNote(note);
     }
 
     @Override
     public Note updateNote(Note note) throws Exception {
-        return saveNote(note);
+        return queueOrSaveNote(note);
     }
 
-    private Note saveNote(Note note) throws Exception {
-        loadMetadata();
-        JSONObject noteJsonNoContent = note.toJson(false);
-        notesMetadata.put(note.getId(), noteJsonNoContent);
-        writeFileWithEncryption(NOTES_METADATA_FILENAME, notesMetadata.toString());
+    @Override
+    public List<Note> createNotes(List<Note> notes) throws Exception {
+        return queueOrSaveNotes(notes);
+    }
 
-        JSONObject noteJsonWithContent = note.toJson(true);
-        writeFileWithEncryption(note.getId(), noteJsonWithContent.toString());
+    @Override
+    public List<Note> updateNotes(List<Note> notes) throws Exception {
+        return queueOrSaveNotes(notes);
+    }
+
+    private Note queueOrSaveNote(Note note) throws Exception {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.save(note);
+        } else {
+            saveNote(note);
+        }
         return note;
     }
 
+    private List<Note> queueOrSaveNotes(List<Note> notes) throws Exception {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            for (Note note : notes) {
+                queue.save(note);
+            }
+        } else {
+            saveNotes(notes);
+        }
+        return notes;
+    }
+
+    private void saveNote(Note note) throws Exception {
+        saveNotes(Collections.singletonList(note));
+    }
+
+    private void saveNotes(List<Note> notes) throws Exception {
+        if (notes.isEmpty()) {
+            return;
+        }
+        ensureMetadataLoaded();
+        List<Lock> heldLocks = lockNotes(notes);
+        try {
+            //write the files first, so the metadata never lists a note that has no file.
+            //In the group commit mode, the files are only renamed into place by the next sync, so a note can still be listed
+            //without its latest file if the app is stopped before that. Its metadata is then rebuilt from its file when the store is opened again.
+            for (Note note : notes) {
+                JSONObject noteJsonWithContent = note.toJson(true);
+                writeFileWithEncryption(note.getId(), noteJsonWithContent.toString());
+            }
+
+            metadataLock.writeLock().lock();
+            try {
+                //the index is only changed once the change is journaled, so it never lists changes that a reopen would lose
+                metadataJournal.appendPuts(notes);
+                for (Note note : notes) {
+                    notesMetadata.put(note);
+                }
+                compactMetadataIfNeeded();
+            } finally {
+                metadataLock.writeLock().unlock();
+            }
+        } finally {
+            unlockAll(heldLocks);
+        }
+    }
+
     @Override
     public Note deleteNote(Note note) throws Exception {
-        loadMetadata();
-        notesMetadata.remove(note.getId());
-        writeFileWithEncryption(NOTES_METADATA_FILENAME, notesMetadata.toString());
-
-        removeFile(note.getId());
-        aesCrypto.deleteSecretKey(note.getId());
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.delete(note);
+        } else {
+            removeNote(note);
+        }
         return note;
     }
 
+    @Override
+    public List<Note> deleteNotes(List<Note> notes) throws Exception {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            for (Note note : notes) {
+                queue.delete(note);
+            }
+        } else {
+            removeNotes(notes);
+        }
+        return notes;
+    }
+
+    private void removeNote(Note note) throws Exception {
+        removeNotes(Collections.singletonList(note));
+    }
+
+    private void removeNotes(List<Note> notes) throws Exception {
+        if (notes.isEmpty()) {
+            return;
+        }
+        ensureMetadataLoaded();
+        List<Lock> heldLocks = lockNotes(notes);
+        try {
+            List<String> noteIds = new ArrayList<String>(notes.size());
+            for (Note note : notes) {
+                noteIds.add(note.getId());
+            }
+            metadataLock.writeLock().lock();
+            try {
+                metadataJournal.appendDeletes(noteIds);
+                for (String noteId : noteIds) {
+                    notesMetadata.remove(noteId);
+                }
+                compactMetadataIfNeeded();
+            } finally {
+                metadataLock.writeLock().unlock();
+            }
+
+            for (String noteId : noteIds) {
+                boolean usesKeystoreKey = usesKeystoreKey(noteId);
+                removeFile(noteId);
+                if (usesKeystoreKey) {
+                    aesCrypto.deleteSecretKey(noteId);
+                }
+            }
+        } finally {
+            unlockAll(heldLocks);
+        }
+    }
+
     @Override
     public Note readNote(String noteId) throws Exception {
-        loadMetadata();
-        if (!notesMetadata.has(noteId)) {
+        WriteBehindQueue queue = writeBehindQueue;
+        WriteBehindQueue.PendingWrite pendingWrite = queue == null ? null : queue.get(noteId);
+        if (pendingWrite != null) {
+            return pendingWrite.isDelete() ? null : pendingWrite.getNote();
+        }
+        ensureMetadataLoaded();
+        String noteJson;
+        Lock noteLock = getNoteLock(noteId).readLock();
+        noteLock.lock();
+        try {
+            metadataLock.readLock().lock();
+            try {
+                if (!notesMetadata.contains(noteId)) {
+                    return null;
+                }
+            } finally {
+                metadataLock.readLock().unlock();
+            }
+            noteJson = readFileWithDecryption(noteId);
+        } catch (FileNotFoundException notFound) {
+            //the save of the note was interrupted before its file was written
             return null;
+        } finally {
+            noteLock.unlock();
         }
-        String noteJson = readFileWithDecryption(noteId);
         Note note = Note.fromJSON(new JSONObject(noteJson));
         note.setStoreType(getType());
         return note;
     }
 
+    /**
+     * List the notes, without their content.
+     * The list can't be modified, and it doesn't hold the notes themselves: each call to {@link List#get(int)} creates a new {@link Note}
+     * from the metadata, so listing many notes doesn't allocate them all up front. As a result, a change made to a note of the list
+     * is not seen when the note is read from the list again. Copy the notes into a new list to keep them.
+     * @return the notes
+     * @throws Exception
+     */
     @Override
     public List<Note> listNotes() throws Exception {
-        loadMetadata();
-        List<Note> notes = convertToList(notesMetadata);
-        return notes;
+        //get the queued writes first: a write that completes in between is then included in both, rather than missed by both
+        List<WriteBehindQueue.PendingWrite> pendingWrites = getPendingWrites();
+        List<Note> notes;
+        ensureMetadataLoaded();
+        metadataLock.readLock().lock();
+        try {
+            notes = notesMetadata.toList(getType());
+        } finally {
+            metadataLock.readLock().unlock();
+        }
+        if (pendingWrites.isEmpty()) {
+            return notes;
+        }
+        Set<String> pendingIds = new HashSet<String>();
+        for (WriteBehindQueue.PendingWrite pendingWrite : pendingWrites) {
+            pendingIds.add(pendingWrite.getNoteId());
+        }
+        List<Note> merged = new ArrayList<Note>(notes.size() + pendingWrites.size());
+        for (Note note : notes) {
+            if (!pendingIds.contains(note.getId())) {
+                merged.add(note);
+            }
+        }
+        for (WriteBehindQueue.PendingWrite pendingWrite : pendingWrites) {
+            if (!pendingWrite.isDelete()) {
+                merged.add(pendingWrite.getNote());
+            }
+        }
+        return Collections.unmodifiableList(merged);
+    }
+
+    @Override
+    public List<Note> listNotes(PageCursor after, int pageSize) throws Exception {
+        List<WriteBehindQueue.PendingWrite> pendingWrites = getPendingWrites();
+        List<Note> page;
+        ensureMetadataLoaded();
+        metadataLock.readLock().lock();
+        try {
+            //the notes with a queued write are replaced below, so read enough notes to fill the page without them
+            page = notesMetadata.getPage(after, pageSize + pendingWrites.size(), getType());
+        } finally {
+            metadataLock.readLock().unlock();
+        }
+        if (!pendingWrites.isEmpty()) {
+            Set<String> pendingIds = new HashSet<String>();
+            for (WriteBehindQueue.PendingWrite pendingWrite : pendingWrites) {
+                pendingIds.add(pendingWrite.getNoteId());
+            }
+            List<Note> merged = new ArrayList<Note>(page.size() + pendingWrites.size());
+            for (Note note : page) {
+                if (!pendingIds.contains(note.getId())) {
+                    merged.add(note);
+                }
+            }
+            for (WriteBehindQueue.PendingWrite pendingWrite : pendingWrites) {
+                Note note = pendingWrite.getNote();
+                if (!pendingWrite.isDelete() && (after == null || after.isBefore(note))) {
+                    merged.add(note);
+                }
+            }
+            Collections.sort(merged, PageCursor.NEWEST_FIRST);
+            page = merged;
+        }
+        return page.size() > pageSize ? new ArrayList<Note>(page.subList(0, pageSize)) : page;
+    }
+
+    @Override
+    public List<NoteSearchResult> searchNotes(String query, int limit) throws Exception {
+        NoteMatcher matcher = new NoteMatcher(query);
+        List<NoteSearchResult> results = new ArrayList<NoteSearchResult>();
+        if (matcher.isEmpty()) {
+            return results;
+        }
+        List<WriteBehindQueue.PendingWrite> pendingWrites = getPendingWrites();
+        List<NoteSearchResult> savedResults;
+        ensureMetadataLoaded();
+        metadataLock.readLock().lock();
+        try {
+            savedResults = notesMetadata.searchTitles(matcher, getType());
+        } finally {
+            metadataLock.readLock().unlock();
+        }
+        Set<String> pendingIds = new HashSet<String>();
+        for (WriteBehindQueue.PendingWrite pendingWrite : pendingWrites) {
+            pendingIds.add(pendingWrite.getNoteId());
+            Note note = pendingWrite.getNote();
+            int score = matcher.score(note.getTitle());
+            if (!pendingWrite.isDelete() && score > 0) {
+                results.add(new NoteSearchResult(note.getId(), getType(), note.getTitle(), note.getTitle(), score));
+            }
+        }
+        for (NoteSearchResult result : savedResults) {
+            if (!pendingIds.contains(result.getNoteId())) {
+                results.add(result);
+            }
+        }
+        Collections.sort(results, NoteSearchResult.MOST_RELEVANT_FIRST);
+        return results.size() > limit ? new ArrayList<NoteSearchResult>(results.subList(0, limit)) : results;
     }
 
     @Override
@@ -101,87 +467,382 @@ public class SecureFileNoteStore implements NoteDataStore {
 
     @Override
     public long count() throws Exception {
-        loadMetadata();
-        JSONArray names = notesMetadata.names();
-        if (names != null) {
-            return names.length();
+        List<WriteBehindQueue.PendingWrite> pendingWrites = getPendingWrites();
+        ensureMetadataLoaded();
+        metadataLock.readLock().lock();
+        try {
+            long count = notesMetadata.size();
+            for (WriteBehindQueue.PendingWrite pendingWrite : pendingWrites) {
+                boolean saved = notesMetadata.contains(pendingWrite.getNoteId());
+                if (pendingWrite.isDelete() && saved) {
+                    count--;
+                } else if (!pendingWrite.isDelete() && !saved) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            metadataLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Make sure all the writes are synced to the storage. Only needed when the store uses {@link AtomicFileWriter.DurabilityMode#GROUP_COMMIT}.
+     * Writes still queued by the write-behind mode are not included, use {@link #flush()} for those.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        fileWriter.sync();
+    }
+
+    /**
+     * Save all the queued writes, and sync them to the storage.
+     * @throws IOException if any of the queued writes failed
+     */
+    @Override
+    public void flush() throws IOException {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.flush();
+        }
+        fileWriter.sync();
+    }
+
+    private List<WriteBehindQueue.PendingWrite> getPendingWrites() {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue == null) {
+            return new ArrayList<WriteBehindQueue.PendingWrite>();
+        }
+        return queue.getPendingWrites();
+    }
+
+    /**
+     * Save the queued writes, and sync the writes that are not synced yet, when the app goes to the background,
+     * as the process may be killed at any time after that.
+     */
+    private final ComponentCallbacks2 trimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                flushInBackground();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            flushInBackground();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+    };
+
+    private void flushInBackground() {
+        Runnable syncFiles = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fileWriter.sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to sync the notes", e);
+                }
+            }
+        };
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.flushInBackground(syncFiles);
         } else {
-            return 0;
+            compactionExecutor.execute(syncFiles);
         }
     }
 
+    private ReadWriteLock getNoteLock(String noteId) {
+        return noteLocks[getNoteLockIndex(noteId)];
+    }
+
+    private int getNoteLockIndex(String noteId) {
+        return (noteId.hashCode() & 0x7FFFFFFF) % noteLocks.length;
+    }
+
+    /**
+     * Take the write locks of all the given notes. They are always taken in the same order, so two batches can't deadlock.
+     * @return the locks that have been taken
+     */
+    private List<Lock> lockNotes(List<Note> notes) {
+        boolean[] needed = new boolean[noteLocks.length];
+        for (Note note : notes) {
+            needed[getNoteLockIndex(note.getId())] = true;
+        }
+        List<Lock> locked = new ArrayList<Lock>();
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                Lock lock = noteLocks[i].writeLock();
+                lock.lock();
+                locked.add(lock);
+            }
+        }
+        return locked;
+    }
+
+    private void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    private void ensureMetadataLoaded() throws GeneralSecurityException, IOException {
+        if (!metadataLoaded) {
+            metadataLock.writeLock().lock();
+            try {
+                loadMetadata();
+            } finally {
+                metadataLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Load the metadata index, if it's not loaded yet. Has to be called while holding the write lock of the metadata.
+     */
     private void loadMetadata() throws GeneralSecurityException, IOException {
         if (!metadataLoaded) {
+            boolean legacySnapshot = false;
+            notesMetadata = new NoteMetadataIndex();
+            List<File> staleFiles = deleteStaleTempFiles();
             try {
-                String content = readFileWithDecryption(NOTES_METADATA_FILENAME);
-                if (content.length() > 0 && content.startsWith("{")) {
-                    notesMetadata = new JSONObject(content);
+                ByteBuffer content = decryptFile(NOTES_METADATA_FILENAME);
+                if (NoteMetadataIndex.isSnapshot(content)) {
+                    notesMetadata.readSnapshot(content);
                 } else {
-                    notesMetadata = new JSONObject();
+                    String json = UTF8.decode(content).toString();
+                    if (json.startsWith("{")) {
+                        notesMetadata.readLegacySnapshot(new JSONObject(json));
+                        legacySnapshot = true;
+                    }
                 }
             } catch (FileNotFoundException notFound) {
                 //ignore it
             } catch (JSONException je) {
 
-            } finally {
-                metadataLoaded = true;
+            }
+            metadataJournal.replay(notesMetadata);
+            metadataJournal.setSnapshotLength(fileWriter.length(getFile(NOTES_METADATA_FILENAME)));
+            migrateToShardedLayout();
+            recoverStaleNotes(staleFiles);
+            metadataLoaded = true;
+            if (metadataJournal.hasPendingCompaction() || legacySnapshot) {
+                //the app was stopped before the last compaction completed, or the snapshot needs to be converted to the binary format
+                saveMetadataSnapshot(notesMetadata.toByteArray());
             }
         }
     }
 
+    /**
+     * Remove the temporary files left by the previous run of the app, i.e. the writes that were not synced or renamed before it was stopped.
+     * @return the files that may have lost a write
+     */
+    private List<File> deleteStaleTempFiles() {
+        List<File> staleFiles = fileWriter.deleteStaleTempFiles(context.getFilesDir());
+        File[] shards = getNotesDirectory().listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                if (shard.isDirectory()) {
+                    staleFiles.addAll(fileWriter.deleteStaleTempFiles(shard));
+                }
+            }
+        }
+        return staleFiles;
+    }
+
+    /**
+     * Rebuild the metadata of the notes whose last write was lost, from the content of their files,
+     * as the journal may already list the lost write. A note whose file was never renamed into place is removed.
+     * Has to be called while holding the write lock of the metadata, once the notes are in the sharded layout.
+     */
+    private void recoverStaleNotes(List<File> staleFiles) throws GeneralSecurityException, IOException {
+        List<Note> recovered = new ArrayList<Note>();
+        List<String> removed = new ArrayList<String>();
+        Set<String> checked = new HashSet<String>();
+        for (File staleFile : staleFiles) {
+            String noteId = staleFile.getName();
+            if (!notesMetadata.contains(noteId) || !checked.add(noteId)) {
+                continue;
+            }
+            if (!getFile(noteId).exists()) {
+                removed.add(noteId);
+                continue;
+            }
+            try {
+                recovered.add(Note.fromJSON(new JSONObject(readFileWithDecryption(noteId))));
+            } catch (JSONException je) {
+                throw new IOException("Failed to recover note " + noteId, je);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            metadataJournal.appendPuts(recovered);
+            for (Note note : recovered) {
+                notesMetadata.put(note);
+            }
+        }
+        if (!removed.isEmpty()) {
+            metadataJournal.appendDeletes(removed);
+            for (String noteId : removed) {
+                notesMetadata.remove(noteId);
+            }
+        }
+    }
+
+    /**
+     * Fold the metadata journal into a new metadata snapshot once the journal is big enough.
+     * The snapshot is taken on the calling thread, but it is encrypted and saved in the background.
+     */
+    private void compactMetadataIfNeeded() throws IOException {
+        if (metadataJournal.needsCompaction()) {
+            metadataJournal.startCompaction();
+            saveMetadataSnapshot(notesMetadata.toByteArray());
+        }
+    }
+
+    /**
+     * Move the note files saved directly in the files directory into their sub directories.
+     * It's safe to run it again if it's interrupted.
+     */
+    private void migrateToShardedLayout() throws IOException {
+        File marker = new File(getNotesDirectory(), SHARDED_LAYOUT_MARKER);
+        if (marker.exists()) {
+            return;
+        }
+        for (String noteId : notesMetadata.getIds()) {
+            File flatFile = new File(context.getFilesDir(), noteId);
+            if (flatFile.exists()) {
+                File shardedFile = getFile(noteId);
+                shardedFile.getParentFile().mkdirs();
+                if (!flatFile.renameTo(shardedFile)) {
+                    throw new IOException("Failed to move note file " + noteId);
+                }
+            }
+        }
+        getNotesDirectory().mkdirs();
+        marker.createNewFile();
+    }
+
+    private File getNotesDirectory() {
+        return new File(context.getFilesDir(), NOTES_DIRECTORY);
+    }
+
+    /**
+     * Returns the file for the given name. The metadata is saved in the files directory, each note in the sub directory of its shard.
+     * @param fileName the name of the file, i.e. the id of a note or the name of the metadata file
+     * @return the file
+     */
+    private File getFile(String fileName) {
+        if (NOTES_METADATA_FILENAME.equals(fileName)) {
+            return new File(context.getFilesDir(), fileName);
+        }
+        String shard = String.format("%02x", (fileName.hashCode() & 0x7FFFFFFF) % SHARD_COUNT);
+        return new File(new File(getNotesDirectory(), shard), fileName);
+    }
+
+    private void saveMetadataSnapshot(final byte[] snapshot) {
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeFileWithEncryption(NOTES_METADATA_FILENAME, snapshot);
+                    //the journal can only be removed once the snapshot (and its directory entry) is on the storage
+                    fileWriter.sync();
+                    long snapshotLength = fileWriter.length(getFile(NOTES_METADATA_FILENAME));
+                    metadataLock.writeLock().lock();
+                    try {
+                        metadataJournal.finishCompaction(snapshotLength);
+                    } finally {
+                        metadataLock.writeLock().unlock();
+                    }
+                } catch (Exception e) {
+                    //the journal is kept, so the compaction will be retried the next time the store is opened
+                    Log.e(TAG, "Failed to compact the notes metadata", e);
+                }
+            }
+        });
+    }
+
     // tag::writeFileWithEncryption[]
     /**
-     * Encrypt the file when saving to the file system
+     * Encrypt the file when saving to the file system. The content is compressed first if a compressor is set. The encrypted content is written to a temporary file first, which then replaces the existing file.
      * @param fileName the name of the file
      * @param fileContent the content of the file
      * @throws IOException
      * @throws GeneralSecurityException
      */
     private void writeFileWithEncryption(String fileName, String fileContent) throws IOException, GeneralSecurityException {
-        File outputFile = new File(context.getFilesDir(), fileName);
-        if (!outputFile.exists()) {
-            outputFile.createNewFile();
+        writeFileWithEncryption(fileName, fileContent.getBytes("utf-8"));
+    }
+
+    private void writeFileWithEncryption(String fileName, byte[] fileContent) throws IOException, GeneralSecurityException {
+        File outputFile = getFile(fileName);
+        File parent = outputFile.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        OutputStream out = fileWriter.openForWrite(outputFile);
+        try {
+            fileCodec.encryptTo(fileName, out, fileContent);
+        } catch (Throwable t) {
+            //the existing file is kept as it is
+            fileWriter.abort(out);
+            throw t;
         }
-        OutputStream outStream = aesCrypto.encryptStream(fileName, new FileOutputStream(outputFile));
-        outStream.write(fileContent.getBytes("utf-8"));
-        outStream.flush();
-        outStream.close();
     }
     // end::writeFileWithEncryption[]
 
     // tag::readFileWithDecryption[]
     /**
-     * Read the content of the file, and decrypt it automatically
+     * Read the content of the file, and decrypt it automatically.
+     * The encrypted content is read (or mapped) into one buffer of the size of the file, and decrypted straight into the buffer that is decoded to the returned string.
      * @param fileName the name of the file
      * @return the decrypted file content
      * @throws IOException
      * @throws GeneralSecurityException
      */
     private String readFileWithDecryption(String fileName) throws IOException, GeneralSecurityException {
-        InputStream inputStream = context.openFileInput(fileName);
-        InputStream decryptedStream = aesCrypto.decryptStream(fileName, inputStream);
-
-        return StreamUtils.readStream(decryptedStream);
+        ByteBuffer decrypted = decryptFile(fileName);
+        return UTF8.decode(decrypted).toString();
     }
     // end::readFileWithDecryption[]
 
-    private void removeFile(String fileName) {
-        File target = new File(context.getFilesDir(), fileName);
-        if (target.exists()) {
-            target.delete();
+    /**
+     * Decrypt the latest content of the file, which can still be in its temporary file in the group commit mode
+     */
+    private ByteBuffer decryptFile(String fileName) throws IOException, GeneralSecurityException {
+        FileInputStream in = fileWriter.openForRead(getFile(fileName));
+        try {
+            return fileCodec.decryptFile(fileName, in);
+        } finally {
+            in.close();
         }
     }
 
-    private List<Note> convertToList(JSONObject notesMetaData) throws JSONException {
-        List<Note> notes = new ArrayList<Note>();
-        Iterator<String> keys = notesMetaData.keys();
-        while (keys.hasNext()) {
-            String noteId = keys.next();
-            JSONObject noteJson = notesMetaData.getJSONObject(noteId);
-            Note noteObject = Note.fromJSON(noteJson);
-            noteObject.setStoreType(getType());
-            notes.add(noteObject);
+    private boolean usesKeystoreKey(String fileName) throws IOException {
+        FileInputStream in;
+        try {
+            in = fileWriter.openForRead(getFile(fileName));
+        } catch (FileNotFoundException notFound) {
+            return true;
         }
-        return notes;
+        try {
+            return fileCodec.usesKeystoreKey(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void removeFile(String fileName) {
+        File target = getFile(fileName);
+        if (target.exists()) {
+            target.delete();
+        }
+        fileWriter.deleteTempFile(target);
     }
 }
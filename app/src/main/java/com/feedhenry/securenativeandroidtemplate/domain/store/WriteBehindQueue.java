@@ -0,0 +1,216 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import android.util.Log;
+
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A bounded queue of note writes that are saved in the background.
+ *
+ * There is at most one pending write per note. A new write for a note that is still in the queue replaces the pending one,
+ * so a burst of updates to the same note results in only a few actual writes. The writes are saved in the order the notes were first queued.
+ * When the queue is full, callers are blocked until a write completes.
+ *
+ * A write that fails is not retried, and the failure is only reported by the next {@link #flush()}.
+ * Until then, the failed write is still returned by {@link #get(String)} and {@link #getPendingWrites()},
+ * so reads keep seeing the change the caller made rather than the older saved version, which would make the change look saved.
+ */
+class WriteBehindQueue {
+
+    private static final String TAG = "WriteBehindQueue";
+
+    /**
+     * Saves the queued writes. Called on the background thread.
+     */
+    interface Writer {
+        void save(Note note) throws Exception;
+
+        void delete(Note note) throws Exception;
+    }
+
+    /**
+     * A queued save or delete. The note is a copy of the one passed to the queue, so later changes made by the caller don't affect it.
+     */
+    static class PendingWrite {
+        private final Note note;
+        private final boolean delete;
+
+        PendingWrite(Note note, boolean delete) {
+            this.note = new Note(note.getId(), note.getTitle(), note.getContent(), note.getCreatedAt().getTime());
+            this.note.setStoreType(note.getStoreType());
+            this.delete = delete;
+        }
+
+        boolean isDelete() {
+            return delete;
+        }
+
+        /**
+         * @return a new copy of the queued note
+         */
+        Note getNote() {
+            Note copy = new Note(note.getId(), note.getTitle(), note.getContent(), note.getCreatedAt().getTime());
+            copy.setStoreType(note.getStoreType());
+            return copy;
+        }
+
+        String getNoteId() {
+            return note.getId();
+        }
+    }
+
+    private final Writer writer;
+    private final int capacity;
+    private final Executor executor;
+    private final Map<String, PendingWrite> pendingWrites = new LinkedHashMap<String, PendingWrite>();
+    //the writes that failed since the last flush, and have not been replaced by a newer write that succeeded
+    private final Map<String, PendingWrite> failedWrites = new LinkedHashMap<String, PendingWrite>();
+    private boolean draining = false;
+    private Exception lastFailure;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param writer saves the writes
+     * @param capacity the max number of notes with a pending write
+     * @param executor runs the writes. It should run one task at a time.
+     */
+    WriteBehindQueue(Writer writer, int capacity, Executor executor) {
+        this.writer = writer;
+        this.capacity = capacity;
+        this.executor = executor;
+    }
+
+    void save(Note note) throws InterruptedIOException {
+        enqueue(new PendingWrite(note, false));
+    }
+
+    void delete(Note note) throws InterruptedIOException {
+        enqueue(new PendingWrite(note, true));
+    }
+
+    /**
+     * @param noteId the id of the note
+     * @return the pending write of the note, or its failed write that is not reported yet, or null if there is none
+     */
+    synchronized PendingWrite get(String noteId) {
+        PendingWrite write = pendingWrites.get(noteId);
+        return write != null ? write : failedWrites.get(noteId);
+    }
+
+    /**
+     * @return a copy of all the pending writes, and of the failed writes that are not reported yet
+     */
+    synchronized List<PendingWrite> getPendingWrites() {
+        if (failedWrites.isEmpty()) {
+            return new ArrayList<PendingWrite>(pendingWrites.values());
+        }
+        Map<String, PendingWrite> writes = new LinkedHashMap<String, PendingWrite>(failedWrites);
+        writes.putAll(pendingWrites);
+        return new ArrayList<PendingWrite>(writes.values());
+    }
+
+    /**
+     * Wait until all the queued writes are saved. The failed writes are then reported, and no longer returned by {@link #get(String)}.
+     * @throws IOException if any of the writes since the last flush failed
+     */
+    synchronized void flush() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the pending writes");
+            }
+        }
+        if (lastFailure != null) {
+            Exception failure = lastFailure;
+            lastFailure = null;
+            failedWrites.clear();
+            throw new IOException("Failed to save the pending writes", failure);
+        }
+    }
+
+    /**
+     * Save all the queued writes in the background, without blocking the caller, and then run the given task.
+     * @param afterFlush the task to run once the queue is empty
+     */
+    void flushInBackground(final Runnable afterFlush) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                afterFlush.run();
+            }
+        });
+    }
+
+    private synchronized void enqueue(PendingWrite write) throws InterruptedIOException {
+        String noteId = write.getNoteId();
+        while (!pendingWrites.containsKey(noteId) && pendingWrites.size() >= capacity) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for space in the write queue");
+            }
+        }
+        //replacing the value keeps the position of the note in the queue
+        pendingWrites.put(noteId, write);
+        if (!draining) {
+            draining = true;
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            PendingWrite write;
+            synchronized (this) {
+                if (pendingWrites.isEmpty()) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                write = pendingWrites.values().iterator().next();
+            }
+            try {
+                if (write.isDelete()) {
+                    writer.delete(write.note);
+                } else {
+                    writer.save(write.note);
+                }
+                synchronized (this) {
+                    failedWrites.remove(write.getNoteId());
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    lastFailure = e;
+                    failedWrites.put(write.getNoteId(), write);
+                }
+                Log.e(TAG, "Failed to save the pending write of note " + write.getNoteId(), e);
+            } finally {
+                synchronized (this) {
+                    //keep the entry if it has been replaced by a newer write in the meantime
+                    if (pendingWrites.get(write.getNoteId()) == write) {
+                        pendingWrites.remove(write.getNoteId());
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import com.feedhenry.securenativeandroidtemplate.domain.configurations.SqliteStoreConfiguration;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+/**
+ * Apply a {@link SqliteStoreConfiguration} to each connection to the database.
+ * The settings are applied right after the key, as the cipher settings have to be known before the first page is read.
+ */
+class ConfigurationHook implements SQLiteDatabaseHook {
+
+    private volatile SqliteStoreConfiguration configuration = new SqliteStoreConfiguration();
+
+    void setConfiguration(SqliteStoreConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    SqliteStoreConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void preKey(SQLiteDatabase db) {
+
+    }
+
+    @Override
+    public void postKey(SQLiteDatabase db) {
+        SqliteStoreConfiguration configuration = this.configuration;
+        if (configuration.getCipherPageSize() != null) {
+            db.rawExecSQL("PRAGMA cipher_page_size = " + configuration.getCipherPageSize());
+        }
+        if (configuration.getKdfIter() != null) {
+            db.rawExecSQL("PRAGMA kdf_iter = " + configuration.getKdfIter());
+        }
+        if (configuration.getCipherUseHmac() != null) {
+            db.rawExecSQL("PRAGMA cipher_use_hmac = " + (configuration.getCipherUseHmac() ? "ON" : "OFF"));
+        }
+        if (configuration.getCipherMemorySecurity() != null) {
+            db.rawExecSQL("PRAGMA cipher_memory_security = " + (configuration.getCipherMemorySecurity() ? "ON" : "OFF"));
+        }
+        if (configuration.getCacheSize() != null) {
+            db.rawExecSQL("PRAGMA cache_size = " + configuration.getCacheSize());
+        }
+        if (configuration.getTempStore() != null) {
+            db.rawExecSQL("PRAGMA temp_store = " + configuration.getTempStore());
+        }
+        if (configuration.getJournalMode() != null) {
+            //the mode is saved in the database file, so this is only a change the first time
+            db.rawExecSQL("PRAGMA journal_mode = " + configuration.getJournalMode());
+        }
+    }
+}
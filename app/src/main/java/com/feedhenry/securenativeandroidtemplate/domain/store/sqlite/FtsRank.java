@@ -0,0 +1,80 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Locale;
+
+/**
+ * Build the full-text queries of {@link SqliteNoteStore}, and rank their results.
+ *
+ * FTS4 has no built-in ranking function, so the results are ranked with BM25, computed from the statistics returned by
+ * matchinfo() with the {@link #MATCHINFO_FORMAT} format: the number of phrases and columns, the number of rows,
+ * the average and the current length of each column, and the hits of each phrase in each column.
+ */
+class FtsRank {
+
+    static final String MATCHINFO_FORMAT = "pcnalx";
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private FtsRank() {
+
+    }
+
+    /**
+     * Turn what the user typed into a full-text query. Each word is matched as a prefix, and all the words have to match.
+     * Anything else is dropped, so the query can't have syntax errors.
+     * @param query the search as typed by the user
+     * @return the full-text query, or null if there is no word to search for
+     */
+    static String toMatchQuery(String query) {
+        StringBuilder matchQuery = new StringBuilder();
+        //lower case, as the upper case AND, OR and NOT are operators
+        for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(word).append('*');
+        }
+        return matchQuery.length() == 0 ? null : matchQuery.toString();
+    }
+
+    /**
+     * @param matchinfo the result of matchinfo() for a row, with the {@link #MATCHINFO_FORMAT} format
+     * @param columnWeights how much the hits in each column count
+     * @return the BM25 score of the row, higher is more relevant
+     */
+    static double bm25(byte[] matchinfo, double[] columnWeights) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phraseCount = info.get(0);
+        int columnCount = info.get(1);
+        long rowCount = info.get(2) & 0xFFFFFFFFL;
+        int averageLengthOffset = 3;
+        int lengthOffset = averageLengthOffset + columnCount;
+        int hitsOffset = lengthOffset + columnCount;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount; column++) {
+                double weight = column < columnWeights.length ? columnWeights[column] : 1;
+                int hitsIndex = hitsOffset + 3 * (column + phrase * columnCount);
+                int hits = info.get(hitsIndex);
+                if (weight == 0 || hits == 0) {
+                    continue;
+                }
+                int rowsWithHits = info.get(hitsIndex + 2);
+                //always positive, even for phrases that are in most of the rows
+                double idf = Math.log(1 + (rowCount - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+                int averageLength = info.get(averageLengthOffset + column);
+                double relativeLength = averageLength == 0 ? 1 : (double) info.get(lengthOffset + column) / averageLength;
+                score += weight * idf * hits * (K1 + 1) / (hits + K1 * (1 - B + B * relativeLength));
+            }
+        }
+        return score;
+    }
+}
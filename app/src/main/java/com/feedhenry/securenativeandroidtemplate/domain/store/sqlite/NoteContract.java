@@ -20,4 +20,15 @@ public class NoteContract {
         public static final String COLUMN_NAME_TITLE = "title";
         public static final String COLUMN_NAME_CONTENT = "content";
     }
+
+    /**
+     * The content of the notes, which is only read when a single note is read.
+     * The id of each row is the _id of its note.
+     */
+    public static class NoteBodyEntry {
+        public static final String TABLE_NAME = "note_body";
+
+        public static final String COLUMN_NOTE_ID = "note_id";
+        public static final String COLUMN_NAME_CONTENT = "content";
+    }
 }
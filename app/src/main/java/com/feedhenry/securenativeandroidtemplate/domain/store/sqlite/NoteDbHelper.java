@@ -2,32 +2,240 @@ package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
 
 import android.content.Context;
 
+import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
 import net.sqlcipher.database.SQLiteOpenHelper;
 
+import java.io.IOException;
+
 /**
  * Created by weili on 25/09/2017.
+ *
+ * The schema is versioned. A new database is created with the version 1 schema and then goes through the same upgrade steps as an existing one,
+ * so there is only one definition of each version.
+ *
+ * Version 2 adds a unique index on the uuid column, and an index on the creation time for listing the notes in order.
+ * Version 3 replaces the index on the creation time with one on the creation time and the uuid, which is the order of the pages of notes.
+ * Version 4 adds the full-text search table, which is kept in sync with the notes by triggers.
+ * Triggers can only see the stored content, so {@link SqliteNoteStore} fills in the text of the notes whose content is stored compressed.
+ * Version 5 moves the content to its own table, so listing the notes only reads the pages of the metadata.
+ * The note table is rebuilt without the content column, keeping the ids, and the search table is then kept in sync by triggers on both tables.
+ * Version 6 adds a single row table with the number of notes, kept up to date by triggers, so counting the notes doesn't scan the table.
+ *
+ * The SQLCipher settings, including the journal mode, are applied by the {@link SQLiteDatabaseHook} the helper is created with.
  */
 
 public class NoteDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 6;
     public static final String DATABASE_NAME = "notes.db";
 
     private static final String SQL_CREATE_STATEMENT = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s INTEGER, %s TEXT, %s TEXT, %s TEXT)",
             NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT);
 
+    static final String INDEX_UUID = "note_uuid_idx";
+    static final String INDEX_CREATED_AT = "note_created_at_idx";
+    static final String INDEX_CREATED_AT_UUID = "note_created_at_uuid_idx";
+
+    //only the latest row of each uuid is kept, so the unique index can be created
+    private static final String SQL_DELETE_DUPLICATE_UUIDS = String.format("DELETE FROM %s WHERE %s NOT IN (SELECT MAX(%s) FROM %s GROUP BY %s)",
+            NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry._ID, NoteContract.NoteEntry._ID, NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_UUID);
+    private static final String SQL_CREATE_UUID_INDEX = String.format("CREATE UNIQUE INDEX IF NOT EXISTS %s ON %s (%s)",
+            INDEX_UUID, NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_UUID);
+    private static final String SQL_CREATE_CREATED_AT_INDEX = String.format("CREATE INDEX IF NOT EXISTS %s ON %s (%s)",
+            INDEX_CREATED_AT, NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_CREATED_AT);
+
+    private static final String SQL_CREATE_CREATED_AT_UUID_INDEX = String.format("CREATE INDEX IF NOT EXISTS %s ON %s (%s, %s)",
+            INDEX_CREATED_AT_UUID, NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_UUID);
+    private static final String SQL_DROP_CREATED_AT_INDEX = "DROP INDEX IF EXISTS " + INDEX_CREATED_AT;
+
+    //the docid of each row of the search table is the _id of its note
+    static final String FTS_TABLE_NAME = "note_fts";
+    static final String FTS_COLUMN_DOCID = "docid";
+    private static final String SQL_CREATE_FTS_TABLE = String.format("CREATE VIRTUAL TABLE IF NOT EXISTS %s USING fts4(%s, %s)",
+            FTS_TABLE_NAME, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT);
+    private static final String FTS_CONTENT_OF_NEW_ROW = textContentOf("new." + NoteContract.NoteEntry.COLUMN_NAME_CONTENT);
+    private static final String SQL_CREATE_FTS_INSERT_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_fts_insert AFTER INSERT ON %s BEGIN INSERT INTO %s (%s, %s, %s) VALUES (new.%s, new.%s, %s); END",
+            NoteContract.NoteEntry.TABLE_NAME, FTS_TABLE_NAME, FTS_COLUMN_DOCID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT,
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, FTS_CONTENT_OF_NEW_ROW);
+    private static final String SQL_CREATE_FTS_UPDATE_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_fts_update AFTER UPDATE OF %s, %s ON %s BEGIN UPDATE %s SET %s = new.%s, %s = %s WHERE %s = new.%s; END",
+            NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, NoteContract.NoteEntry.TABLE_NAME, FTS_TABLE_NAME,
+            NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, FTS_CONTENT_OF_NEW_ROW,
+            FTS_COLUMN_DOCID, NoteContract.NoteEntry._ID);
+    private static final String SQL_CREATE_FTS_DELETE_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_fts_delete AFTER DELETE ON %s BEGIN DELETE FROM %s WHERE %s = old.%s; END",
+            NoteContract.NoteEntry.TABLE_NAME, FTS_TABLE_NAME, FTS_COLUMN_DOCID, NoteContract.NoteEntry._ID);
+    private static final String SQL_INDEX_TEXT_NOTES = String.format("INSERT INTO %s (%s, %s, %s) SELECT %s, %s, %s FROM %s",
+            FTS_TABLE_NAME, FTS_COLUMN_DOCID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT,
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, textContentOf(NoteContract.NoteEntry.COLUMN_NAME_CONTENT), NoteContract.NoteEntry.TABLE_NAME);
+    private static final String SQL_SELECT_COMPRESSED_NOTES = String.format("SELECT %s, %s FROM %s WHERE typeof(%s) = 'blob'",
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_NAME_CONTENT);
+    private static final String SQL_INDEX_CONTENT_BY_DOCID = String.format("UPDATE %s SET %s = ? WHERE %s = ?",
+            FTS_TABLE_NAME, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, FTS_COLUMN_DOCID);
+
+    private static final String NOTE_TABLE_VERSION_5 = NoteContract.NoteEntry.TABLE_NAME + "_v5";
+    private static final String SQL_CREATE_BODY_TABLE = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s TEXT)",
+            NoteContract.NoteBodyEntry.TABLE_NAME, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT);
+    private static final String SQL_COPY_BODIES = String.format("INSERT INTO %s (%s, %s) SELECT %s, %s FROM %s",
+            NoteContract.NoteBodyEntry.TABLE_NAME, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT,
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, NoteContract.NoteEntry.TABLE_NAME);
+    private static final String SQL_CREATE_NOTE_TABLE_VERSION_5 = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY, %s INTEGER, %s TEXT, %s TEXT)",
+            NOTE_TABLE_VERSION_5, NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE);
+    private static final String SQL_COPY_NOTES = String.format("INSERT INTO %s (%s, %s, %s, %s) SELECT %s, %s, %s, %s FROM %s",
+            NOTE_TABLE_VERSION_5, NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+            NoteContract.NoteEntry.TABLE_NAME);
+    //also drops the indexes and the triggers of the table
+    private static final String SQL_DROP_NOTE_TABLE = "DROP TABLE " + NoteContract.NoteEntry.TABLE_NAME;
+    private static final String SQL_RENAME_NOTE_TABLE_VERSION_5 = String.format("ALTER TABLE %s RENAME TO %s", NOTE_TABLE_VERSION_5, NoteContract.NoteEntry.TABLE_NAME);
+
+    //the search row of a note is created with its body, which is always inserted right after the note
+    private static final String SQL_CREATE_BODY_FTS_INSERT_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_body_fts_insert AFTER INSERT ON %s BEGIN INSERT INTO %s (%s, %s, %s) SELECT new.%s, %s, %s FROM %s WHERE %s = new.%s; END",
+            NoteContract.NoteBodyEntry.TABLE_NAME, FTS_TABLE_NAME, FTS_COLUMN_DOCID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_CONTENT,
+            NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, FTS_CONTENT_OF_NEW_ROW, NoteContract.NoteEntry.TABLE_NAME,
+            NoteContract.NoteEntry._ID, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID);
+    private static final String SQL_CREATE_BODY_FTS_UPDATE_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_body_fts_update AFTER UPDATE OF %s ON %s BEGIN UPDATE %s SET %s = %s WHERE %s = new.%s; END",
+            NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT, NoteContract.NoteBodyEntry.TABLE_NAME, FTS_TABLE_NAME, NoteContract.NoteEntry.COLUMN_NAME_CONTENT,
+            FTS_CONTENT_OF_NEW_ROW, FTS_COLUMN_DOCID, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID);
+    private static final String SQL_CREATE_TITLE_FTS_UPDATE_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_fts_update AFTER UPDATE OF %s ON %s BEGIN UPDATE %s SET %s = new.%s WHERE %s = new.%s; END",
+            NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.TABLE_NAME, FTS_TABLE_NAME,
+            NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteContract.NoteEntry.COLUMN_NAME_TITLE, FTS_COLUMN_DOCID, NoteContract.NoteEntry._ID);
+    private static final String SQL_CREATE_BODY_DELETE_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_body_delete AFTER DELETE ON %s BEGIN DELETE FROM %s WHERE %s = old.%s; END",
+            NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteBodyEntry.TABLE_NAME, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, NoteContract.NoteEntry._ID);
+
+    //there is only one row, with the id 1
+    static final String COUNT_TABLE_NAME = "note_count";
+    static final String COUNT_COLUMN_COUNT = "count";
+    private static final String SQL_CREATE_COUNT_TABLE = String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY CHECK (%s = 1), %s INTEGER NOT NULL)",
+            COUNT_TABLE_NAME, NoteContract.NoteEntry._ID, NoteContract.NoteEntry._ID, COUNT_COLUMN_COUNT);
+    private static final String SQL_INIT_COUNT = String.format("INSERT INTO %s (%s, %s) SELECT 1, COUNT(*) FROM %s",
+            COUNT_TABLE_NAME, NoteContract.NoteEntry._ID, COUNT_COLUMN_COUNT, NoteContract.NoteEntry.TABLE_NAME);
+    private static final String SQL_CREATE_COUNT_INSERT_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_count_insert AFTER INSERT ON %s BEGIN UPDATE %s SET %s = %s + 1; END",
+            NoteContract.NoteEntry.TABLE_NAME, COUNT_TABLE_NAME, COUNT_COLUMN_COUNT, COUNT_COLUMN_COUNT);
+    private static final String SQL_CREATE_COUNT_DELETE_TRIGGER = String.format(
+            "CREATE TRIGGER IF NOT EXISTS note_count_delete AFTER DELETE ON %s BEGIN UPDATE %s SET %s = %s - 1; END",
+            NoteContract.NoteEntry.TABLE_NAME, COUNT_TABLE_NAME, COUNT_COLUMN_COUNT, COUNT_COLUMN_COUNT);
+
+    /**
+     * Compressed content is stored as a blob, and is indexed by the store instead
+     * @return the SQL expression of the given content column, or NULL if the content is compressed
+     */
+    private static String textContentOf(String contentColumn) {
+        return String.format("CASE typeof(%s) WHEN 'text' THEN %s END", contentColumn, contentColumn);
+    }
+
     public NoteDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    public NoteDbHelper(Context context, SQLiteDatabaseHook hook) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION, hook);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_STATEMENT);
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+    }
+
+    /**
+     * Add the indexes on the uuid and the creation time.
+     * The creation time has always been saved as a 64-bit integer, only the reads truncated it, so the existing values don't need to change.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL(SQL_DELETE_DUPLICATE_UUIDS);
+        db.execSQL(SQL_CREATE_UUID_INDEX);
+        db.execSQL(SQL_CREATE_CREATED_AT_INDEX);
+    }
+
+    /**
+     * Add the index used by the keyset pagination. It also serves the queries that only sort by the creation time, so the old index is removed.
+     */
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CREATED_AT_UUID_INDEX);
+        db.execSQL(SQL_DROP_CREATED_AT_INDEX);
+    }
+
+    /**
+     * Add the full-text search table and its triggers, and index the existing notes.
+     */
+    private void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_FTS_TABLE);
+        db.execSQL(SQL_CREATE_FTS_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_FTS_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+        db.execSQL(SQL_INDEX_TEXT_NOTES);
+        Cursor cursor = db.rawQuery(SQL_SELECT_COMPRESSED_NOTES, new String[0]);
+        try {
+            while (cursor.moveToNext()) {
+                String content;
+                try {
+                    content = SqliteNoteStore.decodeContent(cursor.getBlob(1));
+                } catch (IOException e) {
+                    //the note can't be read either, so it is only searchable by its title
+                    continue;
+                }
+                db.execSQL(SQL_INDEX_CONTENT_BY_DOCID, new Object[]{content, cursor.getLong(0)});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Move the content to its own table. SQLite can't drop a column, so the note table is copied without it and replaced.
+     * The ids of the notes don't change, so the search table stays as it is.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_BODY_TABLE);
+        db.execSQL(SQL_COPY_BODIES);
+        db.execSQL(SQL_CREATE_NOTE_TABLE_VERSION_5);
+        db.execSQL(SQL_COPY_NOTES);
+        db.execSQL(SQL_DROP_NOTE_TABLE);
+        db.execSQL(SQL_RENAME_NOTE_TABLE_VERSION_5);
+        db.execSQL(SQL_CREATE_UUID_INDEX);
+        db.execSQL(SQL_CREATE_CREATED_AT_UUID_INDEX);
+        db.execSQL(SQL_CREATE_BODY_FTS_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_BODY_FTS_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_TITLE_FTS_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+        db.execSQL(SQL_CREATE_BODY_DELETE_TRIGGER);
+    }
 
+    /**
+     * Add the number of notes, counted once here and then kept up to date by the triggers, in the same transaction as the change.
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_COUNT_TABLE);
+        db.execSQL(SQL_INIT_COUNT);
+        db.execSQL(SQL_CREATE_COUNT_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_COUNT_DELETE_TRIGGER);
     }
 }
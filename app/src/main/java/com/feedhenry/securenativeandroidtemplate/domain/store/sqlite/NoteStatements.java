@@ -0,0 +1,176 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import net.sqlcipher.database.SQLiteConstraintException;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+/**
+ * The compiled statements used by {@link SqliteNoteStore} to create, update, delete and read a single note.
+ *
+ * The content of a note is in its own table (see {@link NoteDbHelper}), so creating and updating a note take two statements,
+ * which have to run in the same transaction.
+ *
+ * The insert, update and delete statements are compiled once per connection and then only get their arguments bound on each call,
+ * instead of building a new statement from a {@link android.content.ContentValues} every time.
+ * A compiled statement can only return a single value, so reads use {@link #SQL_READ} as a raw query instead.
+ * The database keeps the compiled SQL of its queries in a per connection cache, so the constant read query is only compiled the first time as well.
+ *
+ * A compiled statement can't be used by more than one thread at a time, so the statements must only be used inside a transaction
+ * of the connection they were compiled on: the lock that the transaction holds on the connection keeps the other threads out.
+ * They don't take a lock of their own, which could be taken in the opposite order to the lock of the connection and deadlock.
+ */
+class NoteStatements {
+
+    static final String SQL_INSERT = String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)",
+            NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+            NoteContract.NoteEntry.COLUMN_CREATED_AT);
+    static final String SQL_INSERT_BODY = String.format("INSERT INTO %s (%s, %s) VALUES (?, ?)",
+            NoteContract.NoteBodyEntry.TABLE_NAME, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT);
+    static final String SQL_UPDATE = String.format("UPDATE %s SET %s = ? WHERE %s",
+            NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_NAME_TITLE, SqliteNoteStore.SELECTION_BY_UUID);
+    static final String SQL_UPDATE_BODY = String.format("UPDATE %s SET %s = ? WHERE %s = (SELECT %s FROM %s WHERE %s)",
+            NoteContract.NoteBodyEntry.TABLE_NAME, NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT, NoteContract.NoteBodyEntry.COLUMN_NOTE_ID,
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.TABLE_NAME, SqliteNoteStore.SELECTION_BY_UUID);
+    //the body is deleted by a trigger
+    static final String SQL_DELETE = String.format("DELETE FROM %s WHERE %s",
+            NoteContract.NoteEntry.TABLE_NAME, SqliteNoteStore.SELECTION_BY_UUID);
+    static final String SQL_READ = String.format("SELECT n.%s, n.%s, n.%s, b.%s FROM %s n LEFT JOIN %s b ON b.%s = n.%s WHERE n.%s",
+            NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+            NoteContract.NoteBodyEntry.COLUMN_NAME_CONTENT, NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteBodyEntry.TABLE_NAME,
+            NoteContract.NoteBodyEntry.COLUMN_NOTE_ID, NoteContract.NoteEntry._ID, SqliteNoteStore.SELECTION_BY_UUID);
+
+    static final String SQL_INDEX_CONTENT = String.format("UPDATE %s SET %s = ? WHERE %s = (SELECT %s FROM %s WHERE %s)",
+            NoteDbHelper.FTS_TABLE_NAME, NoteContract.NoteEntry.COLUMN_NAME_CONTENT, NoteDbHelper.FTS_COLUMN_DOCID,
+            NoteContract.NoteEntry._ID, NoteContract.NoteEntry.TABLE_NAME, SqliteNoteStore.SELECTION_BY_UUID);
+
+    //the column indexes of the results of SQL_READ
+    static final int READ_UUID = 0;
+    static final int READ_CREATED_AT = 1;
+    static final int READ_TITLE = 2;
+    static final int READ_CONTENT = 3;
+
+    private final SQLiteStatement insert;
+    private final SQLiteStatement insertBody;
+    private final SQLiteStatement update;
+    private final SQLiteStatement updateBody;
+    private final SQLiteStatement delete;
+    private final SQLiteStatement indexContent;
+
+    NoteStatements(SQLiteDatabase db) {
+        this.insert = db.compileStatement(SQL_INSERT);
+        this.insertBody = db.compileStatement(SQL_INSERT_BODY);
+        this.update = db.compileStatement(SQL_UPDATE);
+        this.updateBody = db.compileStatement(SQL_UPDATE_BODY);
+        this.delete = db.compileStatement(SQL_DELETE);
+        this.indexContent = db.compileStatement(SQL_INDEX_CONTENT);
+    }
+
+    /**
+     * @param content the content, either a String or the compressed blob
+     * @return the row id of the new note, or -1 if the note could not be inserted
+     */
+    long insert(String uuid, String title, Object content, long createdAt) {
+        bindText(insert, 1, uuid);
+        bindText(insert, 2, title);
+        insert.bindLong(3, createdAt);
+        long id;
+        try {
+            id = insert.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            //same as SQLiteDatabase.insert
+            return -1;
+        } finally {
+            insert.clearBindings();
+        }
+        if (id < 0) {
+            return id;
+        }
+        insertBody.bindLong(1, id);
+        bindContent(insertBody, 2, content);
+        try {
+            insertBody.executeInsert();
+        } finally {
+            insertBody.clearBindings();
+        }
+        return id;
+    }
+
+    /**
+     * @param content the content, either a String or the compressed blob
+     * @return the number of updated rows
+     */
+    int update(String uuid, String title, Object content) {
+        bindText(update, 1, title);
+        bindText(update, 2, uuid);
+        int count;
+        try {
+            count = update.executeUpdateDelete();
+        } finally {
+            update.clearBindings();
+        }
+        if (count == 0) {
+            return count;
+        }
+        bindContent(updateBody, 1, content);
+        bindText(updateBody, 2, uuid);
+        try {
+            updateBody.executeUpdateDelete();
+        } finally {
+            updateBody.clearBindings();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of deleted rows
+     */
+    int delete(String uuid) {
+        bindText(delete, 1, uuid);
+        try {
+            return delete.executeUpdateDelete();
+        } finally {
+            delete.clearBindings();
+        }
+    }
+
+    /**
+     * Set the content of a note in the full-text search table. Only needed when the content is stored compressed,
+     * as the triggers index the text content.
+     * @param uuid the id of the note
+     * @param content the content as text
+     */
+    void indexContent(String uuid, String content) {
+        bindText(indexContent, 1, content);
+        bindText(indexContent, 2, uuid);
+        try {
+            indexContent.execute();
+        } finally {
+            indexContent.clearBindings();
+        }
+    }
+
+    void close() {
+        insert.close();
+        insertBody.close();
+        update.close();
+        updateBody.close();
+        delete.close();
+        indexContent.close();
+    }
+
+    private static void bindText(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindContent(SQLiteStatement statement, int index, Object content) {
+        if (content instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) content);
+        } else {
+            bindText(statement, index, (String) content);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A small pool of read-only connections to the database, so reads can run in parallel with each other and,
+ * as the database uses write-ahead logging, with the writes.
+ *
+ * Connections are only opened when all the open ones are in use, up to the max size of the pool.
+ * The most recently used connection is handed out first, so its cache of compiled queries stays warm.
+ */
+class ReadConnectionPool {
+
+    /**
+     * Opens the connections of the pool
+     */
+    interface ConnectionFactory {
+        SQLiteDatabase openReadConnection() throws Exception;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxConnections;
+    private final Deque<SQLiteDatabase> idleConnections = new ArrayDeque<SQLiteDatabase>();
+    private final List<SQLiteDatabase> allConnections = new ArrayList<SQLiteDatabase>();
+    private boolean closed = false;
+
+    /**
+     * @param factory opens the connections
+     * @param maxConnections the max number of connections
+     */
+    ReadConnectionPool(ConnectionFactory factory, int maxConnections) {
+        this.factory = factory;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Get a connection. It has to be given back with {@link #release(SQLiteDatabase)} once the query and its cursor are done with.
+     * If all the connections are in use, wait until one is released.
+     * @return the connection
+     * @throws Exception if a new connection can't be opened
+     */
+    SQLiteDatabase acquire() throws Exception {
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("the connection pool is closed");
+                }
+                if (!idleConnections.isEmpty()) {
+                    return idleConnections.pop();
+                }
+                if (allConnections.size() < maxConnections) {
+                    //reserve the slot, the connection is opened outside of the lock
+                    allConnections.add(null);
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for a database connection");
+                }
+            }
+        }
+        SQLiteDatabase connection = null;
+        try {
+            connection = factory.openReadConnection();
+            return connection;
+        } finally {
+            synchronized (this) {
+                allConnections.remove(null);
+                if (connection != null) {
+                    allConnections.add(connection);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Give back a connection got from {@link #acquire()}
+     * @param connection the connection
+     */
+    synchronized void release(SQLiteDatabase connection) {
+        if (closed) {
+            connection.close();
+        } else {
+            idleConnections.push(connection);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close the idle connections. The connections in use are closed when they are released.
+     */
+    synchronized void close() {
+        closed = true;
+        for (SQLiteDatabase connection : idleConnections) {
+            connection.close();
+        }
+        idleConnections.clear();
+        allConnections.clear();
+        notifyAll();
+    }
+}
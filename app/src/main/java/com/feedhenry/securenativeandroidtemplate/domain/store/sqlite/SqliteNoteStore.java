@@ -1,51 +1,201 @@
 package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Base64;
 
+import com.feedhenry.securenativeandroidtemplate.domain.configurations.SqliteStoreConfiguration;
 import com.feedhenry.securenativeandroidtemplate.domain.crypto.RsaCrypto;
 import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStore;
 import com.feedhenry.securenativeandroidtemplate.domain.store.NoteStoreException;
+import com.feedhenry.securenativeandroidtemplate.domain.utils.PayloadCompressor;
 
 import net.sqlcipher.Cursor;
 import net.sqlcipher.DatabaseUtils;
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteException;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import javax.inject.Inject;
 
 /**
  * Created by weili on 25/09/2017.
+ *
+ * If a {@link PayloadCompressor} is set, the content of long notes is compressed and saved as a blob that starts with the id of the codec.
+ * Content saved as text is read as it is, so notes saved before compression was enabled stay readable.
+ *
+ * Creating, updating, deleting and reading a single note use the statements in {@link NoteStatements}, which are compiled once when the database is opened.
+ * The batch operations reuse the same statements, and save each chunk of the batch in one transaction (see {@link #setBatchChunkSize(int)}).
+ *
+ * The content of the notes is kept apart from their metadata (see {@link NoteDbHelper}), and only {@link #readNote(String)} reads it.
+ *
+ * The notes are indexed for full-text search in a table of the same database, so the index is encrypted like the notes (see {@link NoteDbHelper}).
+ *
+ * The database is opened once, by {@link #open()}, which decrypts the key and keeps it until the store is closed.
+ * The key is either a password, which SQLCipher derives the key from each time the database is opened, or a raw key (see {@link #setUseRawKey(boolean)}).
+ * The writes go through a single connection, and the reads use a small pool of read-only connections (see {@link #setMaxReadConnections(int)}).
+ * With write-ahead logging, the default journal mode, the reads don't wait for the writes, and see the last committed state.
+ * The SQLCipher settings of all the connections come from the {@link SqliteStoreConfiguration} (see {@link #setConfiguration(SqliteStoreConfiguration)}).
  */
 
 public class SqliteNoteStore implements NoteDataStore {
 
     NoteDbHelper dbHelper;
     SQLiteDatabase writableDb;
-    SQLiteDatabase readableDb;
+    NoteStatements statements;
+    private ReadConnectionPool readPool;
+    private char[] dbPassword;
+    private final String databasePath;
 
     private static final String DB_KEY_PREFS = "dbprefs";
     private static final String DB_KEY_PREF_NAME = "dbkey";
+    private static final String DB_RAW_KEY_PREF_NAME = "dbrawkey";
     private static final String ENCRYPT_KEY_ALIAS = "database_key";
 
     private static final int PASSWORD_BYTES = 24;
+    private static final int RAW_KEY_BYTES = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 500;
+    private static final int DEFAULT_MAX_READ_CONNECTIONS = 2;
+    //matches in the title count twice as much as matches in the content
+    private static final double[] SEARCH_COLUMN_WEIGHTS = {2.0, 1.0};
+    private static final int SNIPPET_TOKENS = 12;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    static final String SELECTION_BY_UUID = NoteContract.NoteEntry.COLUMN_UUID + " = ?";
+    static final String SORT_ORDER_BY_CREATED_AT = NoteContract.NoteEntry.COLUMN_CREATED_AT + " DESC, " + NoteContract.NoteEntry.COLUMN_UUID + " DESC";
+    //the row value comparison matches the order of the pages, and is served by the index on (created_at, uuid)
+    static final String SQL_FIRST_PAGE = String.format("SELECT %s, %s, %s FROM %s ORDER BY %s LIMIT ?",
+            NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+            NoteContract.NoteEntry.TABLE_NAME, SORT_ORDER_BY_CREATED_AT);
+    static final String SQL_NEXT_PAGE = String.format("SELECT %s, %s, %s FROM %s WHERE (%s, %s) < (?, ?) ORDER BY %s LIMIT ?",
+            NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_NAME_TITLE,
+            NoteContract.NoteEntry.TABLE_NAME, NoteContract.NoteEntry.COLUMN_CREATED_AT, NoteContract.NoteEntry.COLUMN_UUID, SORT_ORDER_BY_CREATED_AT);
+    static final String SQL_COUNT = String.format("SELECT %s FROM %s", NoteDbHelper.COUNT_COLUMN_COUNT, NoteDbHelper.COUNT_TABLE_NAME);
+    static final String SQL_SEARCH = String.format("SELECT n.%s, n.%s, snippet(%s, '', '', '\u2026', -1, %d), matchinfo(%s, '%s') FROM %s JOIN %s n ON n.%s = %s.%s WHERE %s MATCH ?",
+            NoteContract.NoteEntry.COLUMN_UUID, NoteContract.NoteEntry.COLUMN_NAME_TITLE, NoteDbHelper.FTS_TABLE_NAME, SNIPPET_TOKENS,
+            NoteDbHelper.FTS_TABLE_NAME, FtsRank.MATCHINFO_FORMAT, NoteDbHelper.FTS_TABLE_NAME, NoteContract.NoteEntry.TABLE_NAME,
+            NoteContract.NoteEntry._ID, NoteDbHelper.FTS_TABLE_NAME, NoteDbHelper.FTS_COLUMN_DOCID, NoteDbHelper.FTS_TABLE_NAME);
 
     RsaCrypto rsaCrypto;
     SharedPreferences sharedPreferences;
+    private PayloadCompressor compressor;
+    private int batchChunkSize = DEFAULT_BATCH_CHUNK_SIZE;
+    private int maxReadConnections = DEFAULT_MAX_READ_CONNECTIONS;
+    private boolean useRawKey = false;
+    private final ConfigurationHook configurationHook = new ConfigurationHook();
+
+    /**
+     * A write of a single note, used by both the single note and the batch operations.
+     */
+    private interface NoteWrite {
+        void apply(NoteStatements statements, Note note) throws NoteStoreException;
+    }
+
+    private final NoteWrite insertNote = new NoteWrite() {
+        @Override
+        public void apply(NoteStatements statements, Note note) throws NoteStoreException {
+            Object content = encodeContent(note.getContent());
+            long id = statements.insert(note.getId(), note.getTitle(), content, note.getCreatedAt().getTime());
+            if (id < 0) {
+                throw new NoteStoreException("Failed to create note using sqlite");
+            }
+            if (content instanceof byte[]) {
+                statements.indexContent(note.getId(), note.getContent());
+            }
+        }
+    };
+
+    private final NoteWrite updateNote = new NoteWrite() {
+        @Override
+        public void apply(NoteStatements statements, Note note) throws NoteStoreException {
+            Object content = encodeContent(note.getContent());
+            int count = statements.update(note.getId(), note.getTitle(), content);
+            if (count != 1) {
+                throw new NoteStoreException("Failed to update note using sqlite");
+            }
+            if (content instanceof byte[]) {
+                statements.indexContent(note.getId(), note.getContent());
+            }
+        }
+    };
+
+    private final NoteWrite deleteNote = new NoteWrite() {
+        @Override
+        public void apply(NoteStatements statements, Note note) {
+            statements.delete(note.getId());
+        }
+    };
 
     @Inject
     public SqliteNoteStore(Context context, RsaCrypto rsaCrypto) {
-        this.dbHelper = new NoteDbHelper(context);
+        this.dbHelper = new NoteDbHelper(context, this.configurationHook);
         this.rsaCrypto = rsaCrypto;
         this.sharedPreferences = context.getSharedPreferences(DB_KEY_PREFS, Context.MODE_PRIVATE);
+        this.databasePath = context.getDatabasePath(NoteDbHelper.DATABASE_NAME).getPath();
+    }
+
+    /**
+     * Compress the content of the notes before it's saved. Short content is still saved as text.
+     * @param compressor the compressor to use. Set it to null to save the content as text (the default).
+     */
+    public void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Set how many notes of a batch are saved in each transaction. Bigger chunks are faster, but keep the database locked for longer.
+     * If a chunk fails, its transaction is rolled back, but the chunks before it stay saved.
+     * @param batchChunkSize the number of notes per transaction
+     */
+    public void setBatchChunkSize(int batchChunkSize) {
+        if (batchChunkSize <= 0) {
+            throw new IllegalArgumentException("the batch chunk size must be positive");
+        }
+        this.batchChunkSize = batchChunkSize;
+    }
+
+    /**
+     * Set how many connections can read from the database at the same time. It has no effect once the database is open.
+     * @param maxReadConnections the max number of read connections
+     */
+    public void setMaxReadConnections(int maxReadConnections) {
+        if (maxReadConnections <= 0) {
+            throw new IllegalArgumentException("the max number of read connections must be positive");
+        }
+        this.maxReadConnections = maxReadConnections;
+    }
+
+    /**
+     * Set the SQLCipher settings of the database. It has no effect once the database is open.
+     * @param configuration the settings
+     */
+    public void setConfiguration(SqliteStoreConfiguration configuration) {
+        this.configurationHook.setConfiguration(configuration);
+    }
+
+    /**
+     * Key the database with a random 256-bit key rather than a password. SQLCipher uses a raw key as it is,
+     * so it doesn't run its key derivation, which is most of the time it takes to open the database.
+     * An existing database keyed with a password is rekeyed the next time it's opened. Once the database has a raw key,
+     * it keeps using it even if this is turned off. It has no effect once the database is open.
+     * @param useRawKey true to use a raw key. The default is false.
+     */
+    public void setUseRawKey(boolean useRawKey) {
+        this.useRawKey = useRawKey;
     }
 
     private String randomPassword() {
@@ -76,131 +226,361 @@ public class SqliteNoteStore implements NoteDataStore {
     }
     // end::getDbPassword[]
 
-    private SQLiteDatabase getWritableDatabase() throws GeneralSecurityException, IOException {
+    /**
+     * Get the raw key of the database, as the blob literal SQLCipher expects in place of a password: x'&lt;64 hex digits&gt;'.
+     * The key is saved encrypted, like the password.
+     * @return the key
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    private char[] getDbRawKey() throws GeneralSecurityException, IOException {
+        String encryptedKey = this.sharedPreferences.getString(DB_RAW_KEY_PREF_NAME, null);
+        byte[] key;
+        if (encryptedKey == null) {
+            key = new byte[RAW_KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+            encryptedKey = Base64.encodeToString(rsaCrypto.encrypt(ENCRYPT_KEY_ALIAS, key), Base64.NO_WRAP);
+            this.sharedPreferences.edit().putString(DB_RAW_KEY_PREF_NAME, encryptedKey).commit();
+        } else {
+            key = rsaCrypto.decrypt(ENCRYPT_KEY_ALIAS, Base64.decode(encryptedKey, Base64.NO_WRAP));
+        }
+        char[] blobLiteral = new char[key.length * 2 + 3];
+        blobLiteral[0] = 'x';
+        blobLiteral[1] = '\'';
+        for (int i = 0; i < key.length; i++) {
+            blobLiteral[2 + i * 2] = HEX_DIGITS[(key[i] >> 4) & 0xF];
+            blobLiteral[3 + i * 2] = HEX_DIGITS[key[i] & 0xF];
+        }
+        blobLiteral[blobLiteral.length - 1] = '\'';
+        Arrays.fill(key, (byte) 0);
+        return blobLiteral;
+    }
+
+    /**
+     * Get the key of the database. The raw key is used if the store is set to use one, or if the database already has one.
+     * A database that is still keyed with the password is rekeyed first.
+     */
+    private char[] getDbKey() throws GeneralSecurityException, IOException {
+        if (!this.useRawKey && !this.sharedPreferences.contains(DB_RAW_KEY_PREF_NAME)) {
+            return getDbPassword().toCharArray();
+        }
+        char[] rawKey = getDbRawKey();
+        if (this.sharedPreferences.contains(DB_KEY_PREF_NAME)) {
+            rekeyWithRawKey(rawKey);
+        }
+        return rawKey;
+    }
+
+    /**
+     * Rekey the database from the password to the raw key, and forget the password.
+     * The raw key is saved before the rekey, and the rekey is atomic, so if the app is killed in between,
+     * the next open finds the database keyed with either the password or the raw key, and both are still known.
+     * The password is only forgotten once the database is known to open with the raw key.
+     * If it opens with neither (e.g. the file can't be opened at all), the error is thrown and both keys are kept.
+     */
+    private void rekeyWithRawKey(char[] rawKey) throws GeneralSecurityException, IOException {
+        if (new File(this.databasePath).exists()) {
+            SQLiteDatabase db;
+            try {
+                db = SQLiteDatabase.openDatabase(this.databasePath, getDbPassword(), null, SQLiteDatabase.OPEN_READWRITE, this.configurationHook);
+            } catch (SQLiteException passwordFailure) {
+                //the password doesn't open it, which is expected if it was already rekeyed. Make sure the raw key does
+                try {
+                    SQLiteDatabase.openDatabase(this.databasePath, rawKey, null, SQLiteDatabase.OPEN_READWRITE, this.configurationHook).close();
+                } catch (SQLiteException rawKeyFailure) {
+                    passwordFailure.addSuppressed(rawKeyFailure);
+                    throw passwordFailure;
+                }
+                db = null;
+            }
+            if (db != null) {
+                try {
+                    //the rekey rewrites all the pages in a single transaction, which needs the rollback journal
+                    db.rawExecSQL("PRAGMA journal_mode = DELETE");
+                    db.changePassword(rawKey);
+                } finally {
+                    db.close();
+                }
+            }
+        }
+        this.sharedPreferences.edit().remove(DB_KEY_PREF_NAME).commit();
+    }
+
+    /**
+     * Open the database, if it's not open yet. This is the only place that derives the key of the database and runs the schema upgrades,
+     * so concurrent first uses of the store don't decrypt the password or open the database twice.
+     * @return the connection used for the writes
+     */
+    private synchronized SQLiteDatabase open() throws GeneralSecurityException, IOException {
         if (this.writableDb == null) {
-            String password = getDbPassword();
-            this.writableDb = this.dbHelper.getWritableDatabase(password);
+            this.dbPassword = getDbKey();
+            this.writableDb = this.dbHelper.getWritableDatabase(this.dbPassword);
+            this.statements = new NoteStatements(this.writableDb);
+            this.readPool = new ReadConnectionPool(new ReadConnectionPool.ConnectionFactory() {
+                @Override
+                public SQLiteDatabase openReadConnection() {
+                    //opened read-write and made read-only with a pragma, as a read-only connection can't create the shared memory file of the write-ahead log
+                    SQLiteDatabase db = SQLiteDatabase.openDatabase(databasePath, dbPassword, null, SQLiteDatabase.OPEN_READWRITE, configurationHook);
+                    db.rawExecSQL("PRAGMA query_only = 1");
+                    return db;
+                }
+            }, this.maxReadConnections);
         }
         return this.writableDb;
     }
 
-    private SQLiteDatabase getReadableDb() throws GeneralSecurityException, IOException {
-        if (this.readableDb == null) {
-            String password = getDbPassword();
-            this.readableDb = this.dbHelper.getReadableDatabase(password);
-        }
-        return this.readableDb;
+    SQLiteDatabase getWritableDatabase() throws GeneralSecurityException, IOException {
+        return open();
     }
 
-    @Override
-    public Note createNote(Note note) throws Exception {
-        SQLiteDatabase db = getWritableDatabase();
+    private NoteStatements getStatements() throws GeneralSecurityException, IOException {
+        open();
+        return this.statements;
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(NoteContract.NoteEntry.COLUMN_UUID, note.getId());
-        values.put(NoteContract.NoteEntry.COLUMN_NAME_TITLE, note.getTitle());
-        values.put(NoteContract.NoteEntry.COLUMN_NAME_CONTENT, note.getContent());
-        values.put(NoteContract.NoteEntry.COLUMN_CREATED_AT, note.getCreatedAt().getTime());
+    /**
+     * The connections got from the pool have to be given back to the same pool, even if the store is closed in between
+     * @return the pool of the connections for reading
+     */
+    synchronized ReadConnectionPool getReadPool() throws GeneralSecurityException, IOException {
+        open();
+        return this.readPool;
+    }
 
-        long id = db.insert(NoteContract.NoteEntry.TABLE_NAME, null, values);
-        if (id >= 0) {
-            return note;
-        } else {
-            throw new NoteStoreException("Failed to create note using sqlite");
+    /**
+     * Close the database. The store opens it again when it's next used.
+     */
+    public synchronized void close() {
+        if (this.writableDb == null) {
+            return;
         }
+        this.readPool.close();
+        this.statements.close();
+        this.dbHelper.close();
+        Arrays.fill(this.dbPassword, '\0');
+        this.readPool = null;
+        this.statements = null;
+        this.writableDb = null;
+        this.dbPassword = null;
+    }
+
+    @Override
+    public Note createNote(Note note) throws Exception {
+        //in a transaction, as the note and its content are saved by separate statements
+        applyInTransactions(Collections.singletonList(note), insertNote);
+        return note;
     }
 
     @Override
     public Note updateNote(Note note) throws Exception {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(NoteContract.NoteEntry.COLUMN_NAME_TITLE, note.getTitle());
-        values.put(NoteContract.NoteEntry.COLUMN_NAME_CONTENT, note.getContent());
-        String selection = NoteContract.NoteEntry.COLUMN_UUID + " is ?";
-        String[] selectionArgs = { note.getId() };
-
-        int count = db.update(
-                NoteContract.NoteEntry.TABLE_NAME,
-                values,
-                selection,
-                selectionArgs
-        );
-        if (count == 1) {
-            return note;
-        } else {
-            throw new NoteStoreException("Failed to update note using sqlite");
-        }
+        applyInTransactions(Collections.singletonList(note), updateNote);
+        return note;
     }
 
     @Override
     public Note deleteNote(Note note) throws Exception {
-        SQLiteDatabase db = getWritableDatabase();
-        String selection = NoteContract.NoteEntry.COLUMN_UUID + " is ?";
-        String[] selectionArgs = { note.getId() };
-        db.delete(NoteContract.NoteEntry.TABLE_NAME, selection, selectionArgs);
+        applyInTransactions(Collections.singletonList(note), deleteNote);
         return note;
     }
 
     @Override
-    public Note readNote(String noteId) throws Exception {
-        SQLiteDatabase db = getReadableDb();
+    public List<Note> createNotes(List<Note> notes) throws Exception {
+        return applyInTransactions(notes, insertNote);
+    }
 
-        String[] projections = {
-                NoteContract.NoteEntry.COLUMN_UUID,
-                NoteContract.NoteEntry.COLUMN_CREATED_AT,
-                NoteContract.NoteEntry.COLUMN_NAME_TITLE,
-                NoteContract.NoteEntry.COLUMN_NAME_CONTENT
-        };
+    @Override
+    public List<Note> updateNotes(List<Note> notes) throws Exception {
+        return applyInTransactions(notes, updateNote);
+    }
+
+    @Override
+    public List<Note> deleteNotes(List<Note> notes) throws Exception {
+        return applyInTransactions(notes, deleteNote);
+    }
+
+    /**
+     * Apply the write to all the notes, with one transaction per chunk of the batch, so the journal is synced once per chunk rather than once per note.
+     */
+    private List<Note> applyInTransactions(List<Note> notes, NoteWrite write) throws Exception {
+        SQLiteDatabase db = getWritableDatabase();
+        NoteStatements statements = getStatements();
+        for (int start = 0; start < notes.size(); start += batchChunkSize) {
+            int end = Math.min(notes.size(), start + batchChunkSize);
+            db.beginTransaction();
+            try {
+                for (int i = start; i < end; i++) {
+                    write.apply(statements, notes.get(i));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return notes;
+    }
+
+    @Override
+    public Note readNote(String noteId) throws Exception {
+        ReadConnectionPool pool = getReadPool();
+        SQLiteDatabase db = pool.acquire();
 
         Note readNote = null;
-        String selection = NoteContract.NoteEntry.COLUMN_UUID + " is ?";
         String[] selectionArgs = {noteId};
-        Cursor cursor = db.query(NoteContract.NoteEntry.TABLE_NAME, projections, selection, selectionArgs, null, null, null);
-        if (cursor.moveToNext()) {
-            String uuid = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_UUID));
-            int createdAt = cursor.getInt(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_CREATED_AT));
-            String title = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_NAME_TITLE));
-            String content = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_NAME_CONTENT));
-            readNote = new Note(uuid, title, content, (long) createdAt);
-            readNote.setStoreType(getType());
-        }
-        cursor.close();
+        try {
+            Cursor cursor = db.rawQuery(NoteStatements.SQL_READ, selectionArgs);
+            try {
+                if (cursor.moveToNext()) {
+                    String uuid = cursor.getString(NoteStatements.READ_UUID);
+                    long createdAt = cursor.getLong(NoteStatements.READ_CREATED_AT);
+                    String title = cursor.getString(NoteStatements.READ_TITLE);
+                    String content = readContent(cursor, NoteStatements.READ_CONTENT);
+                    readNote = new Note(uuid, title, content, createdAt);
+                    readNote.setStoreType(getType());
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            pool.release(db);
+        }
         return readNote;
     }
 
     @Override
     public List<Note> listNotes() throws Exception {
-        SQLiteDatabase db = getReadableDb();
+        ReadConnectionPool pool = getReadPool();
+        SQLiteDatabase db = pool.acquire();
         String[] projections = {
                 NoteContract.NoteEntry.COLUMN_UUID,
                 NoteContract.NoteEntry.COLUMN_CREATED_AT,
                 NoteContract.NoteEntry.COLUMN_NAME_TITLE
         };
 
-        String sortOrder = NoteContract.NoteEntry.COLUMN_CREATED_AT + " DESC";
-        Cursor cursor = db.query(NoteContract.NoteEntry.TABLE_NAME, projections, null, null, null, null, sortOrder);
         List<Note> notes = new ArrayList<Note>();
-        while(cursor.moveToNext()) {
-            String uuid = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_UUID));
-            int createdAt = cursor.getInt(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_CREATED_AT));
-            String title = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_NAME_TITLE));
-            Note note = new Note(uuid, title, null, createdAt);
-            note.setStoreType(getType());
-            notes.add(note);
-        }
-        cursor.close();
+        try {
+            Cursor cursor = db.query(NoteContract.NoteEntry.TABLE_NAME, projections, null, null, null, null, SORT_ORDER_BY_CREATED_AT);
+            try {
+                while(cursor.moveToNext()) {
+                    String uuid = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_UUID));
+                    long createdAt = cursor.getLong(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_CREATED_AT));
+                    String title = cursor.getString(cursor.getColumnIndexOrThrow(NoteContract.NoteEntry.COLUMN_NAME_TITLE));
+                    Note note = new Note(uuid, title, null, createdAt);
+                    note.setStoreType(getType());
+                    notes.add(note);
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            pool.release(db);
+        }
+        return notes;
+    }
+
+    @Override
+    public List<Note> listNotes(PageCursor after, int pageSize) throws Exception {
+        ReadConnectionPool pool = getReadPool();
+        SQLiteDatabase db = pool.acquire();
+        List<Note> notes = new ArrayList<Note>(pageSize);
+        try {
+            Cursor cursor;
+            if (after == null) {
+                cursor = db.rawQuery(SQL_FIRST_PAGE, new Object[]{pageSize});
+            } else {
+                cursor = db.rawQuery(SQL_NEXT_PAGE, new Object[]{after.getCreatedAt(), after.getId(), pageSize});
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    Note note = new Note(cursor.getString(0), cursor.getString(2), null, cursor.getLong(1));
+                    note.setStoreType(getType());
+                    notes.add(note);
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            pool.release(db);
+        }
         return notes;
     }
 
+    @Override
+    public List<NoteSearchResult> searchNotes(String query, int limit) throws Exception {
+        List<NoteSearchResult> results = new ArrayList<NoteSearchResult>();
+        String matchQuery = FtsRank.toMatchQuery(query);
+        if (matchQuery == null) {
+            return results;
+        }
+        ReadConnectionPool pool = getReadPool();
+        SQLiteDatabase db = pool.acquire();
+        try {
+            Cursor cursor = db.rawQuery(SQL_SEARCH, new String[]{matchQuery});
+            try {
+                while (cursor.moveToNext()) {
+                    double score = FtsRank.bm25(cursor.getBlob(3), SEARCH_COLUMN_WEIGHTS);
+                    results.add(new NoteSearchResult(cursor.getString(0), getType(), cursor.getString(1), cursor.getString(2), score));
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            pool.release(db);
+        }
+        Collections.sort(results, NoteSearchResult.MOST_RELEVANT_FIRST);
+        return results.size() > limit ? new ArrayList<NoteSearchResult>(results.subList(0, limit)) : results;
+    }
+
     @Override
     public int getType() {
         return STORE_TYPE_SQL;
     }
 
+    /**
+     * @return the value to save in the content column: the content itself, or the compressed blob
+     */
+    private Object encodeContent(String content) {
+        byte[] compressed = null;
+        if (compressor != null && content != null) {
+            compressed = compressor.compress(content.getBytes(UTF8));
+        }
+        if (compressed == null) {
+            return content;
+        }
+        byte[] blob = new byte[compressed.length + 1];
+        blob[0] = compressor.getCodec().getId();
+        System.arraycopy(compressed, 0, blob, 1, compressed.length);
+        return blob;
+    }
+
+    private String readContent(Cursor cursor, int columnIndex) throws IOException {
+        if (cursor.getType(columnIndex) != Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getString(columnIndex);
+        }
+        return decodeContent(cursor.getBlob(columnIndex));
+    }
+
+    /**
+     * @param blob compressed content, as saved by {@link #encodeContent(String)}
+     * @return the content
+     * @throws IOException if the content is invalid
+     */
+    static String decodeContent(byte[] blob) throws IOException {
+        if (blob.length == 0) {
+            throw new IOException("invalid compressed content");
+        }
+        //make sure the codec is known
+        PayloadCompressor.Codec.fromId(blob[0]);
+        return UTF8.decode(PayloadCompressor.decompress(ByteBuffer.wrap(blob, 1, blob.length - 1))).toString();
+    }
+
     @Override
     public long count() throws Exception {
-        SQLiteDatabase db = getReadableDb();
-        long count = DatabaseUtils.queryNumEntries(db, NoteContract.NoteEntry.TABLE_NAME);
-        return count;
+        ReadConnectionPool pool = getReadPool();
+        SQLiteDatabase db = pool.acquire();
+        try {
+            return DatabaseUtils.longForQuery(db, SQL_COUNT, null);
+        } finally {
+            pool.release(db);
+        }
     }
 }
@@ -0,0 +1,154 @@
+package com.feedhenry.securenativeandroidtemplate.domain.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compress payloads before they are encrypted. Encrypted data can't be compressed, so this is the only point where compression helps.
+ *
+ * Small payloads are not compressed, as the saving would be smaller than the time it takes. Payloads that don't get smaller are not compressed either.
+ * All the codecs produce a zlib stream, they only differ in the compression level, so any of them can decompress the output of the others.
+ */
+public class PayloadCompressor {
+
+    /**
+     * The compression codec
+     */
+    public enum Codec {
+        /**
+         * Deflate with the default compression level
+         */
+        DEFLATE(1, Deflater.DEFAULT_COMPRESSION),
+        /**
+         * Deflate with the fastest compression level. It compresses several times faster than {@link #DEFLATE}, at the cost of a slightly bigger output.
+         */
+        DEFLATE_FAST(2, Deflater.BEST_SPEED);
+
+        private final byte id;
+        private final int level;
+
+        Codec(int id, int level) {
+            this.id = (byte) id;
+            this.level = level;
+        }
+
+        /**
+         * @return the id to save with the compressed data
+         */
+        public byte getId() {
+            return id;
+        }
+
+        /**
+         * @param id the id saved with the compressed data
+         * @return the codec with the given id
+         * @throws IOException if the id is unknown
+         */
+        public static Codec fromId(byte id) throws IOException {
+            for (Codec codec : values()) {
+                if (codec.id == id) {
+                    return codec;
+                }
+            }
+            throw new IOException("unknown compression codec " + id);
+        }
+    }
+
+    /**
+     * Payloads smaller than this are stored raw by default
+     */
+    public static final int DEFAULT_MIN_SIZE = 1024;
+
+    private final Codec codec;
+    private final int minSize;
+
+    public PayloadCompressor(Codec codec) {
+        this(codec, DEFAULT_MIN_SIZE);
+    }
+
+    /**
+     * @param codec the codec to compress with
+     * @param minSize payloads smaller than this (in bytes) are not compressed
+     */
+    public PayloadCompressor(Codec codec, int minSize) {
+        this.codec = codec;
+        this.minSize = minSize;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Compress the given payload, if it's worth it.
+     * @param payload the data to compress
+     * @return the compressed data, or null if the payload should be stored raw
+     */
+    public byte[] compress(byte[] payload) {
+        if (payload.length < minSize) {
+            return null;
+        }
+        Deflater deflater = new Deflater(codec.level);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            //no point going on once the output is as big as the input
+            byte[] output = new byte[payload.length];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    return null;
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress data returned by {@link #compress(byte[])}, using any of the codecs.
+     * @param compressed the compressed data, from its position to its limit
+     * @return the decompressed data. The position is 0, and the limit is the size of the data.
+     * @throws IOException if the data is not valid
+     */
+    public static ByteBuffer decompress(ByteBuffer compressed) throws IOException {
+        byte[] input;
+        int offset;
+        int length = compressed.remaining();
+        if (compressed.hasArray()) {
+            input = compressed.array();
+            offset = compressed.arrayOffset() + compressed.position();
+        } else {
+            input = new byte[length];
+            compressed.duplicate().get(input);
+            offset = 0;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, length);
+            byte[] output = new byte[Math.max(64, length * 4)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int count = inflater.inflate(output, size, output.length - size);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated compressed data");
+                }
+                size += count;
+            }
+            return ByteBuffer.wrap(output, 0, size).slice();
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
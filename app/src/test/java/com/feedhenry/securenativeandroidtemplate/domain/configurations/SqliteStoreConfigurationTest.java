@@ -0,0 +1,54 @@
+package com.feedhenry.securenativeandroidtemplate.domain.configurations;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+public class SqliteStoreConfigurationTest {
+
+    @Test
+    public void testDefaults() throws Exception {
+        SqliteStoreConfiguration configuration = new SqliteStoreConfiguration(new JSONObject("{}"));
+        assertNull(configuration.getCipherPageSize());
+        assertNull(configuration.getCacheSize());
+        assertNull(configuration.getKdfIter());
+        assertNull(configuration.getCipherUseHmac());
+        assertNull(configuration.getCipherMemorySecurity());
+        assertNull(configuration.getTempStore());
+        assertEquals(SqliteStoreConfiguration.JOURNAL_MODE_WAL, configuration.getJournalMode());
+    }
+
+    @Test
+    public void testReadSettings() throws Exception {
+        SqliteStoreConfiguration configuration = new SqliteStoreConfiguration(new JSONObject("{\"cipher-page-size\": 4096, \"cache-size\": -2000, "
+                + "\"kdf-iter\": 64000, \"cipher-use-hmac\": true, \"cipher-memory-security\": false, \"temp-store\": \"memory\", \"journal-mode\": \"truncate\"}"));
+        assertEquals(Integer.valueOf(4096), configuration.getCipherPageSize());
+        assertEquals(Integer.valueOf(-2000), configuration.getCacheSize());
+        assertEquals(Integer.valueOf(64000), configuration.getKdfIter());
+        assertEquals(Boolean.TRUE, configuration.getCipherUseHmac());
+        assertEquals(Boolean.FALSE, configuration.getCipherMemorySecurity());
+        assertEquals("MEMORY", configuration.getTempStore());
+        assertEquals("TRUNCATE", configuration.getJournalMode());
+    }
+
+    @Test
+    public void testInvalidSettings() throws Exception {
+        String[] invalidConfigs = {
+                "{\"cipher-page-size\": 3000}",
+                "{\"kdf-iter\": 0}",
+                "{\"temp-store\": \"disk\"}",
+                "{\"journal-mode\": \"WAL; DROP TABLE note\"}"
+        };
+        for (String invalidConfig : invalidConfigs) {
+            try {
+                new SqliteStoreConfiguration(new JSONObject(invalidConfig));
+                fail("invalid configuration accepted: " + invalidConfig);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class AesCryptoTest {
+
+    private final AesCrypto aesCrypto = new AesCrypto(new CipherPoolTest.TestKeyStore());
+    private final SecretKey key = newKey();
+    private final byte[] aad = new byte[]{1, 2, 3};
+
+    @Test
+    public void testSlicesAreInTheSameFormat() throws Exception {
+        byte[] plainText = newData(100);
+        byte[] input = new byte[plainText.length + 10];
+        System.arraycopy(plainText, 0, input, 7, plainText.length);
+        byte[] output = new byte[5 + AesCrypto.getMaxEncryptedSize(plainText.length)];
+        int encryptedLength = aesCrypto.encrypt(key, input, 7, plainText.length, aad, output, 5);
+
+        byte[] encrypted = Arrays.copyOfRange(output, 5, 5 + encryptedLength);
+        assertTrue(Arrays.equals(plainText, aesCrypto.decrypt(key, encrypted, aad)));
+        assertTrue(Arrays.equals(plainText, aesCrypto.decrypt(key, output, 5, encryptedLength, aad)));
+
+        byte[] decrypted = new byte[3 + AesCrypto.getMaxDecryptedSize(encryptedLength)];
+        int decryptedLength = aesCrypto.decrypt(key, output, 5, encryptedLength, aad, decrypted, 3);
+        assertEquals(plainText.length, decryptedLength);
+        assertTrue(Arrays.equals(plainText, Arrays.copyOfRange(decrypted, 3, 3 + decryptedLength)));
+    }
+
+    @Test
+    public void testByteBuffers() throws Exception {
+        byte[] plainText = newData(100);
+        for (boolean direct : new boolean[]{false, true}) {
+            ByteBuffer input = allocate(plainText.length, direct);
+            input.put(plainText).flip();
+            ByteBuffer encrypted = allocate(AesCrypto.getMaxEncryptedSize(plainText.length), direct);
+            int encryptedLength = aesCrypto.encrypt(key, input, encrypted, aad);
+            assertEquals(encryptedLength, encrypted.position());
+            assertEquals(0, input.remaining());
+            encrypted.flip();
+
+            byte[] encryptedBytes = new byte[encryptedLength];
+            encrypted.duplicate().get(encryptedBytes);
+            assertTrue(Arrays.equals(plainText, aesCrypto.decrypt(key, encryptedBytes, aad)));
+
+            ByteBuffer decrypted = allocate(AesCrypto.getMaxDecryptedSize(encryptedLength), direct);
+            assertEquals(plainText.length, aesCrypto.decrypt(key, encrypted, decrypted, aad));
+            decrypted.flip();
+            assertEquals(ByteBuffer.wrap(plainText), decrypted);
+        }
+    }
+
+    @Test
+    public void testShortOutput() throws Exception {
+        byte[] plainText = newData(100);
+        try {
+            aesCrypto.encrypt(key, plainText, 0, plainText.length, aad, new byte[plainText.length], 0);
+            fail("the output was too small");
+        } catch (ShortBufferException e) {
+            //expected
+        }
+        ByteBuffer encrypted = ByteBuffer.wrap(aesCrypto.encrypt(key, plainText, aad));
+        try {
+            aesCrypto.decrypt(key, encrypted, ByteBuffer.allocate(10), aad);
+            fail("the output was too small");
+        } catch (ShortBufferException e) {
+            //expected
+        }
+        //the input can be decrypted again with a bigger output
+        assertEquals(0, encrypted.position());
+        assertEquals(plainText.length, aesCrypto.decrypt(key, encrypted, ByteBuffer.allocate(plainText.length), aad));
+    }
+
+    @Test
+    public void testInvalidHeader() throws Exception {
+        byte[] encrypted = aesCrypto.encrypt(key, newData(10), null);
+        for (byte[] invalid : new byte[][]{new byte[2], Arrays.copyOf(encrypted, 10), new byte[]{(byte) 0xff, 0, 0, 0, 1, 2, 3}}) {
+            try {
+                aesCrypto.decrypt(key, invalid, null);
+                fail("invalid data was decrypted");
+            } catch (GeneralSecurityException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        List<byte[]> plainTexts = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            plainTexts.add(newData(i % 50));
+        }
+        for (int workerCount : new int[]{0, 3}) {
+            aesCrypto.setBatchWorkerCount(workerCount);
+            List<byte[]> encrypted = aesCrypto.encryptAll(key, plainTexts, aad);
+            assertEquals(plainTexts.size(), encrypted.size());
+            Set<String> ivs = new HashSet<String>();
+            for (int i = 0; i < plainTexts.size(); i++) {
+                assertTrue(Arrays.equals(plainTexts.get(i), aesCrypto.decrypt(key, encrypted.get(i), aad)));
+                ivs.add(Arrays.toString(Arrays.copyOfRange(encrypted.get(i), 0, 16)));
+            }
+            assertEquals(plainTexts.size(), ivs.size());
+
+            List<byte[]> decrypted = aesCrypto.decryptAll(key, encrypted, aad);
+            for (int i = 0; i < plainTexts.size(); i++) {
+                assertTrue(Arrays.equals(plainTexts.get(i), decrypted.get(i)));
+            }
+
+            //a value that can't be decrypted fails the batch, whichever thread decrypts it
+            List<byte[]> tampered = new ArrayList<byte[]>(encrypted);
+            byte[] value = tampered.get(tampered.size() - 1).clone();
+            value[value.length - 1] ^= 1;
+            tampered.set(tampered.size() - 1, value);
+            try {
+                aesCrypto.decryptAll(key, tampered, aad);
+                fail("the tampered value was decrypted");
+            } catch (GeneralSecurityException e) {
+                //expected
+            }
+        }
+        aesCrypto.setBatchWorkerCount(0);
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static byte[] newData(int size) {
+        byte[] data = new byte[size];
+        new SecureRandom().nextBytes(data);
+        return data;
+    }
+
+    private static SecretKey newKey() {
+        return new SecretKeySpec(newData(16), "AES");
+    }
+}
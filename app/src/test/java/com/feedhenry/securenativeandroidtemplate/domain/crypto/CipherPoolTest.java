@@ -0,0 +1,117 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class CipherPoolTest {
+
+    private static final String AES_MODE = SecureKeyStoreImpl.ALG_AES_GCM_NOPADDING;
+
+    @Test
+    public void testCipherIsReusedOnTheSameThread() throws Exception {
+        CipherPool pool = new CipherPool(true);
+        Cipher first = pool.initEncryption(AES_MODE, newKey());
+        Cipher second = pool.initEncryption(AES_MODE, newKey());
+        assertSame(first, second);
+
+        //a key of another class can need another provider
+        Cipher other = pool.initEncryption(AES_MODE, new AesKey(newKey()));
+        assertNotSame(first, other);
+
+        assertNotSame(new CipherPool(false).initEncryption(AES_MODE, newKey()), new CipherPool(false).initEncryption(AES_MODE, newKey()));
+    }
+
+    @Test
+    public void testEachEncryptionHasANewIv() throws Exception {
+        CipherPool pool = new CipherPool(true);
+        SecretKey key = newKey();
+        Set<String> ivs = new HashSet<String>();
+        for (int i = 0; i < 100; i++) {
+            ivs.add(Arrays.toString(pool.initEncryption(AES_MODE, key).getIV()));
+        }
+        assertEquals(100, ivs.size());
+    }
+
+    @Test
+    public void testAesCryptoWithPooledCiphers() throws Exception {
+        AesCrypto aesCrypto = new AesCrypto(new TestKeyStore());
+        SecretKey key = newKey();
+        byte[] plainText = "a title".getBytes("utf-8");
+        byte[] aad = "id".getBytes("utf-8");
+        byte[] first = aesCrypto.encrypt(key, plainText, aad);
+        byte[] second = aesCrypto.encrypt(key, plainText, aad);
+        assertFalse(Arrays.equals(first, second));
+
+        //a failed decryption doesn't break the cipher for the next operations
+        byte[] tampered = first.clone();
+        tampered[tampered.length - 1] ^= 1;
+        try {
+            aesCrypto.decrypt(key, tampered, aad);
+            fail("the tampered data was decrypted");
+        } catch (GeneralSecurityException e) {
+            //expected
+        }
+        assertTrue(Arrays.equals(plainText, aesCrypto.decrypt(key, first, aad)));
+        assertTrue(Arrays.equals(plainText, aesCrypto.decrypt(key, second, aad)));
+        //the aad of the previous operations is not kept
+        assertTrue(Arrays.equals(plainText, aesCrypto.decrypt(key, aesCrypto.encrypt(key, plainText, null), null)));
+    }
+
+    private static SecretKey newKey() {
+        byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * A key store that only tells the AES mode to use, for the operations with keys given by the caller
+     */
+    static class TestKeyStore extends NullAndroidSecureKeyStore {
+        @Override
+        public String getSupportedAESMode() {
+            return AES_MODE;
+        }
+    }
+
+    /**
+     * A key of another class than SecretKeySpec, with the same bytes
+     */
+    private static class AesKey implements SecretKey {
+        private final SecretKey key;
+
+        AesKey(SecretKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return key.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            return key.getFormat();
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return key.getEncoded();
+        }
+    }
+}
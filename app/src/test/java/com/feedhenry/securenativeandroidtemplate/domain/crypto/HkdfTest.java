@@ -0,0 +1,46 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+public class HkdfTest {
+
+    //test case 1 from RFC 5869
+    @Test
+    public void testRfc5869Vector() throws Exception {
+        byte[] ikm = new byte[22];
+        Arrays.fill(ikm, (byte) 0x0b);
+        byte[] salt = hex("000102030405060708090a0b0c");
+        byte[] info = hex("f0f1f2f3f4f5f6f7f8f9");
+        byte[] okm = Hkdf.derive(ikm, salt, info, 42);
+        assertEquals("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865", toHex(okm));
+    }
+
+    @Test
+    public void testDifferentSaltsGiveDifferentKeys() throws Exception {
+        byte[] ikm = new byte[32];
+        byte[] first = Hkdf.derive(ikm, "note1".getBytes("utf-8"), null, 32);
+        byte[] second = Hkdf.derive(ikm, "note2".getBytes("utf-8"), null, 32);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    private static byte[] hex(String value) {
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
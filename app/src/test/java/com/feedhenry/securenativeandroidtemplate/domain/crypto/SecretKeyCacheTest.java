@@ -0,0 +1,174 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+public class SecretKeyCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedKeyIsDropped() {
+        SecretKeyCache cache = new SecretKeyCache(2);
+        SecretKey first = newKey(1);
+        SecretKey second = newKey(2);
+        cache.put("first", first, cache.getVersion());
+        cache.put("second", second, cache.getVersion());
+        //first is now the most recently used
+        assertSame(first, cache.get("first"));
+        cache.put("third", newKey(3), cache.getVersion());
+        assertEquals(2, cache.size());
+        assertSame(first, cache.get("first"));
+        assertNull(cache.get("second"));
+    }
+
+    @Test
+    public void testKeyLoadedBeforeInvalidationIsNotAdded() {
+        SecretKeyCache cache = new SecretKeyCache(2);
+        long version = cache.getVersion();
+        cache.invalidate("key");
+        cache.put("key", newKey(1), version);
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testDisabledCache() {
+        SecretKeyCache cache = new SecretKeyCache(0);
+        cache.put("key", newKey(1), cache.getVersion());
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testAesCryptoOnlyLoadsKeysOnce() throws Exception {
+        CountingKeyStore keyStore = new CountingKeyStore();
+        AesCrypto aesCrypto = new AesCrypto(keyStore);
+        byte[] plainText = "some text".getBytes("utf-8");
+        for (int i = 0; i < 10; i++) {
+            byte[] encrypted = aesCrypto.encrypt("alias", plainText);
+            assertEquals("some text", new String(aesCrypto.decrypt("alias", encrypted), "utf-8"));
+        }
+        assertEquals(1, keyStore.keyLoads);
+
+        //a deleted key is not used from the cache
+        aesCrypto.deleteSecretKey("alias");
+        try {
+            aesCrypto.decrypt("alias", aesCrypto.encrypt("other", plainText));
+            fail("the deleted key was used");
+        } catch (GeneralSecurityException e) {
+            //expected
+        }
+
+        aesCrypto.setKeyCacheSize(0);
+        aesCrypto.encrypt("other", plainText);
+        aesCrypto.encrypt("other", plainText);
+        assertEquals(4, keyStore.keyLoads);
+    }
+
+    @Test
+    public void testAesCryptoDoesNotKeepKeyBytes() throws Exception {
+        CountingKeyStore keyStore = new CountingKeyStore();
+        keyStore.handles = false;
+        AesCrypto aesCrypto = new AesCrypto(keyStore);
+        byte[] plainText = "some text".getBytes("utf-8");
+        aesCrypto.encrypt("alias", plainText);
+        aesCrypto.encrypt("alias", plainText);
+        assertEquals(2, keyStore.keyLoads);
+    }
+
+    private static SecretKey newKey(int value) {
+        byte[] key = new byte[16];
+        key[0] = (byte) value;
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * A key that stands for a key in the keystore. Unlike a real handle its bytes can be read, so the JVM provider can use it.
+     */
+    private static SecretKey newHandle(int value) {
+        final SecretKey key = newKey(value);
+        return new SecretKey() {
+            @Override
+            public String getAlgorithm() {
+                return key.getAlgorithm();
+            }
+
+            @Override
+            public String getFormat() {
+                return key.getFormat();
+            }
+
+            @Override
+            public byte[] getEncoded() {
+                return key.getEncoded();
+            }
+        };
+    }
+
+    /**
+     * An in-memory keystore that counts the keys it loads
+     */
+    private static class CountingKeyStore implements SecureKeyStore {
+
+        private final Map<String, SecretKey> keys = new HashMap<String, SecretKey>();
+        private int keyLoads = 0;
+        private boolean handles = true;
+
+        @Override
+        public String getSupportedAESMode() {
+            return "AES/GCM/NoPadding";
+        }
+
+        @Override
+        public String getSupportedRSAMode() {
+            return null;
+        }
+
+        @Override
+        public boolean hasSecretKey(String keyAlias) {
+            return keys.containsKey(keyAlias);
+        }
+
+        @Override
+        public Key getSecretKey(String keyAlias) {
+            keyLoads++;
+            return keys.get(keyAlias);
+        }
+
+        @Override
+        public void generateAESKey(String keyAlias) {
+            keys.put(keyAlias, handles ? newHandle(keys.size() + 1) : newKey(keys.size() + 1));
+        }
+
+        @Override
+        public void generatePrivateKeyPair(String keyAlias) throws GeneralSecurityException {
+            throw new GeneralSecurityException("not supported");
+        }
+
+        @Override
+        public KeyStore.Entry getKeyPairEntry(String keyAlias) throws GeneralSecurityException {
+            throw new GeneralSecurityException("not supported");
+        }
+
+        @Override
+        public boolean hasKeyPair(String keyAlias) {
+            return false;
+        }
+
+        @Override
+        public void deleteKey(String keyAlias) throws GeneralSecurityException, IOException {
+            keys.remove(keyAlias);
+        }
+    }
+}
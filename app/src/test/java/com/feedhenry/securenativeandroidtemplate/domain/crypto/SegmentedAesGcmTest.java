@@ -0,0 +1,113 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import com.feedhenry.securenativeandroidtemplate.domain.utils.StreamUtils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class SegmentedAesGcmTest {
+
+    private static final int SEGMENT_SIZE = 64;
+    private static final byte[] AAD = {1, 2, 3};
+
+    private final SecretKey key = new SecretKeySpec(new byte[32], "AES");
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        int[] sizes = {0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, SEGMENT_SIZE * 3, SEGMENT_SIZE * 3 + 7};
+        for (int size : sizes) {
+            byte[] plainText = randomBytes(size);
+            byte[] encrypted = encrypt(plainText);
+            byte[] decrypted = StreamUtils.readStreamBytes(SegmentedAesGcm.newDecryptingStream(key, new ByteArrayInputStream(encrypted), AAD));
+            assertTrue("size " + size, Arrays.equals(plainText, decrypted));
+        }
+    }
+
+    @Test
+    public void testDecryptBuffer() throws Exception {
+        byte[] plainText = randomBytes(SEGMENT_SIZE * 2 + 3);
+        ByteBuffer encrypted = ByteBuffer.allocateDirect(plainText.length + 100);
+        encrypted.put(encrypt(plainText));
+        encrypted.flip();
+        ByteBuffer decrypted = SegmentedAesGcm.decrypt(key, encrypted, AAD);
+        assertEquals(plainText.length, decrypted.remaining());
+        byte[] decryptedBytes = new byte[decrypted.remaining()];
+        decrypted.get(decryptedBytes);
+        assertTrue(Arrays.equals(plainText, decryptedBytes));
+    }
+
+    @Test
+    public void testSegmentSizeIsBounded() throws Exception {
+        try {
+            SegmentedAesGcm.newEncryptingStream(key, new ByteArrayOutputStream(), AAD, SegmentedAesGcm.MAX_SEGMENT_SIZE + 1);
+            fail("the segment size should be rejected");
+        } catch (GeneralSecurityException expected) {
+
+        }
+        //the segment size is read before anything is authenticated
+        byte[] encrypted = encrypt(randomBytes(SEGMENT_SIZE));
+        ByteBuffer.wrap(encrypted).putInt(Integer.MAX_VALUE);
+        try {
+            SegmentedAesGcm.newDecryptingStream(key, new ByteArrayInputStream(encrypted), AAD);
+            fail("the segment size should be rejected");
+        } catch (GeneralSecurityException expected) {
+
+        }
+        try {
+            SegmentedAesGcm.decrypt(key, ByteBuffer.wrap(encrypted), AAD);
+            fail("the segment size should be rejected");
+        } catch (GeneralSecurityException expected) {
+
+        }
+    }
+
+    @Test
+    public void testTamperedDataIsRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(SEGMENT_SIZE * 3));
+        //drop the last segment, so the previous one becomes the last
+        byte[] truncated = Arrays.copyOf(encrypted, encrypted.length - SEGMENT_SIZE - 16);
+        assertDecryptFails(truncated);
+
+        byte[] modified = encrypted.clone();
+        modified[SegmentedAesGcm.HEADER_LENGTH + 5] ^= 1;
+        assertDecryptFails(modified);
+    }
+
+    private void assertDecryptFails(byte[] encrypted) throws GeneralSecurityException {
+        try {
+            StreamUtils.readStreamBytes(SegmentedAesGcm.newDecryptingStream(key, new ByteArrayInputStream(encrypted), AAD));
+            fail("the data should not be authenticated");
+        } catch (IOException expected) {
+
+        }
+    }
+
+    private byte[] encrypt(byte[] plainText) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream out = SegmentedAesGcm.newEncryptingStream(key, bos, AAD, SEGMENT_SIZE);
+        out.write(plainText);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,102 @@
+package com.feedhenry.securenativeandroidtemplate.domain.crypto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class UnwrappedKeyCacheTest {
+
+    private static final byte[] ZEROS = new byte[16];
+
+    @Test
+    public void testExpiredKeyIsWiped() {
+        TestCache cache = new TestCache(2, 1000);
+        byte[] key = newKeyBytes(1);
+        cache.put("key", key, cache.getVersion());
+        cache.time = 999;
+        assertSame(key, cache.get("key"));
+        cache.time = 1000;
+        assertNull(cache.get("key"));
+        assertTrue(Arrays.equals(ZEROS, key));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedKeyIsWiped() {
+        TestCache cache = new TestCache(2, 1000);
+        byte[] first = newKeyBytes(1);
+        byte[] second = newKeyBytes(2);
+        cache.put("first", first, cache.getVersion());
+        cache.put("second", second, cache.getVersion());
+        //first is now the most recently used
+        assertSame(first, cache.get("first"));
+        cache.put("third", newKeyBytes(3), cache.getVersion());
+        assertEquals(2, cache.size());
+        assertNull(cache.get("second"));
+        assertTrue(Arrays.equals(ZEROS, second));
+        assertSame(first, cache.get("first"));
+    }
+
+    @Test
+    public void testInvalidateAndClearWipeKeys() {
+        TestCache cache = new TestCache(2, 1000);
+        byte[] first = newKeyBytes(1);
+        byte[] second = newKeyBytes(2);
+        cache.put("first", first, cache.getVersion());
+        cache.put("second", second, cache.getVersion());
+        cache.invalidate("first");
+        assertTrue(Arrays.equals(ZEROS, first));
+        assertSame(second, cache.get("second"));
+        cache.clear();
+        assertTrue(Arrays.equals(ZEROS, second));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testKeyUnwrappedBeforeInvalidationIsWiped() {
+        TestCache cache = new TestCache(2, 1000);
+        long version = cache.getVersion();
+        cache.invalidate("key");
+        byte[] key = newKeyBytes(1);
+        cache.put("key", key, version);
+        assertNull(cache.get("key"));
+        assertTrue(Arrays.equals(ZEROS, key));
+    }
+
+    @Test
+    public void testDisabledCache() {
+        TestCache cache = new TestCache(0, 1000);
+        byte[] key = newKeyBytes(1);
+        cache.put("key", key, cache.getVersion());
+        assertNull(cache.get("key"));
+        assertTrue(Arrays.equals(ZEROS, key));
+    }
+
+    private static byte[] newKeyBytes(int value) {
+        byte[] key = new byte[16];
+        Arrays.fill(key, (byte) value);
+        return key;
+    }
+
+    /**
+     * A cache with a clock that only moves when the test says so
+     */
+    private static class TestCache extends UnwrappedKeyCache {
+
+        private long time = 0;
+
+        TestCache(int maxSize, long ttlMillis) {
+            super(maxSize, ttlMillis);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+}
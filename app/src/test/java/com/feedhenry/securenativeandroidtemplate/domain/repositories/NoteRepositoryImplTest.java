@@ -0,0 +1,96 @@
+package com.feedhenry.securenativeandroidtemplate.domain.repositories;
+
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.NoteSearchResult;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
+import com.feedhenry.securenativeandroidtemplate.domain.store.InMemoryNoteStore;
+import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStore;
+import com.feedhenry.securenativeandroidtemplate.domain.store.NoteDataStoreFactory;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+
+public class NoteRepositoryImplTest {
+
+    @Test
+    public void testPagesAreMergedAcrossStores() throws Exception {
+        InMemoryNoteStore firstStore = new InMemoryNoteStore();
+        InMemoryNoteStore secondStore = new InMemoryNoteStore() {
+            @Override
+            public int getType() {
+                return STORE_TYPE_FILE;
+            }
+        };
+        List<String> expectedIds = new ArrayList<String>();
+        for (int i = 0; i < 25; i++) {
+            //several notes are created at the same time, so they are ordered by id
+            Note note = new Note("note-" + (100 + i), "note " + i, "", 1000 + i / 3);
+            (i % 3 == 0 ? firstStore : secondStore).createNote(note);
+            expectedIds.add(0, note.getId());
+        }
+        NoteRepositoryImpl repository = new NoteRepositoryImpl(new NoteDataStoreFactory(null, Arrays.<NoteDataStore>asList(firstStore, secondStore)));
+
+        List<String> pagedIds = new ArrayList<String>();
+        PageCursor cursor = null;
+        List<Note> page;
+        do {
+            page = repository.listNotes(cursor, 4);
+            for (Note note : page) {
+                pagedIds.add(note.getId());
+            }
+            if (!page.isEmpty()) {
+                cursor = PageCursor.after(page.get(page.size() - 1));
+            }
+        } while (page.size() == 4);
+        assertEquals(expectedIds, pagedIds);
+    }
+
+    @Test
+    public void testSearchResultsAreMergedByScore() throws Exception {
+        InMemoryNoteStore firstStore = new InMemoryNoteStore();
+        InMemoryNoteStore secondStore = new InMemoryNoteStore() {
+            @Override
+            public int getType() {
+                return STORE_TYPE_FILE;
+            }
+        };
+        Note titleMatch = firstStore.createNote(new Note("Shopping", "list"));
+        Note contentMatch = secondStore.createNote(new Note("Weekend", "go shopping"));
+        secondStore.createNote(new Note("Other", "nothing"));
+        NoteRepositoryImpl repository = new NoteRepositoryImpl(new NoteDataStoreFactory(null, Arrays.<NoteDataStore>asList(firstStore, secondStore)));
+
+        List<NoteSearchResult> results = repository.searchNotes("shop", 10);
+        assertEquals(2, results.size());
+        assertEquals(titleMatch.getId(), results.get(0).getNoteId());
+        assertEquals(contentMatch.getId(), results.get(1).getNoteId());
+        assertEquals(NoteDataStore.STORE_TYPE_FILE, results.get(1).getStoreType());
+        assertEquals(1, repository.searchNotes("shop", 1).size());
+    }
+
+    @Test
+    public void testCountByStore() throws Exception {
+        InMemoryNoteStore firstStore = new InMemoryNoteStore();
+        InMemoryNoteStore secondStore = new InMemoryNoteStore() {
+            @Override
+            public int getType() {
+                return STORE_TYPE_FILE;
+            }
+        };
+        firstStore.createNote(new Note("first", "content"));
+        secondStore.createNote(new Note("second", "content"));
+        secondStore.createNote(new Note("third", "content"));
+        NoteRepositoryImpl repository = new NoteRepositoryImpl(new NoteDataStoreFactory(null, Arrays.<NoteDataStore>asList(firstStore, secondStore)));
+
+        Map<Integer, Long> counts = repository.countByStore();
+        assertEquals(2, counts.size());
+        assertEquals(Long.valueOf(1), counts.get(NoteDataStore.STORE_TYPE_INMEMORY));
+        assertEquals(Long.valueOf(2), counts.get(NoteDataStore.STORE_TYPE_FILE));
+        assertEquals(3, repository.count());
+    }
+}
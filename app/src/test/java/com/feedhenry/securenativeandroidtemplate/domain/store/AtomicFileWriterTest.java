@@ -0,0 +1,214 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import com.feedhenry.securenativeandroidtemplate.domain.utils.StreamUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class AtomicFileWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTargetIsReplacedOnClose() throws Exception {
+        File target = folder.newFile("note");
+        writeContent(target, "old");
+
+        RecordingWriter writer = new RecordingWriter(AtomicFileWriter.DurabilityMode.SYNC, 8);
+        OutputStream out = writer.openForWrite(target);
+        out.write("new".getBytes("utf-8"));
+        //not closed yet, so the target still has the old content
+        assertEquals("old", readContent(target));
+        out.close();
+
+        assertEquals("new", readContent(target));
+        assertEquals(Arrays.asList("directory " + folder.getRoot().getName()), writer.events);
+        assertEquals(1, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testAbortedWriteKeepsTarget() throws Exception {
+        File target = folder.newFile("note");
+        writeContent(target, "old");
+
+        for (AtomicFileWriter.DurabilityMode mode : AtomicFileWriter.DurabilityMode.values()) {
+            RecordingWriter writer = new RecordingWriter(mode, 8);
+            OutputStream out = writer.openForWrite(target);
+            out.write("partial".getBytes("utf-8"));
+            writer.abort(out);
+            //closing it after the abort doesn't commit it
+            out.close();
+            writer.sync();
+
+            assertEquals("old", readContent(target));
+            assertEquals("old", readLatestContent(writer, target));
+            assertTrue(writer.events.isEmpty());
+            assertEquals(1, folder.getRoot().listFiles().length);
+        }
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        File first = new File(folder.getRoot(), "first");
+        File second = new File(folder.getRoot(), "second");
+        writeContent(first, "old");
+        RecordingWriter writer = new RecordingWriter(AtomicFileWriter.DurabilityMode.GROUP_COMMIT, 3);
+        write(writer, first, "first");
+        write(writer, second, "second");
+
+        //the targets are only replaced when the batch is synced, but the latest content can be read
+        assertEquals("old", readContent(first));
+        assertFalse(second.exists());
+        assertEquals("first", readLatestContent(writer, first));
+        assertEquals("second", readLatestContent(writer, second));
+        assertEquals("second".length(), writer.length(second));
+        assertTrue(writer.events.isEmpty());
+
+        //writing a file again replaces its pending write
+        write(writer, first, "first again");
+        assertEquals("first again", readLatestContent(writer, first));
+        assertEquals(3, folder.getRoot().listFiles().length);
+        assertTrue(writer.events.isEmpty());
+
+        File third = new File(folder.getRoot(), "third");
+        write(writer, third, "third");
+        //the batch is full: the files are synced, then renamed, then the directory is synced
+        assertEquals(4, writer.events.size());
+        assertTrue(writer.events.get(0).startsWith("file first."));
+        assertTrue(writer.events.get(1).startsWith("file second."));
+        assertTrue(writer.events.get(2).startsWith("file third."));
+        assertEquals("directory " + folder.getRoot().getName(), writer.events.get(3));
+        assertEquals("first again", readContent(first));
+        assertEquals("second", readContent(second));
+        assertEquals("third", readContent(third));
+        assertEquals(3, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testRemovedFilesAreNotCommitted() throws Exception {
+        File first = new File(folder.getRoot(), "first");
+        RecordingWriter writer = new RecordingWriter(AtomicFileWriter.DurabilityMode.GROUP_COMMIT, 8);
+        write(writer, first, "first");
+        //a temporary file left by an interrupted write
+        writeContent(new File(folder.getRoot(), "first.12.tmp"), "torn");
+        writer.deleteTempFile(first);
+        writer.sync();
+
+        assertFalse(first.exists());
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testAppendsAreSyncedAfterReplacements() throws Exception {
+        File note = new File(folder.getRoot(), "note");
+        File journal = new File(folder.getRoot(), "journal");
+        RecordingWriter writer = new RecordingWriter(AtomicFileWriter.DurabilityMode.GROUP_COMMIT, 8);
+        write(writer, note, "note");
+        FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write("put note".getBytes("utf-8"));
+            writer.commitAppend(journal, out);
+        } finally {
+            out.close();
+        }
+        writer.sync();
+
+        //the journal must never be on the storage before the file it refers to
+        assertEquals(3, writer.events.size());
+        assertTrue(writer.events.get(0).startsWith("file note."));
+        assertEquals("directory " + folder.getRoot().getName(), writer.events.get(1));
+        assertEquals("file journal", writer.events.get(2));
+    }
+
+    @Test
+    public void testStaleTempFilesAreDeleted() throws Exception {
+        File first = new File(folder.getRoot(), "first");
+        File second = new File(folder.getRoot(), "second.json");
+        writeContent(first, "old");
+        //temporary files left by a previous run that was stopped before they were renamed
+        writeContent(new File(folder.getRoot(), "first.3.tmp"), "lost");
+        writeContent(new File(folder.getRoot(), "first.7.tmp"), "lost again");
+        writeContent(new File(folder.getRoot(), "second.json.0.tmp"), "lost");
+        RecordingWriter writer = new RecordingWriter(AtomicFileWriter.DurabilityMode.GROUP_COMMIT, 8);
+        //a pending write of this writer is kept
+        File third = new File(folder.getRoot(), "third");
+        write(writer, third, "third");
+
+        List<File> staleTargets = writer.deleteStaleTempFiles(folder.getRoot());
+
+        assertEquals(2, staleTargets.size());
+        assertTrue(staleTargets.contains(first));
+        assertTrue(staleTargets.contains(second));
+        assertEquals("old", readContent(first));
+        assertFalse(second.exists());
+        writer.sync();
+        assertEquals("third", readContent(third));
+        assertEquals(2, folder.getRoot().listFiles().length);
+    }
+
+    private void write(AtomicFileWriter writer, File target, String content) throws Exception {
+        OutputStream out = writer.openForWrite(target);
+        out.write(content.getBytes("utf-8"));
+        out.close();
+    }
+
+    private void writeContent(File file, String content) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("utf-8"));
+        out.close();
+    }
+
+    private String readContent(File file) throws Exception {
+        return read(new FileInputStream(file));
+    }
+
+    private String readLatestContent(AtomicFileWriter writer, File file) throws Exception {
+        return read(writer.openForRead(file));
+    }
+
+    private String read(InputStream in) throws Exception {
+        try {
+            return StreamUtils.readStream(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Records the files and directories that are synced, in order
+     */
+    private static class RecordingWriter extends AtomicFileWriter {
+
+        private final List<String> events = new ArrayList<String>();
+
+        RecordingWriter(DurabilityMode durabilityMode, int groupCommitSize) {
+            super(durabilityMode, groupCommitSize);
+        }
+
+        @Override
+        void syncFile(File file) throws java.io.IOException {
+            super.syncFile(file);
+            events.add("file " + file.getName());
+        }
+
+        @Override
+        void syncDirectory(File directory) {
+            events.add("directory " + directory.getName());
+        }
+    }
+}
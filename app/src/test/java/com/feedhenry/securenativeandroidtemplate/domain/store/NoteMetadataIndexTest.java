@@ -0,0 +1,137 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+import com.feedhenry.securenativeandroidtemplate.domain.models.PageCursor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class NoteMetadataIndexTest {
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        NoteMetadataIndex index = new NoteMetadataIndex();
+        Note uuidNote = new Note("first", "content");
+        Note customIdNote = new Note("custom-id", "second é", "content", 1234567890123L);
+        index.put(uuidNote);
+        index.put(customIdNote);
+
+        ByteBuffer snapshot = ByteBuffer.wrap(index.toByteArray());
+        assertTrue(NoteMetadataIndex.isSnapshot(snapshot));
+        NoteMetadataIndex loaded = new NoteMetadataIndex();
+        loaded.readSnapshot(snapshot);
+
+        assertEquals(2, loaded.size());
+        List<Note> notes = loaded.toList(NoteDataStore.STORE_TYPE_FILE);
+        Note first = notes.get(0);
+        assertEquals(uuidNote.getId(), first.getId());
+        assertEquals("first", first.getTitle());
+        assertEquals(uuidNote.getCreatedAt(), first.getCreatedAt());
+        Note second = notes.get(1);
+        assertEquals("custom-id", second.getId());
+        assertEquals("second é", second.getTitle());
+        assertEquals(1234567890123L, second.getCreatedAt().getTime());
+    }
+
+    @Test
+    public void testUpdateAndRemove() throws Exception {
+        NoteMetadataIndex index = new NoteMetadataIndex();
+        Note[] notes = new Note[3];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new Note("note " + i, "");
+            index.put(notes[i]);
+        }
+        notes[2].setTitle("updated");
+        index.put(notes[2]);
+        assertEquals(3, index.size());
+
+        List<Note> before = index.toList(NoteDataStore.STORE_TYPE_FILE);
+        assertTrue(index.remove(notes[0].getId()));
+        assertFalse(index.remove(notes[0].getId()));
+        assertEquals(2, index.size());
+        assertFalse(index.contains(notes[0].getId()));
+        //the last entry is moved into the freed slot
+        assertEquals("updated", index.toList(NoteDataStore.STORE_TYPE_FILE).get(0).getTitle());
+        //lists are not affected by later changes
+        assertEquals(3, before.size());
+        assertEquals(notes[0].getId(), before.get(0).getId());
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        NoteMetadataIndex index = new NoteMetadataIndex();
+        index.put(new Note("b", "second", "", 2000));
+        index.put(new Note("a", "third", "", 2000));
+        index.put(new Note("c", "first", "", 3000));
+        index.put(new Note("d", "removed", "", 1000));
+        index.put(new Note("e", "last", "", 1500));
+        index.remove("d");
+        //moved to the end by its new creation time
+        index.put(new Note("e", "last", "", 500));
+
+        List<Note> firstPage = index.getPage(null, 2, NoteDataStore.STORE_TYPE_FILE);
+        assertEquals(2, firstPage.size());
+        assertEquals("c", firstPage.get(0).getId());
+        assertEquals("b", firstPage.get(1).getId());
+        List<Note> secondPage = index.getPage(PageCursor.after(firstPage.get(1)), 2, NoteDataStore.STORE_TYPE_FILE);
+        assertEquals(2, secondPage.size());
+        assertEquals("a", secondPage.get(0).getId());
+        assertEquals("e", secondPage.get(1).getId());
+        assertEquals(0, index.getPage(PageCursor.after(secondPage.get(1)), 2, NoteDataStore.STORE_TYPE_FILE).size());
+    }
+
+    @Test
+    public void testPagesStaySortedAsNotesChange() throws Exception {
+        NoteMetadataIndex index = new NoteMetadataIndex();
+        Map<String, Note> notes = new HashMap<String, Note>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            String id = "note" + random.nextInt(200);
+            if (random.nextInt(4) == 0) {
+                index.remove(id);
+                notes.remove(id);
+            } else {
+                //few distinct creation times, so the ids decide the order of many notes
+                Note note = new Note(id, "title " + i, "", random.nextInt(20));
+                index.put(note);
+                notes.put(id, note);
+            }
+            if (i % 100 == 0) {
+                assertPages(index, notes);
+            }
+        }
+        assertPages(index, notes);
+    }
+
+    private static void assertPages(NoteMetadataIndex index, Map<String, Note> notes) {
+        List<Note> expected = new ArrayList<Note>(notes.values());
+        Collections.sort(expected, PageCursor.NEWEST_FIRST);
+        List<Note> pages = new ArrayList<Note>();
+        List<Note> page = index.getPage(null, 7, NoteDataStore.STORE_TYPE_FILE);
+        while (!page.isEmpty()) {
+            pages.addAll(page);
+            page = index.getPage(PageCursor.after(page.get(page.size() - 1)), 7, NoteDataStore.STORE_TYPE_FILE);
+        }
+        assertEquals(expected.size(), pages.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), pages.get(i).getId());
+            assertEquals(expected.get(i).getTitle(), pages.get(i).getTitle());
+        }
+    }
+
+    @Test
+    public void testLegacyJsonIsNotSnapshot() throws Exception {
+        assertFalse(NoteMetadataIndex.isSnapshot(ByteBuffer.wrap("{}".getBytes("utf-8"))));
+    }
+}
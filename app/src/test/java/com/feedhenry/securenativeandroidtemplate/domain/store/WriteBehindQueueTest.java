@@ -0,0 +1,118 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store;
+
+import com.feedhenry.securenativeandroidtemplate.domain.models.Note;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+
+    @Test
+    public void testWritesAreCoalesced() throws Exception {
+        final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch releaseWrites = new CountDownLatch(1);
+        final List<String> saved = Collections.synchronizedList(new ArrayList<String>());
+        WriteBehindQueue queue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void save(Note note) throws Exception {
+                firstWriteStarted.countDown();
+                releaseWrites.await();
+                saved.add(note.getContent());
+            }
+
+            @Override
+            public void delete(Note note) throws Exception {
+                saved.add("deleted");
+            }
+        }, 2, Executors.newSingleThreadExecutor());
+
+        Note note = new Note("title", "v0");
+        queue.save(note);
+        firstWriteStarted.await();
+        for (int i = 1; i <= 10; i++) {
+            note.setContent("v" + i);
+            queue.save(note);
+        }
+        //the queue keeps a copy, so changing the note again without saving it doesn't affect the queue
+        note.setContent("not saved");
+        assertEquals("v10", queue.get(note.getId()).getNote().getContent());
+
+        releaseWrites.countDown();
+        queue.flush();
+        assertEquals(2, saved.size());
+        assertEquals("v0", saved.get(0));
+        assertEquals("v10", saved.get(1));
+        assertNull(queue.get(note.getId()));
+    }
+
+    @Test
+    public void testFlushReportsFailures() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void save(Note note) throws Exception {
+                throw new Exception("disk full");
+            }
+
+            @Override
+            public void delete(Note note) throws Exception {
+
+            }
+        }, 2, Executors.newSingleThreadExecutor());
+        queue.save(new Note("title", "content"));
+        boolean failed = false;
+        try {
+            queue.flush();
+        } catch (IOException expected) {
+            failed = true;
+        }
+        assertTrue(failed);
+        //the failure is only reported once
+        queue.flush();
+    }
+
+    @Test
+    public void testFailedWritesStayVisibleUntilReported() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void save(Note note) throws Exception {
+                throw new Exception("disk full");
+            }
+
+            @Override
+            public void delete(Note note) throws Exception {
+
+            }
+        }, 2, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                //run the writes straight away, so the write has failed when save returns
+                command.run();
+            }
+        });
+        Note note = new Note("title", "content");
+        queue.save(note);
+        assertEquals("content", queue.get(note.getId()).getNote().getContent());
+        assertEquals(1, queue.getPendingWrites().size());
+
+        boolean failed = false;
+        try {
+            queue.flush();
+        } catch (IOException expected) {
+            failed = true;
+        }
+        assertTrue(failed);
+        assertNull(queue.get(note.getId()));
+        assertTrue(queue.getPendingWrites().isEmpty());
+    }
+}
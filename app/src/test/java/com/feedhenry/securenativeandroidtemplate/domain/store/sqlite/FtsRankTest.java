@@ -0,0 +1,49 @@
+package com.feedhenry.securenativeandroidtemplate.domain.store.sqlite;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class FtsRankTest {
+
+    private static final double[] WEIGHTS = {2.0, 1.0};
+
+    @Test
+    public void testMatchQuery() {
+        assertEquals("milk* eggs*", FtsRank.toMatchQuery("Milk, eggs"));
+        //operators and syntax are dropped
+        assertEquals("milk* or* eggs*", FtsRank.toMatchQuery("milk OR \"eggs"));
+        assertEquals("café*", FtsRank.toMatchQuery("café"));
+        assertNull(FtsRank.toMatchQuery(" -* "));
+    }
+
+    @Test
+    public void testMoreHitsRankHigher() {
+        //one phrase, two columns, three rows, average lengths 2 and 4
+        double fewHits = FtsRank.bm25(matchinfo(1, 2, 3, 2, 4, 2, 7, 0, 1, 1, 1, 3, 2), WEIGHTS);
+        double moreHits = FtsRank.bm25(matchinfo(1, 2, 3, 2, 4, 3, 3, 1, 1, 1, 2, 3, 2), WEIGHTS);
+        assertTrue(fewHits > 0);
+        assertTrue(moreHits > fewHits);
+    }
+
+    @Test
+    public void testTitleHitsCountMore() {
+        double titleHit = FtsRank.bm25(matchinfo(1, 2, 3, 2, 4, 2, 4, 1, 1, 1, 0, 1, 1), WEIGHTS);
+        double contentHit = FtsRank.bm25(matchinfo(1, 2, 3, 2, 4, 2, 4, 0, 1, 1, 1, 1, 1), WEIGHTS);
+        assertTrue(titleHit > contentHit);
+        assertEquals(0.0, FtsRank.bm25(matchinfo(1, 2, 3, 2, 4, 2, 4, 0, 1, 1, 0, 1, 1), WEIGHTS));
+    }
+
+    private static byte[] matchinfo(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.nativeOrder());
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+}
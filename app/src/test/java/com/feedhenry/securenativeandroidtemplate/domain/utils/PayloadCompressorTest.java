@@ -0,0 +1,49 @@
+package com.feedhenry.securenativeandroidtemplate.domain.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] payload = repeat("{\"title\":\"a note\",\"content\":\"some text\"}", 100);
+        for (PayloadCompressor.Codec codec : PayloadCompressor.Codec.values()) {
+            byte[] compressed = new PayloadCompressor(codec).compress(payload);
+            assertNotNull(compressed);
+            assertTrue(compressed.length < payload.length);
+            ByteBuffer decompressed = PayloadCompressor.decompress(ByteBuffer.wrap(compressed));
+            assertEquals(ByteBuffer.wrap(payload), decompressed);
+            assertEquals(codec, PayloadCompressor.Codec.fromId(codec.getId()));
+        }
+    }
+
+    @Test
+    public void testSmallPayloadsAreNotCompressed() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(PayloadCompressor.Codec.DEFLATE, 64);
+        assertNull(compressor.compress(repeat("a", 63)));
+        assertNotNull(compressor.compress(repeat("a", 64)));
+    }
+
+    @Test
+    public void testIncompressiblePayloadsAreNotCompressed() throws Exception {
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        assertNull(new PayloadCompressor(PayloadCompressor.Codec.DEFLATE).compress(random));
+    }
+
+    private static byte[] repeat(String value, int count) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(value);
+        }
+        return builder.toString().getBytes("utf-8");
+    }
+}